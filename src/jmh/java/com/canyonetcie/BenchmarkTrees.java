@@ -0,0 +1,89 @@
+package com.canyonetcie;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * Generates and removes synthetic controlled folder trees for the benchmarks.
+ */
+final class BenchmarkTrees {
+
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final int DIRECTORIES_PER_DIRECTORY = 32;
+
+    private BenchmarkTrees() {
+    }
+
+    /**
+     * Creates a tree with roughly the requested number of entries below the root
+     */
+    static Path generate(String name, int entries) throws IOException {
+        Path root = Files.createTempDirectory(name);
+        int created = 0;
+        int directoryIndex = 0;
+        while (created < entries) {
+            Path directory = root.resolve("d" + (directoryIndex / DIRECTORIES_PER_DIRECTORY))
+                    .resolve("d" + directoryIndex);
+            Files.createDirectories(directory);
+            created++;
+            for (int i = 0; i < FILES_PER_DIRECTORY && created < entries; i++, created++) {
+                Files.createFile(directory.resolve("f" + i));
+            }
+            directoryIndex++;
+        }
+        return root;
+    }
+
+    /**
+     * Creates a balanced tree under the parent: every directory holds the given
+     * number of files, and every directory above the given depth holds
+     * {@code fanOut} subdirectories
+     */
+    static Path generate(Path parent, String name, int fanOut, int depth, int filesPerDirectory) throws IOException {
+        Path root = Files.createTempDirectory(parent, name);
+        populate(root, fanOut, depth, filesPerDirectory);
+        return root;
+    }
+
+    private static void populate(Path directory, int fanOut, int depth, int filesPerDirectory) throws IOException {
+        for (int i = 0; i < filesPerDirectory; i++) {
+            Files.createFile(directory.resolve("f" + i));
+        }
+        if (depth > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                Path child = Files.createDirectory(directory.resolve("d" + i));
+                populate(child, fanOut, depth - 1, filesPerDirectory);
+            }
+        }
+    }
+
+    /**
+     * Deletes a generated tree, restoring write permissions first
+     */
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxr-xr-x"));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
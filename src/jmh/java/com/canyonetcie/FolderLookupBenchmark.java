@@ -0,0 +1,62 @@
+package com.canyonetcie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures resolving the controlled folder that governs a path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FolderLookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int folders;
+
+    private FolderIndex index;
+    private Path governedPath;
+    private Path ungovernedPath;
+
+    @Setup
+    public void setUp() {
+        index = new FolderIndex();
+        for (int i = 0; i < folders; i++) {
+            index.add("/srv/share" + (i % 100) + "/team" + i);
+        }
+        int team = folders - 3;
+        governedPath = Paths.get("/srv/share" + (team % 100) + "/team" + team + "/projects/2024/report.txt");
+        ungovernedPath = Paths.get("/home/someone/projects/2024/report.txt");
+    }
+
+    @Benchmark
+    public String governedLookup() {
+        return index.findGoverningFolder(governedPath);
+    }
+
+    @Benchmark
+    public String ungovernedLookup() {
+        return index.findGoverningFolder(ungovernedPath);
+    }
+
+    @Benchmark
+    public boolean allWriteEnabled() {
+        return index.allWriteEnabled();
+    }
+}
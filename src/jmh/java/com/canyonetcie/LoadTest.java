@@ -0,0 +1,294 @@
+package com.canyonetcie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test harness: generates controlled folders and drives the command
+ * processor from many concurrent simulated clients.
+ *
+ * Each client picks commands from a weighted mix (enable, disable, status by
+ * default) and records their latency. At the end the harness reports
+ * throughput, chmods per second and p50/p99/p999 latencies per command.
+ * Trees are generated on tmpfs (/dev/shm) when available, so the numbers
+ * reflect the checker rather than the disk.
+ *
+ * Options (all optional):
+ *
+ *   --roots N         controlled folders to generate (default 4)
+ *   --fanout N        subdirectories per directory (default 8)
+ *   --depth N         directory levels below each root (default 3)
+ *   --files N         files per directory (default 16)
+ *   --clients N       concurrent clients (default 16)
+ *   --duration S      measured seconds (default 30)
+ *   --operations N    stop after N measured commands instead of a duration
+ *   --warmup S        seconds of load before measuring (default 5)
+ *   --mix SPEC        weighted commands, e.g. enable=1,disable=1,status=8
+ *   --seed N          seed for the command mix (default 42)
+ *   --dir PATH        where to generate the trees (default /dev/shm)
+ *   --config PATH     configuration file to start from
+ *   --keep            leave the generated trees in place
+ */
+public final class LoadTest {
+
+    private static final Path TMPFS = Paths.get("/dev/shm");
+
+    private int roots = 4;
+    private int fanOut = 8;
+    private int depth = 3;
+    private int filesPerDirectory = 16;
+    private int clients = 16;
+    private long durationSeconds = 30;
+    private long operations;
+    private long warmupSeconds = 5;
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private long seed = 42;
+    private Path directory;
+    private Path configFile;
+    private boolean keep;
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        try {
+            test.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(2);
+        }
+        test.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--keep")) {
+                keep = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--roots": roots = positive(option, value); break;
+                case "--fanout": fanOut = positive(option, value); break;
+                case "--depth": depth = Integer.parseInt(value); break;
+                case "--files": filesPerDirectory = Integer.parseInt(value); break;
+                case "--clients": clients = positive(option, value); break;
+                case "--duration": durationSeconds = positive(option, value); break;
+                case "--operations": operations = positive(option, value); break;
+                case "--warmup": warmupSeconds = Long.parseLong(value); break;
+                case "--mix": parseMix(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                case "--dir": directory = Paths.get(value); break;
+                case "--config": configFile = Paths.get(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (mix.isEmpty()) {
+            mix.put("enable", 1);
+            mix.put("disable", 1);
+            mix.put("status", 8);
+        }
+    }
+
+    private static int positive(String option, String value) {
+        int parsed = Integer.parseInt(value);
+        if (parsed <= 0) {
+            throw new IllegalArgumentException(option + " must be positive: " + value);
+        }
+        return parsed;
+    }
+
+    private void parseMix(String value) {
+        for (String part : value.split(",")) {
+            String[] weighted = part.split("=", 2);
+            int weight = weighted.length > 1 ? Integer.parseInt(weighted[1].trim()) : 1;
+            if (weight > 0) {
+                mix.put(weighted[0].trim(), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty command mix: " + value);
+        }
+    }
+
+    private void run() throws Exception {
+        Path base = directory != null ? directory : Files.isDirectory(TMPFS) && Files.isWritable(TMPFS)
+                ? TMPFS : Paths.get(System.getProperty("java.io.tmpdir"));
+        String store = Files.getFileStore(base).type();
+        if (!store.equals("tmpfs")) {
+            System.err.println("Warning: " + base + " is on " + store + ", not tmpfs; results include disk latency");
+        }
+
+        Path work = Files.createTempDirectory(base, "permissions-load");
+        List<Path> folders = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < roots; i++) {
+            folders.add(BenchmarkTrees.generate(work, "root" + i + "-", fanOut, depth, filesPerDirectory));
+        }
+        long perRoot = entries(fanOut, depth, filesPerDirectory);
+        System.out.printf("Generated %d folders of %d entries under %s in %d ms%n", roots, perRoot, work,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        Config config = configFile != null ? new Config(configFile) : new Config(work.resolve("loadtest.properties"));
+        StringBuilder controlled = new StringBuilder();
+        for (Path folder : folders) {
+            controlled.append(controlled.length() == 0 ? "" : ",").append(folder);
+        }
+        config.setProperty("controlled.folders", controlled.toString());
+        config.setProperty("manifest.file", "");
+        config.setProperty("audit.dir", "");
+        config.setProperty("config.watch", "false");
+        config.setProperty("metrics.jmx.enabled", "false");
+        config.setProperty("metrics.export.file", "");
+
+        Metrics metrics = new Metrics();
+        PermissionsChecker checker = new PermissionsChecker(config, metrics);
+        PrintStream stdout = System.out;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        try {
+            System.setOut(discard);
+            checker.initialize();
+            boolean admin = probeAdmin(checker);
+            System.setOut(stdout);
+            if (!admin) {
+                System.err.println("Warning: Not running as an admin user; enable and disable will be rejected");
+            }
+
+            if (warmupSeconds > 0) {
+                System.out.printf("Warming up for %d s with %d clients...%n", warmupSeconds, clients);
+                System.setOut(discard);
+                drive(checker, new Metrics(), TimeUnit.SECONDS.toNanos(warmupSeconds), 0, seed ^ 0x5DEECE66DL);
+                System.setOut(stdout);
+            }
+
+            Metrics client = new Metrics();
+            long chmodsBefore = metrics.operation(Metrics.CHMOD).getCount();
+            long entriesBefore = metrics.getEntries();
+            System.out.printf("Measuring %s with %d clients, mix %s...%n",
+                    operations > 0 ? operations + " commands" : durationSeconds + " s", clients, mix);
+            // The permission manager reports every walk on standard output
+            System.setOut(discard);
+            long elapsed = drive(checker, client, TimeUnit.SECONDS.toNanos(durationSeconds), operations, seed);
+            System.setOut(stdout);
+            report(client, metrics.operation(Metrics.CHMOD).getCount() - chmodsBefore,
+                    metrics.getEntries() - entriesBefore, elapsed);
+        } finally {
+            System.setOut(discard);
+            checker.cleanup();
+            System.setOut(stdout);
+            if (!keep) {
+                for (Path folder : folders) {
+                    BenchmarkTrees.delete(folder);
+                }
+                Files.deleteIfExists(work.resolve("loadtest.properties"));
+                Files.deleteIfExists(work);
+            }
+        }
+    }
+
+    private static long entries(int fanOut, int depth, int filesPerDirectory) {
+        long directories = 0;
+        long level = 1;
+        for (int i = 0; i <= depth; i++) {
+            directories += level;
+            level *= fanOut;
+        }
+        return directories + directories * filesPerDirectory;
+    }
+
+    private static boolean probeAdmin(PermissionsChecker checker) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        checker.processCommand("disable", new PrintStream(output, true));
+        return !output.toString().contains("Admin privileges required");
+    }
+
+    /**
+     * Runs the clients until the deadline or the operation budget is reached; returns the elapsed nanoseconds
+     */
+    private long drive(PermissionsChecker checker, Metrics client, long durationNanos, long budget, long seed)
+            throws InterruptedException {
+        String[] commands = new String[mix.values().stream().mapToInt(Integer::intValue).sum()];
+        int index = 0;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            for (int i = 0; i < entry.getValue(); i++) {
+                commands[index++] = entry.getKey();
+            }
+        }
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        AtomicLong remaining = new AtomicLong(budget > 0 ? budget : Long.MAX_VALUE);
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[] window = new long[2];
+        for (int c = 0; c < clients; c++) {
+            Random random = new Random(seed + c);
+            Thread thread = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = window[0] + durationNanos;
+                while ((budget > 0 || System.nanoTime() - deadline < 0) && remaining.getAndDecrement() > 0) {
+                    String command = commands[random.nextInt(commands.length)];
+                    long start = System.nanoTime();
+                    boolean ok;
+                    try {
+                        ok = checker.processCommand(command, discard);
+                    } catch (IOException | RuntimeException e) {
+                        ok = false;
+                    }
+                    client.operation(command).recordSince(start, ok);
+                }
+            }, "load-client-" + c);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        ready.await();
+        window[0] = System.nanoTime();
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        window[1] = System.nanoTime();
+        return window[1] - window[0];
+    }
+
+    private static void report(Metrics client, long chmods, long entries, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        long failures = 0;
+        System.out.println();
+        System.out.printf("%-10s %10s %8s %12s %12s %12s %12s%n",
+                "command", "count", "failed", "p50 (us)", "p99 (us)", "p999 (us)", "max (us)");
+        for (Metrics.OperationStats stats : client.getOperations().values()) {
+            total += stats.getCount();
+            failures += stats.getFailures();
+            System.out.printf("%-10s %10d %8d %12.1f %12.1f %12.1f %12.1f%n", stats.getName(), stats.getCount(),
+                    stats.getFailures(), stats.getP50Micros(), stats.getP99Micros(), stats.getP999Micros(),
+                    stats.getMaxMicros());
+        }
+        System.out.println();
+        System.out.printf("Commands:    %d in %.2f s (%d failed)%n", total, seconds, failures);
+        System.out.printf("Throughput:  %.1f commands/s%n", total / seconds);
+        System.out.printf("Chmods:      %d (%.1f/s)%n", chmods, chmods / seconds);
+        System.out.printf("Entries:     %d walked (%.1f/s)%n", entries, entries / seconds);
+    }
+}
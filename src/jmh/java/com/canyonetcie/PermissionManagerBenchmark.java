@@ -0,0 +1,107 @@
+package com.canyonetcie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full enable/disable passes over generated controlled folder trees.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PermissionManagerBenchmark {
+
+    /**
+     * A generated tree controlled by its own PermissionManager
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({"1000", "100000", "1000000"})
+        public int entries;
+
+        PermissionManager permissionManager;
+        private Path root;
+        private PrintStream originalOut;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            // Per-folder progress lines would dominate the measurement
+            originalOut = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+            root = BenchmarkTrees.generate("pc-bench", entries);
+            Config config = new Config();
+            config.setProperty("manifest.file", "");
+            permissionManager = new PermissionManager(config);
+            for (String folder : permissionManager.getControlledFolders()) {
+                permissionManager.removeControlledFolder(folder);
+            }
+            permissionManager.addControlledFolder(root.toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            System.setOut(originalOut);
+            BenchmarkTrees.delete(root);
+        }
+    }
+
+    /**
+     * Puts the tree in read-only mode before every invocation
+     */
+    @State(Scope.Benchmark)
+    public static class ReadOnlyTree {
+        @Setup(Level.Invocation)
+        public void reset(Tree tree) throws IOException {
+            tree.permissionManager.disableWritePermissions();
+        }
+    }
+
+    /**
+     * Puts the tree in read-write mode before every invocation
+     */
+    @State(Scope.Benchmark)
+    public static class WritableTree {
+        @Setup(Level.Invocation)
+        public void reset(Tree tree) throws IOException {
+            tree.permissionManager.enableWritePermissions();
+        }
+    }
+
+    @Benchmark
+    public void enableWritePermissions(Tree tree, ReadOnlyTree readOnly) throws IOException {
+        tree.permissionManager.enableWritePermissions();
+    }
+
+    @Benchmark
+    public void disableWritePermissions(Tree tree, WritableTree writable) throws IOException {
+        tree.permissionManager.disableWritePermissions();
+    }
+
+    /**
+     * Repeating disable on a tree that is already read-only only reads attributes
+     */
+    @Benchmark
+    public void disableAlreadyReadOnly(Tree tree, ReadOnlyTree readOnly) throws IOException {
+        tree.permissionManager.disableWritePermissions();
+    }
+}
@@ -0,0 +1,56 @@
+package com.canyonetcie;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the startup costs of loading configuration and detecting the user's role.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+
+    private Config config;
+    private UserManager userManager;
+
+    @Setup
+    public void setUp() {
+        config = new Config();
+        userManager = new UserManager(config);
+    }
+
+    @Benchmark
+    public Config loadConfig() {
+        return new Config();
+    }
+
+    /**
+     * Construction includes detecting the user and the first role check
+     */
+    @Benchmark
+    public boolean constructUserManager() {
+        return new UserManager(config).hasAdminRole();
+    }
+
+    /**
+     * Role check served from the resolved group cache
+     */
+    @Benchmark
+    public boolean cachedRoleCheck() {
+        return userManager.hasAdminRole();
+    }
+}
@@ -0,0 +1,302 @@
+package com.canyonetcie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accepts commands from a coordinator over TCP, so one node can drive a fleet of file servers.
+ *
+ * Each request and response is a frame:
+ *
+ *   request:  magic (int), token length (int), token (UTF-8), caller length (int), caller (UTF-8),
+ *             command length (int), command (UTF-8)
+ *   response: magic (int), status (byte: 0 OK, 1 ERR, 2 DENIED), output length (int), output (UTF-8)
+ *
+ * A connection may carry any number of requests. The token is read and
+ * checked before the rest of the request, with a small size limit, so an
+ * unauthenticated peer cannot make the agent buffer a large frame; a token
+ * that does not match is answered with DENIED and the connection is closed.
+ * At most a fixed number of connections are served at once, and extra ones
+ * are closed straight away. A connection that stays silent for the read
+ * timeout is closed too.
+ *
+ * The caller is the user who ran the fan-out on the coordinator; the token
+ * vouches for it, and admin-only commands check that user's role on the
+ * agent. Commands run one at a time on a dedicated thread, like the
+ * interactive prompt and the local command server, and a batch must name a
+ * file, since reading stdin would hold that thread. The token is sent in the
+ * clear, so agents listen on loopback unless told otherwise and belong on a
+ * trusted network.
+ */
+public class AgentServer implements Closeable {
+
+    static final int MAGIC = 0x50434146;
+    static final byte OK = 0;
+    static final byte ERR = 1;
+    static final byte DENIED = 2;
+    static final int MAX_TOKEN = 256;
+    static final int MAX_REQUEST = 1024 * 1024;
+    static final int MAX_RESPONSE = 64 * 1024 * 1024;
+
+    private final CommandServer.CommandHandler handler;
+    private final String host;
+    private final int port;
+    private final byte[] token;
+    private final int readTimeoutMillis;
+    private final int maxConnections;
+    private final Semaphore connectionSlots;
+    private final ThreadPoolExecutor connectionPool;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "agent-executor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private Thread thread;
+
+    public AgentServer(CommandServer.CommandHandler handler, String host, int port, String token) {
+        this(handler, host, port, token, 16, 60_000);
+    }
+
+    /**
+     * Creates an agent serving at most the given number of coordinator connections at once
+     */
+    public AgentServer(CommandServer.CommandHandler handler, String host, int port, String token, int maxConnections,
+                       int readTimeoutMillis) {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("An agent token is required");
+        }
+        if (token.getBytes(StandardCharsets.UTF_8).length > MAX_TOKEN) {
+            throw new IllegalArgumentException("Agent tokens are limited to " + MAX_TOKEN + " bytes");
+        }
+        this.handler = handler;
+        this.host = host;
+        this.port = port;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConnections = maxConnections;
+        // The slots bound the connections; a thread finishing one may briefly outlive its slot
+        this.connectionSlots = new Semaphore(maxConnections);
+        this.connectionPool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread thread = new Thread(r, "agent-connection");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Binds the port and starts accepting coordinators on a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(host, port));
+        thread = new Thread(this::run, "agent-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Agent listening on " + serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Gets the bound address
+     */
+    public SocketAddress getLocalAddress() {
+        return serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Blocks until the agent is closed
+     */
+    public void join() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        connectionPool.shutdownNow();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        for (Socket connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void run() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Agent closed
+                return;
+            }
+            if (!connectionSlots.tryAcquire()) {
+                System.err.println("Warning: Refused agent connection from " + socket.getRemoteSocketAddress()
+                        + "; " + maxConnections + " connections are already open");
+                closeQuietly(socket);
+                continue;
+            }
+            connections.add(socket);
+            try {
+                connectionPool.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // Agent closed
+                release(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeoutMillis);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (magic != MAGIC) {
+                    return;
+                }
+                int tokenLength = in.readInt();
+                byte[] presented = null;
+                if (tokenLength >= 0 && tokenLength <= MAX_TOKEN) {
+                    presented = new byte[tokenLength];
+                    in.readFully(presented);
+                }
+                if (presented == null || !MessageDigest.isEqual(token, presented)) {
+                    System.err.println("Warning: Rejected agent request with a bad token from " + socket.getRemoteSocketAddress());
+                    writeResponse(out, DENIED, "Invalid agent token\n".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                String caller = new String(readBytes(in, MAX_REQUEST), StandardCharsets.UTF_8);
+                String command = new String(readBytes(in, MAX_REQUEST), StandardCharsets.UTF_8);
+                Future<Boolean> result = executor.submit(() -> execute(caller, command, output));
+                boolean ok;
+                try {
+                    ok = result.get();
+                } catch (ExecutionException e) {
+                    output.reset();
+                    output.write(("Error executing command: " + e.getCause() + "\n").getBytes(StandardCharsets.UTF_8));
+                    ok = false;
+                }
+                writeResponse(out, ok ? OK : ERR, output.toByteArray());
+                output.reset();
+            }
+        } catch (SocketException | SocketTimeoutException | RejectedExecutionException e) {
+            // Coordinator went away, fell silent or agent closed
+        } catch (IOException e) {
+            System.err.println("Warning: Agent connection failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            release(socket);
+        }
+    }
+
+    /**
+     * Frees the connection's slot before closing it, so the peer can connect again as soon as it sees the close
+     */
+    private void release(Socket socket) {
+        connections.remove(socket);
+        connectionSlots.release();
+        closeQuietly(socket);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Runs a command, collecting its output; returns false if the command failed
+     */
+    private boolean execute(String caller, String command, ByteArrayOutputStream output) {
+        PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8);
+        try {
+            return handler.handle(caller, command, out);
+        } catch (IOException | RuntimeException e) {
+            out.println("Error executing command: " + e.getMessage());
+            return false;
+        } finally {
+            out.flush();
+        }
+    }
+
+    static void writeRequest(DataOutputStream out, String token, String caller, String command) throws IOException {
+        out.writeInt(MAGIC);
+        writeBytes(out, token.getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, caller.getBytes(StandardCharsets.UTF_8));
+        writeBytes(out, command.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static void writeResponse(DataOutputStream out, byte status, byte[] output) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(status);
+        writeBytes(out, output);
+        out.flush();
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in, int limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new IOException("Frame too large: " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,210 @@
+package com.canyonetcie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records which permission state was last applied to each directory of a
+ * controlled folder tree, together with the directory's device, inode and
+ * ctime at that moment.
+ * 
+ * Any change to a directory's entries or to its own mode updates its ctime,
+ * so a directory whose fingerprint still matches does not need to be listed
+ * again; only its recorded subdirectories are checked. Out-of-band mode
+ * changes on individual files do not touch the parent's ctime and are not
+ * detected this way.
+ */
+public class ApplyManifest {
+
+    private static final int MAGIC = 0x50434d46;
+    private static final int VERSION = 2;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Loads a manifest from disk, returning an empty one if it is missing or unreadable
+     */
+    public static ApplyManifest load(Path file) {
+        ApplyManifest manifest = new ApplyManifest();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.err.println("Warning: Ignoring manifest with unknown format: " + file);
+                return manifest;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String directory = in.readUTF();
+                Fingerprint fingerprint = new Fingerprint(in.readLong(), in.readLong(), in.readLong());
+                int mode = in.readShort();
+                String[] subdirectories = new String[in.readInt()];
+                for (int j = 0; j < subdirectories.length; j++) {
+                    subdirectories[j] = in.readUTF();
+                }
+                manifest.entries.put(directory, new Entry(fingerprint, mode, subdirectories));
+            }
+        } catch (NoSuchFileException e) {
+            // First run, nothing recorded yet
+        } catch (IOException e) {
+            System.err.println("Warning: Could not load manifest file: " + e.getMessage());
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes the manifest atomically, keeping only directories reachable from the given roots
+     */
+    public void save(Path file, Collection<Path> roots) throws IOException {
+        Set<String> reachable = reachableFrom(roots);
+        entries.keySet().retainAll(reachable);
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            Map<String, Entry> snapshot = Map.copyOf(entries);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.fingerprint.device);
+                out.writeLong(entry.fingerprint.inode);
+                out.writeLong(entry.fingerprint.ctimeNanos);
+                out.writeShort(entry.mode);
+                out.writeInt(entry.subdirectories.length);
+                for (String subdirectory : entry.subdirectories) {
+                    out.writeUTF(subdirectory);
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the current fingerprint of a directory, or null if the platform has no unix attribute view
+     */
+    static Fingerprint fingerprint(Path directory) throws IOException {
+        try {
+            Map<String, Object> attributes = Files.readAttributes(directory, "unix:dev,ino,ctime", LinkOption.NOFOLLOW_LINKS);
+            return new Fingerprint((Long) attributes.get("dev"), (Long) attributes.get("ino"),
+                    ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS));
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the recorded subdirectory names if the directory is unchanged since it was last applied in the same mode
+     */
+    String[] unchangedSubdirectories(Path directory, Fingerprint current, int mode) {
+        if (current == null) {
+            return null;
+        }
+        Entry entry = entries.get(directory.toString());
+        if (entry == null || entry.mode != mode || !entry.fingerprint.equals(current)) {
+            return null;
+        }
+        return entry.subdirectories;
+    }
+
+    /**
+     * Records a directory that was fully applied in the given mode
+     */
+    void record(Path directory, Fingerprint fingerprint, int mode, List<String> subdirectories) {
+        if (fingerprint == null) {
+            return;
+        }
+        entries.put(directory.toString(), new Entry(fingerprint, mode, subdirectories.toArray(new String[0])));
+    }
+
+    /**
+     * Forgets a directory, forcing it to be walked again next time
+     */
+    void forget(Path directory) {
+        entries.remove(directory.toString());
+    }
+
+    /**
+     * Gets the number of recorded directories
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private Set<String> reachableFrom(Collection<Path> roots) {
+        Set<String> reachable = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        for (Path root : roots) {
+            pending.add(root.toAbsolutePath().normalize());
+        }
+        while (!pending.isEmpty()) {
+            Path directory = pending.poll();
+            Entry entry = entries.get(directory.toString());
+            if (entry != null && reachable.add(directory.toString())) {
+                for (String subdirectory : entry.subdirectories) {
+                    pending.add(directory.resolve(subdirectory));
+                }
+            }
+        }
+        return reachable;
+    }
+
+    /**
+     * Identity and change time of a directory
+     */
+    static final class Fingerprint {
+        private final long device;
+        private final long inode;
+        private final long ctimeNanos;
+
+        Fingerprint(long device, long inode, long ctimeNanos) {
+            this.device = device;
+            this.inode = inode;
+            this.ctimeNanos = ctimeNanos;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint other = (Fingerprint) o;
+            return device == other.device && inode == other.inode && ctimeNanos == other.ctimeNanos;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(device) * 31 * 31 + Long.hashCode(inode) * 31 + Long.hashCode(ctimeNanos);
+        }
+    }
+
+    private static final class Entry {
+        final Fingerprint fingerprint;
+        final int mode;
+        final String[] subdirectories;
+
+        Entry(Fingerprint fingerprint, int mode, String[] subdirectories) {
+            this.fingerprint = fingerprint;
+            this.mode = mode;
+            this.subdirectories = subdirectories;
+        }
+    }
+}
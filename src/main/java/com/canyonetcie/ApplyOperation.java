@@ -0,0 +1,222 @@
+package com.canyonetcie;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An enable or disable of all controlled folders running in the background.
+ *
+ * Folders are applied concurrently. Progress can be read at any time as
+ * entries done against an estimate of the total, taken from the previous walk
+ * of each folder. The operation completes with a result per folder instead of
+ * stopping at the first failure. Cancelling asks every running walk to stop;
+ * the operation then completes as cancelled, while the per-folder outcomes
+ * stay available from {@link #getFolderResults()}.
+ */
+public class ApplyOperation extends CompletableFuture<ApplyOperation.Result> {
+
+    /**
+     * How a folder ended up
+     */
+    public enum Status {
+        APPLIED,
+        MISSING,
+        FAILED,
+        CANCELLED
+    }
+
+    private final boolean enable;
+    private final List<String> folders;
+    private final long estimatedEntries;
+    private final long startNanos = System.nanoTime();
+    private final Map<String, PermissionWalker.Control> controls = new LinkedHashMap<>();
+    private final Map<String, FolderResult> results = new LinkedHashMap<>();
+    private final AtomicInteger finished = new AtomicInteger();
+
+    ApplyOperation(boolean enable, Collection<String> folders, long estimatedEntries) {
+        this.enable = enable;
+        this.folders = new ArrayList<>(folders);
+        this.estimatedEntries = estimatedEntries;
+        for (String folder : folders) {
+            controls.put(folder, new PermissionWalker.Control());
+        }
+    }
+
+    /**
+     * Checks if the operation enables write permissions, rather than disabling them
+     */
+    public boolean isEnable() {
+        return enable;
+    }
+
+    public List<String> getFolders() {
+        return Collections.unmodifiableList(folders);
+    }
+
+    /**
+     * Gets the number of entries processed so far, over all folders
+     */
+    public long getEntriesDone() {
+        long done = 0;
+        for (PermissionWalker.Control control : controls.values()) {
+            done += control.getEntries();
+        }
+        return done;
+    }
+
+    /**
+     * Gets the estimated number of entries in all folders, or -1 if a folder has not been walked before
+     */
+    public long getEntriesTotal() {
+        return estimatedEntries;
+    }
+
+    /**
+     * Gets the number of folders that have finished, in any state
+     */
+    public int getFoldersDone() {
+        return finished.get();
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Gets the outcome of each folder that has finished so far, in the order the folders were given
+     */
+    public synchronized Map<String, FolderResult> getFolderResults() {
+        Map<String, FolderResult> ordered = new LinkedHashMap<>();
+        for (String folder : folders) {
+            FolderResult result = results.get(folder);
+            if (result != null) {
+                ordered.put(folder, result);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Stops the running walks and completes the operation as cancelled
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        for (PermissionWalker.Control control : controls.values()) {
+            control.cancel();
+        }
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    PermissionWalker.Control control(String folder) {
+        return controls.get(folder);
+    }
+
+    void finish(String folder, Status status, PermissionWalker.WalkResult walk, String error) {
+        synchronized (this) {
+            results.put(folder, new FolderResult(folder, status, walk, error));
+        }
+        finished.incrementAndGet();
+    }
+
+    /**
+     * Outcome of one folder
+     */
+    public static final class FolderResult {
+        private final String folder;
+        private final Status status;
+        private final PermissionWalker.WalkResult walk;
+        private final String error;
+
+        FolderResult(String folder, Status status, PermissionWalker.WalkResult walk, String error) {
+            this.folder = folder;
+            this.status = status;
+            this.walk = walk;
+            this.error = error;
+        }
+
+        public String getFolder() {
+            return folder;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Gets the counts of the walk, or null if the folder was not walked to the end
+         */
+        public PermissionWalker.WalkResult getWalk() {
+            return walk;
+        }
+
+        /**
+         * Gets why the folder failed or was cancelled, or null
+         */
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * Outcome of the whole operation
+     */
+    public static final class Result {
+        private final Map<String, FolderResult> folders;
+        private final long elapsedNanos;
+
+        Result(Map<String, FolderResult> folders, long elapsedNanos) {
+            this.folders = Collections.unmodifiableMap(folders);
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Gets the outcome of each folder, in the order the folders were given
+         */
+        public Map<String, FolderResult> getFolders() {
+            return folders;
+        }
+
+        /**
+         * Gets the number of folders that ended in the given state
+         */
+        public int count(Status status) {
+            int count = 0;
+            for (FolderResult folder : folders.values()) {
+                if (folder.getStatus() == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Checks if no folder failed or was cancelled
+         */
+        public boolean isSuccess() {
+            return count(Status.FAILED) == 0 && count(Status.CANCELLED) == 0;
+        }
+
+        /**
+         * Gets the total number of entries walked
+         */
+        public long getEntries() {
+            long entries = 0;
+            for (FolderResult folder : folders.values()) {
+                if (folder.getWalk() != null) {
+                    entries += folder.getWalk().getEntries();
+                }
+            }
+            return entries;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.canyonetcie;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of permission changes and the commands that caused them.
+ *
+ * Records are written into memory-mapped segment files of a fixed size; a
+ * record that does not fit starts a new segment. Opening the log continues
+ * after the last record of the newest segment, and closing it truncates the
+ * segment to what was written, so restarts do not leave mostly empty files
+ * behind. The oldest segments are deleted once all of them together exceed
+ * the retention limit. Appending only copies bytes
+ * into the mapping, so it never waits for the disk. A background thread
+ * forces the current segment to disk once per commit interval, or as soon as
+ * {@link #sync()} asks for it; callers that sync while a commit is in
+ * progress all wait for the next one, so they share a single fsync.
+ *
+ * Each segment starts with a magic number and version. Each record is its
+ * body length and CRC-32 followed by the body; the length is written last, so
+ * a record cut short by a crash reads as the end of the segment.
+ */
+public class AuditLog implements Closeable {
+
+    static final int MAGIC = 0x5043414c;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER = 8;
+    static final int RECORD_HEADER = 8;
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_STRING = 0xffff;
+    static final long MIN_SEGMENT_BYTES = 2 * (RECORD_HEADER + 13 + 2 * (2 + MAX_STRING)) + SEGMENT_HEADER;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long commitIntervalMillis;
+    private final String actor;
+    private final Object commitLock = new Object();
+    private final Thread committer;
+    private MappedByteBuffer segment;
+    private Path segmentFile;
+    private long segmentNumber;
+    private long appended;
+    private long durable;
+    private long commits;
+    private boolean syncRequested;
+    private volatile boolean closed;
+
+    private AuditLog(Path directory, long segmentBytes, long retentionBytes, long commitIntervalMillis, String actor) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.commitIntervalMillis = commitIntervalMillis;
+        this.actor = actor;
+        this.committer = new Thread(this::runCommits, "audit-commit");
+        this.committer.setDaemon(true);
+    }
+
+    /**
+     * Opens the log in the directory without a retention limit
+     */
+    public static AuditLog open(Path directory, long segmentBytes, long commitIntervalMillis, String actor) throws IOException {
+        return open(directory, segmentBytes, Long.MAX_VALUE, commitIntervalMillis, actor);
+    }
+
+    /**
+     * Opens the log in the directory, appending to the newest segment if it has room. Records without an
+     * actor of their own are attributed to the given one
+     */
+    public static AuditLog open(Path directory, long segmentBytes, long retentionBytes, long commitIntervalMillis,
+                                String actor) throws IOException {
+        if (segmentBytes < MIN_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Audit segments must be at least " + MIN_SEGMENT_BYTES + " bytes");
+        }
+        Files.createDirectories(directory);
+        AuditLog log = new AuditLog(directory, segmentBytes, retentionBytes, commitIntervalMillis, actor);
+        List<Path> existing = segments(directory);
+        if (!existing.isEmpty()) {
+            Path last = existing.get(existing.size() - 1);
+            log.segmentNumber = segmentNumber(last);
+            log.segment = log.reopen(last);
+        }
+        if (log.segment == null) {
+            log.segment = log.nextSegment();
+        }
+        log.enforceRetention();
+        log.committer.start();
+        return log;
+    }
+
+    /**
+     * Lists the segment files in the directory in the order they were written
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        // Fixed-width numbers sort in write order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Records an event performed by the log's actor; modes are -1 when not applicable
+     */
+    public void record(PermissionEvent.Type type, String subject, int oldMode, int newMode) throws IOException {
+        record(null, type, subject, oldMode, newMode);
+    }
+
+    /**
+     * Records an event performed by the given user, or by the log's actor if it is null
+     */
+    public void record(String actor, PermissionEvent.Type type, String subject, int oldMode, int newMode)
+            throws IOException {
+        byte[] actorBytes = truncate((actor != null ? actor : this.actor).getBytes(StandardCharsets.UTF_8));
+        byte[] subjectBytes = truncate(subject.getBytes(StandardCharsets.UTF_8));
+        int length = 1 + 8 + 2 + 2 + 2 + actorBytes.length + 2 + subjectBytes.length;
+        byte[] body = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(System.currentTimeMillis());
+        buffer.putShort((short) oldMode);
+        buffer.putShort((short) newMode);
+        buffer.putShort((short) actorBytes.length);
+        buffer.put(actorBytes);
+        buffer.putShort((short) subjectBytes.length);
+        buffer.put(subjectBytes);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Audit log is closed");
+            }
+            if (segment.remaining() < RECORD_HEADER + length) {
+                // Everything before the current segment is durable, so commits only force the current one
+                segment.force();
+                segment = nextSegment();
+                enforceRetention();
+            }
+            int position = segment.position();
+            segment.putInt(position + 4, (int) crc.getValue());
+            segment.position(position + RECORD_HEADER);
+            segment.put(body);
+            segment.putInt(position, length);
+            appended++;
+        }
+    }
+
+    /**
+     * Waits until every record appended before the call is on disk
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+        }
+        synchronized (commitLock) {
+            syncRequested = true;
+            commitLock.notifyAll();
+            while (durable < target) {
+                if (closed) {
+                    throw new IOException("Audit log is closed");
+                }
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the audit log", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of records appended since the log was opened
+     */
+    public synchronized long getRecords() {
+        return appended;
+    }
+
+    /**
+     * Gets the number of commits that forced records to disk
+     */
+    public long getCommits() {
+        synchronized (commitLock) {
+            return commits;
+        }
+    }
+
+    /**
+     * Gets the directory holding the segments
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            segment.force();
+        }
+        synchronized (commitLock) {
+            durable = appended;
+            commitLock.notifyAll();
+        }
+        committer.interrupt();
+        try {
+            // A commit still forcing the segment must finish before the file shrinks under it
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.WRITE)) {
+            channel.truncate(segment.position());
+        } catch (IOException e) {
+            // Some platforms refuse to shrink a mapped file; the next open continues after the last record
+            System.err.println("Warning: Could not truncate audit segment " + segmentFile + ": " + e.getMessage());
+        }
+    }
+
+    private MappedByteBuffer nextSegment() throws IOException {
+        segmentNumber++;
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        mapped.putInt(MAGIC);
+        mapped.putInt(VERSION);
+        segmentFile = file;
+        return mapped;
+    }
+
+    /**
+     * Maps an existing segment positioned after its last intact record, or returns null if it is
+     * damaged or was written with a larger segment size
+     */
+    private MappedByteBuffer reopen(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        long size;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            size = channel.size();
+            if (size < SEGMENT_HEADER || size > segmentBytes) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            return null;
+        }
+        int end = SEGMENT_HEADER;
+        while (true) {
+            int length = mapped.getInt(end);
+            if (length <= 0 || length > mapped.capacity() - end - RECORD_HEADER) {
+                break;
+            }
+            byte[] body = new byte[length];
+            mapped.position(end + RECORD_HEADER);
+            mapped.get(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != mapped.getInt(end + 4)) {
+                break;
+            }
+            end += RECORD_HEADER + length;
+            if (end > mapped.capacity() - RECORD_HEADER) {
+                break;
+            }
+        }
+        // A crash can leave records after a torn one; clear them so they never resurface between new ones
+        byte[] zeros = new byte[8192];
+        mapped.position(end);
+        for (long left = size - end; left > 0; left -= zeros.length) {
+            mapped.put(zeros, 0, (int) Math.min(zeros.length, left));
+        }
+        mapped.position(end);
+        segmentFile = file;
+        return mapped;
+    }
+
+    /**
+     * Deletes the oldest segments until all of them fit in the retention limit, never the current one
+     */
+    private void enforceRetention() {
+        if (retentionBytes == Long.MAX_VALUE) {
+            return;
+        }
+        try {
+            List<Path> existing = segments(directory);
+            long total = 0;
+            for (Path file : existing) {
+                total += Files.size(file);
+            }
+            for (Path file : existing) {
+                if (total <= retentionBytes || file.equals(segmentFile)) {
+                    break;
+                }
+                total -= Files.size(file);
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            System.err.println("Warning: Could not delete old audit segments: " + e.getMessage());
+        }
+    }
+
+    private void runCommits() {
+        while (!closed) {
+            synchronized (commitLock) {
+                if (!syncRequested) {
+                    try {
+                        commitLock.wait(commitIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                syncRequested = false;
+            }
+            commit();
+        }
+    }
+
+    private void commit() {
+        long target;
+        MappedByteBuffer current;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            target = appended;
+            current = segment;
+        }
+        synchronized (commitLock) {
+            if (target <= durable) {
+                return;
+            }
+        }
+        current.force();
+        synchronized (commitLock) {
+            durable = Math.max(durable, target);
+            commits++;
+            commitLock.notifyAll();
+        }
+    }
+
+    private static byte[] truncate(byte[] bytes) {
+        return bytes.length <= MAX_STRING ? bytes : Arrays.copyOf(bytes, MAX_STRING);
+    }
+}
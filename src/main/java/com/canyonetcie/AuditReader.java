@@ -0,0 +1,275 @@
+package com.canyonetcie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the records of an audit log, one segment mapping at a time.
+ *
+ * Records are decoded and filtered one by one, so memory use does not depend
+ * on the size of the log. Reading stops at the end of the written part of
+ * each segment, or at a record whose checksum does not match.
+ *
+ * Can be run on its own, for example
+ * {@code java -cp build/classes/java/main com.canyonetcie.AuditReader audit --event chmod --path /srv/data}.
+ */
+public class AuditReader {
+
+    private final Path directory;
+
+    public AuditReader(Path directory) {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: AuditReader <audit-dir> " + Filter.USAGE);
+            System.exit(2);
+        }
+        try {
+            Filter filter = Filter.parse(args, 1);
+            new AuditReader(Paths.get(args[0])).print(filter, System.out);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Prints the matching records, one per line, followed by the number printed
+     */
+    public long print(Filter filter, PrintStream out) throws IOException {
+        long printed = read(filter, record -> out.println(record));
+        out.println(printed + " records");
+        return printed;
+    }
+
+    /**
+     * Passes every record accepted by the filter to the consumer, in the order they were written,
+     * stopping after the filter's limit; returns the number of records passed
+     */
+    public long read(Filter filter, Consumer<Record> consumer) throws IOException {
+        long matched = 0;
+        for (Path segment : AuditLog.segments(directory)) {
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.remaining() < AuditLog.SEGMENT_HEADER
+                    || buffer.getInt() != AuditLog.MAGIC || buffer.getInt() != AuditLog.VERSION) {
+                System.err.println("Warning: Skipping audit segment with unknown format: " + segment);
+                continue;
+            }
+            Record record;
+            while ((record = next(buffer)) != null) {
+                if (filter.test(record)) {
+                    consumer.accept(record);
+                    if (++matched >= filter.limit) {
+                        return matched;
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Decodes the record at the buffer's position, or returns null at the end of the written records
+     */
+    private static Record next(ByteBuffer buffer) {
+        if (buffer.remaining() < AuditLog.RECORD_HEADER) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length <= 0 || length > buffer.remaining() - AuditLog.RECORD_HEADER) {
+            return null;
+        }
+        int checksum = buffer.getInt(buffer.position() + 4);
+        byte[] body = new byte[length];
+        buffer.position(buffer.position() + AuditLog.RECORD_HEADER);
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(body);
+        PermissionEvent.Type[] events = PermissionEvent.Type.values();
+        int ordinal = in.get();
+        PermissionEvent.Type event = ordinal >= 0 && ordinal < events.length ? events[ordinal] : null;
+        long timestamp = in.getLong();
+        int oldMode = in.getShort();
+        int newMode = in.getShort();
+        String actor = readString(in);
+        String subject = readString(in);
+        return new Record(event, timestamp, oldMode, newMode, actor, subject);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xffff];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One decoded audit record
+     */
+    public static final class Record {
+        private final PermissionEvent.Type event;
+        private final long timestamp;
+        private final int oldMode;
+        private final int newMode;
+        private final String actor;
+        private final String subject;
+
+        Record(PermissionEvent.Type event, long timestamp, int oldMode, int newMode, String actor, String subject) {
+            this.event = event;
+            this.timestamp = timestamp;
+            this.oldMode = oldMode;
+            this.newMode = newMode;
+            this.actor = actor;
+            this.subject = subject;
+        }
+
+        /**
+         * Gets the kind of event, or null if it was written by a newer version
+         */
+        public PermissionEvent.Type getEvent() {
+            return event;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getOldMode() {
+            return oldMode;
+        }
+
+        public int getNewMode() {
+            return newMode;
+        }
+
+        public String getActor() {
+            return actor;
+        }
+
+        /**
+         * Gets the folder or path the event applies to
+         */
+        public String getSubject() {
+            return subject;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder line = new StringBuilder();
+            line.append(Instant.ofEpochMilli(timestamp)).append(' ').append(event).append(' ')
+                    .append(actor).append(' ').append(subject);
+            if (oldMode >= 0 || newMode >= 0) {
+                line.append(' ').append(formatMode(oldMode)).append(" -> ").append(formatMode(newMode));
+            }
+            return line.toString();
+        }
+
+        private static String formatMode(int mode) {
+            return mode < 0 ? "?" : String.format("%04o", mode);
+        }
+    }
+
+    /**
+     * Selects records by time range, event, actor and the path they apply to
+     */
+    public static final class Filter implements Predicate<Record> {
+
+        static final String USAGE = "[--since <time>] [--until <time>] [--event <event>[,<event>]] "
+                + "[--user <name>] [--path <directory>] [--limit <n>]";
+
+        private long since = Long.MIN_VALUE;
+        private long until = Long.MAX_VALUE;
+        private Set<PermissionEvent.Type> events = EnumSet.allOf(PermissionEvent.Type.class);
+        private String actor;
+        private String subjectPrefix;
+        private long limit = Long.MAX_VALUE;
+
+        /**
+         * Parses filter options starting at the given argument; times are ISO-8601 instants or epoch milliseconds
+         */
+        public static Filter parse(String[] args, int from) {
+            Filter filter = new Filter();
+            for (int i = from; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i] + "; usage: " + USAGE);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--since":
+                        filter.since = parseTime(value);
+                        break;
+                    case "--until":
+                        filter.until = parseTime(value);
+                        break;
+                    case "--event":
+                        filter.events = EnumSet.noneOf(PermissionEvent.Type.class);
+                        for (String event : value.split(",")) {
+                            filter.events.add(PermissionEvent.Type.valueOf(event.trim().toUpperCase()));
+                        }
+                        break;
+                    case "--user":
+                        filter.actor = value;
+                        break;
+                    case "--path":
+                        filter.subjectPrefix = FolderIndex.normalize(value).toString();
+                        break;
+                    case "--limit":
+                        filter.limit = Long.parseLong(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i] + "; usage: " + USAGE);
+                }
+            }
+            return filter;
+        }
+
+        private static long parseTime(String value) {
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return Long.parseLong(value);
+            }
+        }
+
+        @Override
+        public boolean test(Record record) {
+            return record.timestamp >= since && record.timestamp < until
+                    && record.event != null && events.contains(record.event)
+                    && (actor == null || actor.equals(record.actor))
+                    && (subjectPrefix == null || isAtOrBelow(record.subject, subjectPrefix));
+        }
+
+        private static boolean isAtOrBelow(String subject, String directory) {
+            if (!subject.startsWith(directory)) {
+                return false;
+            }
+            return subject.length() == directory.length()
+                    || directory.endsWith(File.separator)
+                    || subject.charAt(directory.length()) == File.separatorChar;
+        }
+    }
+}
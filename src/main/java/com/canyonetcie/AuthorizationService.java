@@ -0,0 +1,124 @@
+package com.canyonetcie;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Answers whether a given user may read or write a given path.
+ * 
+ * Reads are always allowed. Writes below a controlled folder are allowed for
+ * admins and for roles granted write access to the governing folder, and for
+ * other users only while write permissions are enabled on that folder. Paths
+ * outside every controlled folder are not restricted.
+ * 
+ * Decisions are cached together with the role and folder generations they
+ * were derived from, so a decision is recomputed exactly when the user's
+ * roles, the governing folder's state or the set of folders covering the
+ * path has changed.
+ */
+public class AuthorizationService {
+
+    /**
+     * Kind of access being checked
+     */
+    public enum Operation {
+        READ,
+        WRITE
+    }
+
+    private final UserManager userManager;
+    private final PermissionManager permissionManager;
+    private final DecisionCache<Key, Decision> cache;
+
+    public AuthorizationService(UserManager userManager, PermissionManager permissionManager, Config config) {
+        this.userManager = userManager;
+        this.permissionManager = permissionManager;
+        this.cache = new DecisionCache<>(config.getDecisionCacheSize(), config.getDecisionCacheTtlSeconds(),
+                Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * Checks if the user may perform the operation on the path
+     */
+    public boolean check(String user, Path path, Operation operation) {
+        if (operation == Operation.READ) {
+            return true;
+        }
+        String normalizedUser = user.toLowerCase();
+        Path normalizedPath = path.toAbsolutePath().normalize();
+        Key key = new Key(normalizedUser, normalizedPath);
+
+        long roleGeneration = userManager.getRoleGeneration(normalizedUser);
+        Decision cached = cache.get(key);
+        if (cached != null && cached.roleGeneration == roleGeneration
+                && cached.folderGeneration == permissionManager.getFolderGeneration(cached.folder)) {
+            return cached.allowed;
+        }
+
+        // Read the generations before the state they guard so a concurrent change is never cached as current
+        String folder = permissionManager.findGoverningFolder(normalizedPath);
+        long folderGeneration = permissionManager.getFolderGeneration(folder);
+        boolean allowed = folder == null
+                || permissionManager.isWriteEnabled(folder)
+                || userManager.canWrite(normalizedUser, folder);
+        // A folder added while deciding changes which folder governs the path; do not cache that race
+        if (Objects.equals(folder, permissionManager.findGoverningFolder(normalizedPath))) {
+            cache.put(key, new Decision(allowed, folder, folderGeneration, roleGeneration));
+        }
+        return allowed;
+    }
+
+    /**
+     * Drops every cached decision
+     */
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    /**
+     * Gets the decision cache, for reporting
+     */
+    public DecisionCache<?, ?> getCache() {
+        return cache;
+    }
+
+    private static final class Key {
+        final String user;
+        final Path path;
+        final int hash;
+
+        Key(String user, Path path) {
+            this.user = user;
+            this.path = path;
+            this.hash = Objects.hash(user, path);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return user.equals(other.user) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Decision {
+        final boolean allowed;
+        final String folder;
+        final long folderGeneration;
+        final long roleGeneration;
+
+        Decision(boolean allowed, String folder, long folderGeneration, long roleGeneration) {
+            this.allowed = allowed;
+            this.folder = folder;
+            this.folderGeneration = folderGeneration;
+            this.roleGeneration = roleGeneration;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.canyonetcie;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects enable/disable commands from a batch and reduces them to the net
+ * write state per folder, so a burst of toggles results in a single apply.
+ */
+public class CommandBatch {
+
+    private final Collection<String> folders;
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private long commands;
+    private long toggles;
+    private long requestedUpdates;
+    private long appliedUpdates;
+    private long discardedUpdates;
+
+    public CommandBatch(Collection<String> folders) {
+        this.folders = folders;
+    }
+
+    /**
+     * Absorbs the command into the plan if it is a toggle of every folder, returning false for any other command
+     */
+    public boolean offer(String command) {
+        commands++;
+        String[] parts = command.trim().split("\\s+");
+        String verb = parts[0].toLowerCase();
+        // Toggles of a single folder or with a duration run on their own
+        if (parts.length > 1 || (!verb.equals("enable") && !verb.equals("disable"))) {
+            return false;
+        }
+        toggles++;
+        for (String folder : folders) {
+            pending.put(folder, verb.equals("enable"));
+            requestedUpdates++;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if toggles are waiting to be applied
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Takes the net write state per folder accumulated since the last drain
+     */
+    public Map<String, Boolean> drain() {
+        Map<String, Boolean> plan = new LinkedHashMap<>(pending);
+        pending.clear();
+        appliedUpdates += plan.size();
+        return plan;
+    }
+
+    /**
+     * Drops the pending toggles without applying them
+     */
+    public void discard() {
+        discardedUpdates += pending.size();
+        pending.clear();
+    }
+
+    public long getCommands() {
+        return commands;
+    }
+
+    public long getToggles() {
+        return toggles;
+    }
+
+    /**
+     * Gets the number of folder updates the toggles asked for
+     */
+    public long getRequestedUpdates() {
+        return requestedUpdates;
+    }
+
+    /**
+     * Gets the number of folder updates actually planned
+     */
+    public long getAppliedUpdates() {
+        return appliedUpdates;
+    }
+
+    /**
+     * Gets the number of folder updates elided by coalescing
+     */
+    public long getElidedUpdates() {
+        return requestedUpdates - appliedUpdates - discardedUpdates - pending.size();
+    }
+}
@@ -0,0 +1,464 @@
+package com.canyonetcie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves commands to many local clients over a single selector thread.
+ * 
+ * Binds a Unix domain socket when the runtime supports it (Java 16+) and a
+ * loopback TCP socket otherwise. Clients send one command per line and may
+ * pipeline them. Commands run one at a time on a dedicated thread, like the
+ * interactive prompt, and each gets a response frame in request order:
+ * 
+ *   &lt;sequence&gt; &lt;OK|ERR&gt; &lt;length&gt;\n&lt;length bytes of UTF-8 output&gt;
+ * 
+ * Every command runs on behalf of an authenticated caller. On the Unix
+ * socket, which is created owner-only, the caller is the peer's user as
+ * reported by the kernel (SO_PEERCRED). The TCP fallback is reachable by
+ * every local user, so it writes a random token to an owner-only file and
+ * a client must first send {@code auth <token>}, answered by frame 0; the
+ * caller is then the server's own user, since only that user (or root) can
+ * read the token. Connections that fail to authenticate are closed without
+ * running anything.
+ * 
+ * A client may have at most {@value #MAX_IN_FLIGHT} commands awaiting their
+ * responses; past that the server stops reading from it until the client
+ * has taken enough frames, so a client that pipelines without reading
+ * cannot queue unbounded work or output.
+ */
+public class CommandServer implements Closeable {
+
+    private static final int MAX_LINE = 64 * 1024;
+
+    private static final int TOKEN_BYTES = 32;
+
+    /**
+     * Most commands one connection may have queued, running or unsent before the server stops reading it
+     */
+    static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * Executes a command on behalf of the named caller, writing its output to the stream; returns false if
+     * the command failed
+     */
+    public interface CommandHandler {
+        boolean handle(String caller, String command, PrintStream out) throws IOException;
+    }
+
+    private final CommandHandler handler;
+    private final Path socketFile;
+    private final int port;
+    private final Path tokenFile;
+    private final String owner;
+    private byte[] token;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "command-executor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<Connection> writable = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SocketAddress localAddress;
+    private Thread thread;
+
+    /**
+     * Creates a server; the owner is the user TCP clients holding the token act as
+     */
+    public CommandServer(CommandHandler handler, Path socketFile, int port, Path tokenFile, String owner) {
+        this.handler = handler;
+        this.socketFile = socketFile;
+        this.port = port;
+        this.tokenFile = tokenFile;
+        this.owner = owner;
+    }
+
+    /**
+     * Binds the socket and starts serving on a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = socketFile != null ? openUnixDomain(socketFile) : null;
+        if (serverChannel == null) {
+            if (tokenFile == null) {
+                throw new IOException("Unix domain sockets are not available and no server.token.file is set");
+            }
+            token = writeToken(tokenFile);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        localAddress = serverChannel.getLocalAddress();
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this::run, "command-server");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Command server listening on " + localAddress);
+    }
+
+    /**
+     * Writes a new random token to an owner-only file, replacing any earlier one
+     */
+    private static byte[] writeToken(Path file) throws IOException {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b));
+        }
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file inherits the directory's access control
+            Files.createFile(file);
+        }
+        Files.write(file, (hex + "\n").getBytes(StandardCharsets.UTF_8));
+        return hex.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the bound address, a Unix domain socket path or a loopback TCP address
+     */
+    public SocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /**
+     * Blocks until the server is closed
+     */
+    public void join() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        executor.shutdownNow();
+        if (selector != null) {
+            selector.close();
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (socketFile != null && localAddress != null && !(localAddress instanceof InetSocketAddress)) {
+            Files.deleteIfExists(socketFile);
+        }
+        if (token != null) {
+            Files.deleteIfExists(tokenFile);
+        }
+    }
+
+    /**
+     * Opens a Unix domain server socket through reflection so the code still runs on Java 11,
+     * returning null if the runtime does not support it
+     */
+    private static ServerSocketChannel openUnixDomain(Path socketFile) throws IOException {
+        ProtocolFamily unix;
+        SocketAddress address;
+        try {
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, socketFile);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            return null;
+        }
+        ServerSocketChannel channel;
+        try {
+            channel = (ServerSocketChannel) ServerSocketChannel.class
+                    .getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+        Files.deleteIfExists(socketFile);
+        channel.bind(address);
+        try {
+            Files.setPosixFilePermissions(socketFile, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system, keep the default mode
+        }
+        return channel;
+    }
+
+    private void run() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Connection ready;
+                while ((ready = writable.poll()) != null) {
+                    if (ready.key.isValid()) {
+                        ready.key.interestOps(ready.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            ((Connection) key.attachment()).read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            ((Connection) key.attachment()).write();
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException | java.nio.channels.ClosedSelectorException e) {
+            // Server closed
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        String caller = null;
+        if (token == null) {
+            caller = peerUser(channel);
+            if (caller == null) {
+                System.err.println("Warning: Closed a command server connection whose peer could not be identified");
+                channel.close();
+                return;
+            }
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key, channel, caller));
+    }
+
+    /**
+     * Gets the user on the other end of a Unix domain socket through SO_PEERCRED (Java 16+), or null
+     */
+    private static String peerUser(SocketChannel channel) {
+        try {
+            SocketOption<?> peerCredentials = (SocketOption<?>) Class.forName("jdk.net.ExtendedSocketOptions")
+                    .getField("SO_PEERCRED").get(null);
+            Object principal = channel.getOption(peerCredentials);
+            UserPrincipal user = (UserPrincipal) principal.getClass().getMethod("user").invoke(principal);
+            return user.getName();
+        } catch (ReflectiveOperationException | ClassCastException | UnsupportedOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Per-client state: the partial request line, queued responses and sequence numbers
+     */
+    private final class Connection {
+        private final SelectionKey key;
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final Queue<Frame> responses = new ConcurrentLinkedQueue<>();
+        private final Queue<Frame> sending = new ArrayDeque<>();
+        private String caller;
+        private long submitted;
+        private volatile long completed;
+        private long sent;
+        private boolean paused;
+        private boolean inputClosed;
+        private boolean rejected;
+
+        Connection(SelectionKey key, SocketChannel channel, String caller) {
+            this.key = key;
+            this.channel = channel;
+            this.caller = caller;
+        }
+
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                closeIfDone();
+                return;
+            }
+            process();
+        }
+
+        /**
+         * Handles the buffered request bytes, stopping with the rest kept for later once the connection has
+         * {@link #MAX_IN_FLIGHT} commands outstanding
+         */
+        private void process() throws IOException {
+            readBuffer.flip();
+            try {
+                while (readBuffer.hasRemaining() && !rejected) {
+                    if (submitted - sent >= MAX_IN_FLIGHT) {
+                        paused = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        return;
+                    }
+                    byte b = readBuffer.get();
+                    if (b == '\n') {
+                        String request = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+                        line.reset();
+                        if (caller == null) {
+                            authenticate(request);
+                        } else {
+                            submit(request);
+                        }
+                    } else if (line.size() >= MAX_LINE) {
+                        throw new IOException("Request line too long");
+                    } else {
+                        line.write(b);
+                    }
+                }
+            } finally {
+                readBuffer.compact();
+            }
+        }
+
+        /**
+         * Picks reading back up once the client has taken enough responses to be under the limit again
+         */
+        private void resume() throws IOException {
+            if (!paused || submitted - sent >= MAX_IN_FLIGHT) {
+                return;
+            }
+            paused = false;
+            process();
+            if (!paused && !inputClosed && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Checks the token a TCP client sends as its first line; a wrong one closes the connection
+         */
+        private void authenticate(String request) {
+            String[] parts = request.split("\\s+", 2);
+            boolean ok = parts.length == 2 && parts[0].equalsIgnoreCase("auth")
+                    && MessageDigest.isEqual(token, parts[1].getBytes(StandardCharsets.UTF_8));
+            if (ok) {
+                caller = owner;
+            } else {
+                System.err.println("Warning: Rejected a command server client with a bad token");
+                rejected = true;
+                inputClosed = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            respond(0, ok, ok ? new byte[0] : "Authentication failed\n".getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void submit(String command) {
+            if (command.isEmpty()) {
+                return;
+            }
+            long sequence = ++submitted;
+            String as = caller;
+            executor.execute(() -> {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                boolean ok;
+                try (PrintStream out = new PrintStream(output, true, StandardCharsets.UTF_8)) {
+                    try {
+                        ok = handler.handle(as, command, out);
+                    } catch (IOException | RuntimeException e) {
+                        out.println("Error executing command: " + e.getMessage());
+                        ok = false;
+                    }
+                }
+                respond(sequence, ok, output.toByteArray());
+            });
+        }
+
+        private void respond(long sequence, boolean ok, byte[] payload) {
+            byte[] header = (sequence + (ok ? " OK " : " ERR ") + payload.length + "\n")
+                    .getBytes(StandardCharsets.UTF_8);
+            ByteBuffer frame = ByteBuffer.allocate(header.length + payload.length);
+            frame.put(header).put(payload).flip();
+            responses.add(new Frame(sequence, frame));
+            if (sequence > 0) {
+                completed = sequence;
+            }
+            writable.add(this);
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            Frame frame;
+            while ((frame = responses.poll()) != null) {
+                sending.add(frame);
+            }
+            while (!sending.isEmpty()) {
+                channel.write(sending.peek().bytes);
+                if (sending.peek().bytes.hasRemaining()) {
+                    return;
+                }
+                if (sending.poll().sequence > 0) {
+                    sent++;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            resume();
+            closeIfDone();
+        }
+
+        private void closeIfDone() throws IOException {
+            if (inputClosed && completed == submitted && responses.isEmpty() && sending.isEmpty()) {
+                key.cancel();
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * A response frame and the sequence number it answers
+     */
+    private static final class Frame {
+        private final long sequence;
+        private final ByteBuffer bytes;
+
+        Frame(long sequence, ByteBuffer bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package com.canyonetcie;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -11,14 +16,37 @@ import java.util.Properties;
 public class Config {
     
     private static final String CONFIG_FILE = "permissions-checker.properties";
+    private final Path configFile;
     private final Properties properties;
     
     public Config() {
+        this(Paths.get(CONFIG_FILE));
+    }
+    
+    public Config(Path configFile) {
+        this.configFile = configFile;
         this.properties = new Properties();
         loadDefaultSettings();
         loadFromFile();
     }
     
+    private Config(Path configFile, Properties properties) {
+        this.configFile = configFile;
+        this.properties = properties;
+    }
+    
+    /**
+     * Loads a configuration from the given file, failing instead of warning if it cannot be read
+     */
+    public static Config load(Path configFile) throws IOException {
+        Config config = new Config(configFile, new Properties());
+        config.loadDefaultSettings();
+        try (InputStream in = Files.newInputStream(configFile)) {
+            config.properties.load(in);
+        }
+        return config;
+    }
+    
     /**
      * Loads default configuration settings
      */
@@ -27,16 +55,58 @@ public class Config {
         properties.setProperty("app.version", "1.0.0");
         properties.setProperty("controlled.folders", "./controlled_folder1,./controlled_folder2,./data");
         properties.setProperty("admin.users", "root,admin,administrator");
+        properties.setProperty("roles", "admin");
+        properties.setProperty("role.admin.groups", "wheel,admin,sudo,root");
+        properties.setProperty("role.admin.write", "*");
+        properties.setProperty("role.admin.manage", "true");
+        properties.setProperty("default.mode.readonly", "r-xr-xr-x");
+        properties.setProperty("default.mode.readwrite", "rwxrwxrwx");
         properties.setProperty("verbose.logging", "false");
+        properties.setProperty("recursive.enforcement", "true");
+        properties.setProperty("walk.parallelism", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        properties.setProperty("manifest.file", "permissions-checker.manifest");
+        properties.setProperty("role.cache.ttl.seconds", "60");
+        properties.setProperty("users.directory", "");
+        properties.setProperty("decision.cache.size", "100000");
+        properties.setProperty("decision.cache.ttl.seconds", "300");
+        properties.setProperty("server.socket", "permissions-checker.sock");
+        properties.setProperty("server.port", "7420");
+        properties.setProperty("server.token.file", "permissions-checker.token");
+        properties.setProperty("agent.host", "127.0.0.1");
+        properties.setProperty("agent.port", "7421");
+        properties.setProperty("agent.token", "");
+        properties.setProperty("agent.connections", "16");
+        properties.setProperty("agent.read.timeout.seconds", "60");
+        properties.setProperty("agents", "");
+        properties.setProperty("agents.timeout.seconds", "30");
+        properties.setProperty("agents.parallelism", "32");
+        properties.setProperty("metrics.jmx.enabled", "true");
+        properties.setProperty("metrics.export.file", "");
+        properties.setProperty("metrics.export.interval.seconds", "15");
+        properties.setProperty("config.watch", "true");
+        properties.setProperty("audit.dir", "audit");
+        properties.setProperty("audit.segment.size.mb", "64");
+        properties.setProperty("audit.retention.mb", "1024");
+        properties.setProperty("audit.commit.interval.millis", "50");
+        properties.setProperty("events.buffer.size", "8192");
+        properties.setProperty("events.overflow", "drop");
+        properties.setProperty("events.sample.rate", "100");
+        properties.setProperty("events.block.timeout.millis", "1000");
+        properties.setProperty("init.parallelism", "8");
+        properties.setProperty("init.root.timeout.seconds", "300");
+        properties.setProperty("grants.tick.millis", "1000");
+        properties.setProperty("grants.wheel.slots", "512");
+        properties.setProperty("verify.sample.size", "1000");
+        properties.setProperty("verify.budget.millis", "2000");
+        properties.setProperty("reports.dir", "reports");
     }
     
     /**
      * Loads configuration from file if it exists
      */
     private void loadFromFile() {
-        File configFile = new File(CONFIG_FILE);
-        if (configFile.exists()) {
-            try (FileInputStream fis = new FileInputStream(configFile)) {
+        if (Files.exists(configFile)) {
+            try (InputStream fis = Files.newInputStream(configFile)) {
                 properties.load(fis);
             } catch (IOException e) {
                 System.err.println("Warning: Could not load configuration file: " + e.getMessage());
@@ -48,13 +118,20 @@ public class Config {
      * Saves current configuration to file
      */
     public void saveToFile() {
-        try (FileOutputStream fos = new FileOutputStream(CONFIG_FILE)) {
+        try (OutputStream fos = Files.newOutputStream(configFile)) {
             properties.store(fos, "Permissions Checker Configuration");
         } catch (IOException e) {
             System.err.println("Warning: Could not save configuration file: " + e.getMessage());
         }
     }
     
+    /**
+     * Gets the properties file this configuration is loaded from
+     */
+    public Path getConfigFile() {
+        return configFile;
+    }
+    
     /**
      * Gets a configuration property
      */
@@ -117,4 +194,297 @@ public class Config {
     public void setVerboseLogging(boolean verbose) {
         setProperty("verbose.logging", String.valueOf(verbose));
     }
+    
+    /**
+     * Checks if permissions are applied to every entry below a controlled folder
+     */
+    public boolean isRecursiveEnforcement() {
+        return Boolean.parseBoolean(getProperty("recursive.enforcement", "true"));
+    }
+    
+    /**
+     * Gets the number of threads used to walk controlled folder trees
+     */
+    public int getWalkParallelism() {
+        return getPositiveInt("walk.parallelism", Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Gets the apply manifest location, or null if the manifest is disabled
+     */
+    public Path getManifestFile() {
+        String file = getProperty("manifest.file", "").trim();
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+    
+    /**
+     * Gets the user directory to index for role lookups of other users: unix, the path of an
+     * LDIF file, or null for none
+     */
+    public String getUserDirectory() {
+        String directory = getProperty("users.directory", "").trim();
+        return directory.isEmpty() ? null : directory;
+    }
+    
+    /**
+     * Gets how long resolved group membership is trusted before the group files are checked again
+     */
+    public int getRoleCacheTtlSeconds() {
+        return getPositiveInt("role.cache.ttl.seconds", 60);
+    }
+    
+    /**
+     * Gets the maximum number of cached authorization decisions
+     */
+    public int getDecisionCacheSize() {
+        return getPositiveInt("decision.cache.size", 100000);
+    }
+    
+    /**
+     * Gets how long an authorization decision may be served from the cache
+     */
+    public int getDecisionCacheTtlSeconds() {
+        return getPositiveInt("decision.cache.ttl.seconds", 300);
+    }
+    
+    /**
+     * Gets the Unix domain socket path for the command server, or null to always use TCP
+     */
+    public Path getServerSocket() {
+        String socket = getProperty("server.socket", "").trim();
+        return socket.isEmpty() ? null : Paths.get(socket);
+    }
+    
+    /**
+     * Gets the loopback TCP port used when Unix domain sockets are unavailable
+     */
+    public int getServerPort() {
+        return getPositiveInt("server.port", 7420);
+    }
+    
+    /**
+     * Gets the owner-only file the TCP fallback writes its client token to, or null to refuse the fallback
+     */
+    public Path getServerTokenFile() {
+        String file = getProperty("server.token.file", "").trim();
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+    
+    /**
+     * Gets the address agent mode listens on for coordinators; loopback unless set to a reachable address
+     */
+    public String getAgentHost() {
+        return getProperty("agent.host", "127.0.0.1").trim();
+    }
+    
+    /**
+     * Gets the number of coordinator connections an agent serves at once; more are refused
+     */
+    public int getAgentConnections() {
+        return getPositiveInt("agent.connections", 16);
+    }
+    
+    /**
+     * Gets how long an agent waits for the rest of a request, or the next one, before closing the connection
+     */
+    public int getAgentReadTimeoutSeconds() {
+        return getPositiveInt("agent.read.timeout.seconds", 60);
+    }
+    
+    /**
+     * Gets the TCP port agent mode listens on, which is also the default port of listed agents
+     */
+    public int getAgentPort() {
+        return getPositiveInt("agent.port", 7421);
+    }
+    
+    /**
+     * Gets the shared secret agents and coordinators authenticate with, or an empty string if none is set
+     */
+    public String getAgentToken() {
+        return getProperty("agent.token", "").trim();
+    }
+    
+    /**
+     * Gets the agents a coordinator sends commands to
+     */
+    public List<InetSocketAddress> getAgents() {
+        return Coordinator.parseAgents(getProperty("agents", ""), getAgentPort());
+    }
+    
+    /**
+     * Gets how long a coordinator waits for an agent to connect or answer
+     */
+    public int getAgentsTimeoutSeconds() {
+        return getPositiveInt("agents.timeout.seconds", 30);
+    }
+    
+    /**
+     * Gets the number of agents a coordinator talks to at the same time
+     */
+    public int getAgentsParallelism() {
+        return getPositiveInt("agents.parallelism", 32);
+    }
+    
+    /**
+     * Checks if operation metrics are registered as JMX MBeans
+     */
+    public boolean isMetricsJmxEnabled() {
+        return Boolean.parseBoolean(getProperty("metrics.jmx.enabled", "true"));
+    }
+    
+    /**
+     * Gets the Prometheus text file metrics are written to, or null if the export is disabled
+     */
+    public Path getMetricsExportFile() {
+        String file = getProperty("metrics.export.file", "").trim();
+        return file.isEmpty() ? null : Paths.get(file);
+    }
+    
+    /**
+     * Gets how often the metrics file is rewritten
+     */
+    public int getMetricsExportIntervalSeconds() {
+        return getPositiveInt("metrics.export.interval.seconds", 15);
+    }
+    
+    /**
+     * Checks if the properties file is watched and folder and role changes are applied without a restart
+     */
+    public boolean isConfigWatchEnabled() {
+        return Boolean.parseBoolean(getProperty("config.watch", "true"));
+    }
+    
+    /**
+     * Gets the directory audit log segments are written to, or null if auditing is disabled
+     */
+    public Path getAuditDirectory() {
+        String directory = getProperty("audit.dir", "").trim();
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
+    
+    /**
+     * Gets the size of each audit log segment file in bytes
+     */
+    public long getAuditSegmentBytes() {
+        return getPositiveInt("audit.segment.size.mb", 64) * 1024L * 1024L;
+    }
+    
+    /**
+     * Gets the total size of audit log segments kept before the oldest are deleted, in bytes
+     */
+    public long getAuditRetentionBytes() {
+        return getPositiveInt("audit.retention.mb", 1024) * 1024L * 1024L;
+    }
+    
+    /**
+     * Gets the longest time an audit record may wait before it is forced to disk
+     */
+    public int getAuditCommitIntervalMillis() {
+        return getPositiveInt("audit.commit.interval.millis", 50);
+    }
+    
+    /**
+     * Gets the number of events the event bus buffers for slow listeners
+     */
+    public int getEventBufferSize() {
+        return getPositiveInt("events.buffer.size", 8192);
+    }
+    
+    /**
+     * Gets what publishers do when the event buffer is full
+     */
+    public EventBus.Overflow getEventOverflow() {
+        String value = getProperty("events.overflow", "drop");
+        try {
+            return EventBus.Overflow.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: Invalid value for events.overflow: " + value);
+            return EventBus.Overflow.DROP;
+        }
+    }
+    
+    /**
+     * Gets how many events the sample policy sees for each one it keeps once the buffer is half full
+     */
+    public int getEventSampleRate() {
+        return getPositiveInt("events.sample.rate", 100);
+    }
+    
+    /**
+     * Gets the longest time the block policy makes a publisher wait for a free slot
+     */
+    public int getEventBlockTimeoutMillis() {
+        return getPositiveInt("events.block.timeout.millis", 1000);
+    }
+    
+    /**
+     * Gets the number of controlled folders created and locked down at the same time during startup
+     */
+    public int getInitParallelism() {
+        return getPositiveInt("init.parallelism", 8);
+    }
+    
+    /**
+     * Gets how long a single controlled folder may take to initialize before it is given up on
+     */
+    public int getInitRootTimeoutSeconds() {
+        return getPositiveInt("init.root.timeout.seconds", 300);
+    }
+    
+    /**
+     * Gets the tick length of the timed grant wheel; grants expiring in the same tick are revoked together
+     */
+    public int getGrantTickMillis() {
+        return getPositiveInt("grants.tick.millis", 1000);
+    }
+    
+    /**
+     * Gets the number of slots in the timed grant wheel
+     */
+    public int getGrantWheelSlots() {
+        return getPositiveInt("grants.wheel.slots", 512);
+    }
+    
+    /**
+     * Gets how many entries status --verify checks at most
+     */
+    public int getVerifySampleSize() {
+        return getPositiveInt("verify.sample.size", 1000);
+    }
+    
+    /**
+     * Gets how long status --verify may spend finding and checking its sample
+     */
+    public int getVerifyBudgetMillis() {
+        return getPositiveInt("verify.budget.millis", 2000);
+    }
+    
+    /**
+     * Gets the directory plan and inventory files are written to, or null to refuse writing them
+     */
+    public Path getReportsDirectory() {
+        String directory = getProperty("reports.dir", "").trim();
+        return directory.isEmpty() ? null : Paths.get(directory);
+    }
+    
+    /**
+     * Gets a positive integer property, falling back to the default if it is missing or invalid
+     */
+    private int getPositiveInt(String key, int defaultValue) {
+        String value = getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the warning below
+        }
+        System.err.println("Warning: Invalid value for " + key + ": " + value);
+        return defaultValue;
+    }
 }
@@ -0,0 +1,158 @@
+package com.canyonetcie;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/**
+ * Watches the properties file and publishes a new policy whenever it changes.
+ *
+ * Each change is loaded into a fresh configuration and compiled; a file that
+ * cannot be read or that has any invalid setting is rejected and the current
+ * policy stays in force. Accepted policies are swapped in through an atomic
+ * reference, so readers never block, and the listener is then given the old
+ * and new policy so it can apply only the difference.
+ */
+public class ConfigWatcher implements Closeable {
+
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path file;
+    private final AtomicReference<PolicyTable> policy;
+    private final BiConsumer<PolicyTable, PolicyTable> listener;
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private WatchService watchService;
+    private Thread thread;
+
+    /**
+     * Creates a watcher for the file; the listener is called with the previous and the new policy after each swap
+     */
+    public ConfigWatcher(Path file, PolicyTable initial, BiConsumer<PolicyTable, PolicyTable> listener) {
+        this.file = file.toAbsolutePath().normalize();
+        this.policy = new AtomicReference<>(initial);
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching the directory containing the file on a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this::run, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the policy currently in force
+     */
+    public PolicyTable getPolicy() {
+        return policy.get();
+    }
+
+    /**
+     * Loads and validates the file, publishing the result if it is valid.
+     *
+     * Returns false if the file was rejected.
+     */
+    public synchronized boolean reload() {
+        PolicyTable next;
+        List<String> problems = new ArrayList<>();
+        try {
+            next = PolicyTable.compile(Config.load(file), problems);
+        } catch (IOException e) {
+            problems.add("Could not read " + file + ": " + e.getMessage());
+            next = null;
+        }
+        if (!problems.isEmpty()) {
+            rejections.incrementAndGet();
+            System.err.println("Rejected configuration change in " + file + ":");
+            for (String problem : problems) {
+                System.err.println("  " + problem);
+            }
+            return false;
+        }
+
+        PolicyTable previous = policy.getAndSet(next);
+        System.out.println("Reloaded configuration from " + file);
+        try {
+            listener.accept(previous, next);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to apply configuration change: " + e.getMessage());
+        }
+        reloads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the number of changes that were published and handed to the listener
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Gets the number of changes that were rejected as invalid
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = containsFile(key);
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+                // Editors often write a file in several steps; wait until the events stop
+                WatchKey more;
+                while ((more = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    containsFile(more);
+                    more.reset();
+                }
+                reload();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Watcher closed
+        }
+    }
+
+    private boolean containsFile(WatchKey key) {
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || file.getFileName().equals(event.context())) {
+                found = true;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,197 @@
+package com.canyonetcie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends a command to many agents at once and collects what each of them answered.
+ *
+ * Every agent is contacted on its own thread, up to {@code parallelism} at a
+ * time, with a connect and read timeout, so the fan-out takes about as long
+ * as the slowest agent and an unreachable or hung one only fails itself.
+ */
+public class Coordinator {
+
+    /**
+     * How a single agent handled the command
+     */
+    public enum Status {
+        OK,
+        ERR,
+        DENIED,
+        UNREACHABLE,
+        TIMEOUT,
+        FAILED
+    }
+
+    private final List<InetSocketAddress> agents;
+    private final String token;
+    private final String caller;
+    private final int timeoutMillis;
+    private final int parallelism;
+
+    /**
+     * Creates a coordinator sending commands on behalf of the given caller
+     */
+    public Coordinator(List<InetSocketAddress> agents, String token, String caller, int timeoutMillis, int parallelism) {
+        this.agents = new ArrayList<>(agents);
+        this.token = token;
+        this.caller = caller;
+        this.timeoutMillis = timeoutMillis;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Parses a comma-separated list of host:port agent addresses
+     */
+    public static List<InetSocketAddress> parseAgents(String value, int defaultPort) {
+        List<InetSocketAddress> agents = new ArrayList<>();
+        for (String agent : value.split(",")) {
+            agent = agent.trim();
+            if (agent.isEmpty()) {
+                continue;
+            }
+            int colon = agent.lastIndexOf(':');
+            if (colon > 0 && agent.indexOf(']') < colon) {
+                String host = agent.substring(0, colon).replace("[", "").replace("]", "");
+                agents.add(InetSocketAddress.createUnresolved(host, Integer.parseInt(agent.substring(colon + 1))));
+            } else {
+                agents.add(InetSocketAddress.createUnresolved(agent.replace("[", "").replace("]", ""), defaultPort));
+            }
+        }
+        return agents;
+    }
+
+    /**
+     * Sends the command to every agent and waits for all of them; results are in the order the agents were given
+     */
+    public List<NodeResult> send(String command) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, agents.size())), r -> {
+            Thread thread = new Thread(r, "coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<NodeResult>> pending = new ArrayList<>();
+            for (InetSocketAddress agent : agents) {
+                pending.add(executor.submit(() -> send(agent, command)));
+            }
+            List<NodeResult> results = new ArrayList<>();
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    results.add(pending.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new NodeResult(name(agents.get(i)), Status.FAILED, 0, String.valueOf(e.getCause())));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(new NodeResult(name(agents.get(i)), Status.FAILED, 0, "Interrupted"));
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private NodeResult send(InetSocketAddress agent, String command) {
+        long start = System.nanoTime();
+        String node = name(agent);
+        InetSocketAddress address = new InetSocketAddress(agent.getHostString(), agent.getPort());
+        if (address.isUnresolved()) {
+            return new NodeResult(node, Status.UNREACHABLE, System.nanoTime() - start, "Unknown host");
+        }
+        try (Socket socket = new Socket()) {
+            try {
+                socket.connect(address, timeoutMillis);
+            } catch (SocketTimeoutException e) {
+                return new NodeResult(node, Status.TIMEOUT, System.nanoTime() - start, "Connect timed out");
+            } catch (IOException e) {
+                return new NodeResult(node, Status.UNREACHABLE, System.nanoTime() - start, e.getMessage());
+            }
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            AgentServer.writeRequest(out, token, caller, command);
+            if (in.readInt() != AgentServer.MAGIC) {
+                throw new IOException("Not a permissions checker agent");
+            }
+            byte status = in.readByte();
+            String output = new String(AgentServer.readBytes(in, AgentServer.MAX_RESPONSE), StandardCharsets.UTF_8);
+            Status result = status == AgentServer.OK ? Status.OK : status == AgentServer.DENIED ? Status.DENIED : Status.ERR;
+            return new NodeResult(node, result, System.nanoTime() - start, output);
+        } catch (SocketTimeoutException e) {
+            return new NodeResult(node, Status.TIMEOUT, System.nanoTime() - start,
+                    "No response within " + timeoutMillis + " ms");
+        } catch (IOException e) {
+            return new NodeResult(node, Status.FAILED, System.nanoTime() - start, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private static String name(InetSocketAddress agent) {
+        return agent.getHostString() + ":" + agent.getPort();
+    }
+
+    /**
+     * The answer of one agent
+     */
+    public static final class NodeResult {
+        private final String node;
+        private final Status status;
+        private final long latencyNanos;
+        private final String output;
+
+        NodeResult(String node, Status status, long latencyNanos, String output) {
+            this.node = node;
+            this.status = status;
+            this.latencyNanos = latencyNanos;
+            this.output = output;
+        }
+
+        /**
+         * Gets the agent address as host:port
+         */
+        public String getNode() {
+            return node;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Gets the time from connecting to receiving the answer, or to the failure
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * Gets the command output, or a description of the failure
+         */
+        public String getOutput() {
+            return output;
+        }
+
+        /**
+         * Gets the last non-empty line of the output, as a one-line summary
+         */
+        public String getSummary() {
+            String[] lines = output.trim().split("\n");
+            return lines[lines.length - 1].trim();
+        }
+    }
+}
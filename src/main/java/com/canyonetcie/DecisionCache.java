@@ -0,0 +1,138 @@
+package com.canyonetcie;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache with least-recently-used and time-to-live eviction.
+ * 
+ * Keys are spread over independently locked stripes, each an access-ordered
+ * LinkedHashMap, so concurrent lookups for different keys rarely contend.
+ */
+public class DecisionCache<K, V> {
+
+    private final Stripe<K, V>[] stripes;
+    private final long ttlNanos;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public DecisionCache(int maxSize, long ttlSeconds, int stripeCount) {
+        this.stripes = newStripes(stripeCount);
+        int perStripe = Math.max(1, maxSize / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe<>(perStripe);
+        }
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Stripe<K, V>[] newStripes(int count) {
+        return (Stripe<K, V>[]) new Stripe<?, ?>[count];
+    }
+
+    /**
+     * Gets a cached value, or null if it is absent or expired
+     */
+    public V get(K key) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            Entry<V> entry = stripe.map.get(key);
+            if (entry != null && System.nanoTime() - entry.createdAt < ttlNanos) {
+                hits.increment();
+                return entry.value;
+            }
+            if (entry != null) {
+                stripe.map.remove(key);
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Caches a value, evicting the least recently used entry of its stripe if full
+     */
+    public void put(K key, V value) {
+        Stripe<K, V> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            stripe.map.put(key, new Entry<>(value, System.nanoTime()));
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every cached value
+     */
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                stripe.map.clear();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of cached values
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.map.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private Stripe<K, V> stripeFor(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[Math.floorMod(hash, stripes.length)];
+    }
+
+    private static final class Stripe<K, V> {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<K, Entry<V>> map;
+
+        Stripe(int capacity) {
+            this.map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long createdAt;
+
+        Entry(V value, long createdAt) {
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+}
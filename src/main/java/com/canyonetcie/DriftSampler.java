@@ -0,0 +1,374 @@
+package com.canyonetcie;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Estimates the share of controlled entries whose mode has drifted from
+ * policy by checking a random sample of them within a time budget.
+ *
+ * The first half of the budget finds entries: directories are expanded in
+ * random order, so a walk cut short still draws from all over the tree
+ * rather than only its top, and every entry found is offered to a fixed-size
+ * reservoir. Where the apply manifest shows a directory unchanged since its
+ * last apply, its recorded subdirectories tell directories from other
+ * entries, so it is listed without a stat per entry. The rest of the budget
+ * stats the sampled entries and compares their modes with what an apply
+ * would give them.
+ */
+public class DriftSampler {
+
+    /**
+     * Normal quantile for a 95% confidence interval
+     */
+    private static final double Z = 1.96;
+
+    private final ApplyManifest manifest;
+    private final boolean recursive;
+    private final int sampleSize;
+    private final long budgetNanos;
+    private final Random random;
+
+    /**
+     * Creates a sampler; the manifest may be null. Without recursion only the folders themselves are checked
+     */
+    public DriftSampler(ApplyManifest manifest, boolean recursive, int sampleSize, long budgetNanos, Random random) {
+        this.manifest = manifest;
+        this.recursive = recursive;
+        this.sampleSize = sampleSize;
+        this.budgetNanos = budgetNanos;
+        this.random = random;
+    }
+
+    /**
+     * Samples the given folders, each with the directory mode its current state calls for
+     */
+    public Result sample(Map<String, Set<PosixFilePermission>> folders) {
+        long start = System.nanoTime();
+        Discovery discovery = new Discovery(new ArrayList<>(folders.values()));
+        int index = 0;
+        for (String folder : folders.keySet()) {
+            Path root = Paths.get(folder).toAbsolutePath().normalize();
+            if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+                discovery.offer(index, root);
+                if (recursive) {
+                    discovery.frontier.add(new Pending(index, root));
+                }
+            }
+            index++;
+        }
+
+        long discoveryDeadline = start + budgetNanos / 2;
+        while (!discovery.frontier.isEmpty() && System.nanoTime() - discoveryDeadline < 0) {
+            int pick = random.nextInt(discovery.frontier.size());
+            Pending last = discovery.frontier.remove(discovery.frontier.size() - 1);
+            Pending next = pick < discovery.frontier.size() ? discovery.frontier.set(pick, last) : last;
+            discovery.expand(next, discoveryDeadline);
+        }
+        boolean complete = discovery.frontier.isEmpty() && !discovery.cutShort;
+
+        // Reservoir slots filled early are not independent of discovery order, so check them in random order
+        Collections.shuffle(discovery.reservoir, random);
+        int[] checked = new int[folders.size()];
+        int[] drifted = new int[folders.size()];
+        long deadline = start + budgetNanos;
+        for (Candidate candidate : discovery.reservoir) {
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+            PosixFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(candidate.path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                // Removed since it was found
+                continue;
+            } catch (IOException e) {
+                discovery.errors++;
+                continue;
+            }
+            if (attributes.isSymbolicLink()) {
+                continue;
+            }
+            Set<PosixFilePermission> current = attributes.permissions();
+            checked[candidate.folder]++;
+            if (!current.equals(PermissionWalker.targetPermissions(current, attributes.isDirectory(),
+                    discovery.modes.get(candidate.folder)))) {
+                drifted[candidate.folder]++;
+            }
+        }
+
+        Map<String, Estimate> estimates = new LinkedHashMap<>();
+        index = 0;
+        for (String folder : folders.keySet()) {
+            estimates.put(folder, new Estimate(discovery.seen[index], checked[index], drifted[index], complete));
+            index++;
+        }
+        return new Result(estimates, complete, discovery.errors, System.nanoTime() - start);
+    }
+
+    /**
+     * Computes a 95% Wilson score interval for a proportion; a sample of the whole population has no error
+     */
+    static double[] interval(long drifted, long checked, long population, boolean complete) {
+        if (checked == 0) {
+            return new double[] {0, 1};
+        }
+        double rate = (double) drifted / checked;
+        double n = checked;
+        if (complete && population > 1) {
+            if (checked >= population) {
+                return new double[] {rate, rate};
+            }
+            // Finite population correction, applied as a larger effective sample
+            n = n * (population - 1) / (population - checked);
+        }
+        double z2 = Z * Z;
+        double denominator = 1 + z2 / n;
+        double center = (rate + z2 / (2 * n)) / denominator;
+        double half = Z * Math.sqrt(rate * (1 - rate) / n + z2 / (4 * n * n)) / denominator;
+        return new double[] {Math.max(0, center - half), Math.min(1, center + half)};
+    }
+
+    private static final class Pending {
+        final int folder;
+        final Path directory;
+
+        Pending(int folder, Path directory) {
+            this.folder = folder;
+            this.directory = directory;
+        }
+    }
+
+    private static final class Candidate {
+        final int folder;
+        final Path path;
+
+        Candidate(int folder, Path path) {
+            this.folder = folder;
+            this.path = path;
+        }
+    }
+
+    /**
+     * State of the discovery phase: the directories still to expand and the reservoir
+     */
+    private final class Discovery {
+        final List<Set<PosixFilePermission>> modes;
+        final long[] seen;
+        final List<Pending> frontier = new ArrayList<>();
+        final List<Candidate> reservoir = new ArrayList<>();
+        long offered;
+        int errors;
+        boolean cutShort;
+
+        Discovery(List<Set<PosixFilePermission>> modes) {
+            this.modes = modes;
+            this.seen = new long[modes.size()];
+        }
+
+        /**
+         * Adds an entry to the reservoir so that every entry offered so far is equally likely to be in it
+         */
+        void offer(int folder, Path path) {
+            seen[folder]++;
+            offered++;
+            if (reservoir.size() < sampleSize) {
+                reservoir.add(new Candidate(folder, path));
+                return;
+            }
+            long slot = (long) (random.nextDouble() * offered);
+            if (slot < sampleSize) {
+                reservoir.set((int) slot, new Candidate(folder, path));
+            }
+        }
+
+        /**
+         * Lists a directory, stopping part way through once the deadline passes so that a huge
+         * directory cannot use up the time meant for checking the sample
+         */
+        void expand(Pending pending, long deadline) {
+            Set<String> subdirectories = recordedSubdirectories(pending);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(pending.directory)) {
+                for (Path child : stream) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        cutShort = true;
+                        return;
+                    }
+                    if (subdirectories != null) {
+                        // Unchanged since the last apply, so every other entry is a file or a link
+                        offer(pending.folder, child);
+                        if (subdirectories.contains(child.getFileName().toString())) {
+                            frontier.add(new Pending(pending.folder, child));
+                        }
+                        continue;
+                    }
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        errors++;
+                        continue;
+                    }
+                    if (attributes.isSymbolicLink()) {
+                        continue;
+                    }
+                    offer(pending.folder, child);
+                    if (attributes.isDirectory()) {
+                        frontier.add(new Pending(pending.folder, child));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                errors++;
+            }
+        }
+
+        private Set<String> recordedSubdirectories(Pending pending) {
+            if (manifest == null) {
+                return null;
+            }
+            try {
+                String[] recorded = manifest.unchangedSubdirectories(pending.directory,
+                        ApplyManifest.fingerprint(pending.directory), PolicyTable.mode(modes.get(pending.folder)));
+                return recorded != null ? new HashSet<>(Arrays.asList(recorded)) : null;
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Estimated drift of one folder, or of all of them together
+     */
+    public static final class Estimate {
+        private final long seen;
+        private final long checked;
+        private final long drifted;
+        private final boolean complete;
+
+        Estimate(long seen, long checked, long drifted, boolean complete) {
+            this.seen = seen;
+            this.checked = checked;
+            this.drifted = drifted;
+            this.complete = complete;
+        }
+
+        /**
+         * Gets the number of entries found, which is every entry if the walk was complete
+         */
+        public long getSeen() {
+            return seen;
+        }
+
+        /**
+         * Gets the number of sampled entries whose mode was checked
+         */
+        public long getChecked() {
+            return checked;
+        }
+
+        /**
+         * Gets the number of checked entries whose mode differs from what an apply would give them
+         */
+        public long getDrifted() {
+            return drifted;
+        }
+
+        /**
+         * Gets the share of checked entries that drifted, or 0 if none were checked
+         */
+        public double getRate() {
+            return checked == 0 ? 0 : (double) drifted / checked;
+        }
+
+        /**
+         * Gets the lower bound of the 95% confidence interval of the drift rate
+         */
+        public double getLower() {
+            return interval(drifted, checked, seen, complete)[0];
+        }
+
+        /**
+         * Gets the upper bound of the 95% confidence interval of the drift rate
+         */
+        public double getUpper() {
+            return interval(drifted, checked, seen, complete)[1];
+        }
+    }
+
+    /**
+     * Outcome of sampling all folders
+     */
+    public static final class Result {
+        private final Map<String, Estimate> folders;
+        private final Estimate total;
+        private final boolean complete;
+        private final int errors;
+        private final long elapsedNanos;
+
+        Result(Map<String, Estimate> folders, boolean complete, int errors, long elapsedNanos) {
+            this.folders = Collections.unmodifiableMap(folders);
+            long seen = 0;
+            long checked = 0;
+            long drifted = 0;
+            for (Estimate estimate : folders.values()) {
+                seen += estimate.getSeen();
+                checked += estimate.getChecked();
+                drifted += estimate.getDrifted();
+            }
+            this.total = new Estimate(seen, checked, drifted, complete);
+            this.complete = complete;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * Gets the estimate of each folder, in the order the folders were given
+         */
+        public Map<String, Estimate> getFolders() {
+            return folders;
+        }
+
+        /**
+         * Gets the estimate over all folders
+         */
+        public Estimate getTotal() {
+            return total;
+        }
+
+        /**
+         * Checks if every entry was found, rather than the walk being cut short by the budget
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Gets the number of entries and directories that could not be read
+         */
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+}
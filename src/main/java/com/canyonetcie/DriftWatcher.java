@@ -0,0 +1,251 @@
+package com.canyonetcie;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Watches every directory under the controlled folders and re-applies the
+ * expected mode to entries that are created or whose attributes change.
+ * 
+ * The parent of each controlled folder is watched as well so that changes to
+ * the folder itself are seen. When the watch queue overflows, only the
+ * affected directory and any subdirectories not yet being watched are
+ * rescanned.
+ */
+public class DriftWatcher implements Closeable {
+
+    private final PermissionWalker walker;
+    private final Function<String, Set<PosixFilePermission>> targetMode;
+    private final Map<Path, String> roots = new LinkedHashMap<>();
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet();
+    private final WatchService watchService;
+    private final AtomicLong corrected = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private Thread thread;
+
+    /**
+     * Creates a watcher for the given folders; the function gives the directory mode a folder should currently have
+     */
+    public DriftWatcher(PermissionWalker walker, Collection<String> folders,
+                        Function<String, Set<PosixFilePermission>> targetMode) throws IOException {
+        this.walker = walker;
+        this.targetMode = targetMode;
+        for (String folder : folders) {
+            roots.put(Paths.get(folder).toAbsolutePath().normalize(), folder);
+        }
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Registers all directories and starts processing events on a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+        for (Path root : roots.keySet()) {
+            if (root.getParent() != null) {
+                register(root.getParent());
+            }
+            registerTree(root);
+        }
+        thread = new Thread(this::run, "drift-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Watching " + watched.size() + " directories for permission drift");
+    }
+
+    /**
+     * Blocks until the watcher is closed
+     */
+    public void join() throws InterruptedException {
+        Thread current;
+        synchronized (this) {
+            current = thread;
+        }
+        if (current != null) {
+            current.join();
+        }
+    }
+
+    /**
+     * Gets the number of entries whose mode was corrected
+     */
+    public long getCorrectedEntries() {
+        return corrected.get();
+    }
+
+    /**
+     * Gets the number of watch-queue overflows handled by a rescan
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Gets the number of directories currently watched
+     */
+    public int getWatchedDirectories() {
+        return watched.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = directories.get(key);
+                if (directory != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        handle(directory, event);
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                    if (directory != null) {
+                        watched.remove(directory);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Watcher closed
+        }
+    }
+
+    private void handle(Path directory, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            overflows.incrementAndGet();
+            rescan(directory);
+            return;
+        }
+        Path entry = directory.resolve((Path) event.context());
+        String folder = folderFor(entry);
+        if (folder == null) {
+            return;
+        }
+        Set<PosixFilePermission> target = targetMode.apply(folder);
+        try {
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                // Register before applying so entries created meanwhile are not missed
+                registerTree(entry);
+                report(entry, walker.apply(entry, new PermissionWalker.Options(target)));
+            } else if (event.kind() != StandardWatchEventKinds.ENTRY_DELETE
+                    && !Files.isSymbolicLink(entry)) {
+                report(entry, walker.apply(entry, new PermissionWalker.Options(target).recursive(false)));
+            }
+        } catch (IOException e) {
+            // The entry was removed before it could be corrected
+        }
+    }
+
+    /**
+     * Re-applies a directory and its direct entries after lost events, walking only subdirectories not yet watched
+     */
+    private void rescan(Path directory) {
+        String folder = folderFor(directory);
+        if (folder == null) {
+            for (Map.Entry<Path, String> root : roots.entrySet()) {
+                if (directory.equals(root.getKey().getParent())) {
+                    rescanEntry(root.getKey(), targetMode.apply(root.getValue()));
+                }
+            }
+            return;
+        }
+        Set<PosixFilePermission> target = targetMode.apply(folder);
+        rescanEntry(directory, target);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS) && !watched.contains(child)) {
+                    registerTree(child);
+                    report(child, walker.apply(child, new PermissionWalker.Options(target)));
+                } else if (!Files.isSymbolicLink(child)) {
+                    rescanEntry(child, target);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to rescan " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private void rescanEntry(Path entry, Set<PosixFilePermission> target) {
+        try {
+            report(entry, walker.apply(entry, new PermissionWalker.Options(target).recursive(false)));
+        } catch (IOException e) {
+            // The entry was removed before it could be corrected
+        }
+    }
+
+    private void report(Path entry, PermissionWalker.WalkResult result) {
+        if (result.getApplied() > 0) {
+            corrected.addAndGet(result.getApplied());
+            System.out.println("Corrected permission drift on " + result.getApplied() + " entries at " + entry);
+        }
+        if (result.getFailures() > 0) {
+            System.err.println("Failed to correct " + result.getFailures() + " entries at " + entry);
+        }
+    }
+
+    /**
+     * Finds the innermost controlled folder containing the entry, or null if it is outside all of them
+     */
+    String folderFor(Path entry) {
+        Path innermost = null;
+        for (Path root : roots.keySet()) {
+            if (entry.startsWith(root) && (innermost == null || root.getNameCount() > innermost.getNameCount())) {
+                innermost = root;
+            }
+        }
+        return innermost != null ? roots.get(innermost) : null;
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void register(Path directory) throws IOException {
+        if (watched.add(directory)) {
+            WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            directories.put(key, directory);
+        }
+    }
+}
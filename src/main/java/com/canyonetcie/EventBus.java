@@ -0,0 +1,282 @@
+package com.canyonetcie;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers permission events to listeners on a background thread.
+ *
+ * Events are copied into the preallocated slots of a bounded ring buffer, so
+ * publishing allocates nothing and never runs listener code. A single
+ * dispatch thread takes every event published so far in one step, delivers
+ * them in order to each listener and only then frees their slots.
+ *
+ * The overflow policy decides what a publisher does when listeners fall
+ * behind. DROP discards new events while the buffer is full. BLOCK waits for
+ * a free slot, but no longer than the block timeout and not past an
+ * interrupt, then discards the event. SAMPLE never waits: once the buffer is
+ * half full it keeps one in every {@code sampleRate} new events and discards
+ * the rest, so a slow listener still sees a spread of events, and it drops
+ * everything while the buffer is full. Publishers are the permission walker's
+ * threads, so only BLOCK can slow an apply down.
+ */
+public class EventBus implements Closeable {
+
+    /**
+     * What a publisher does when the buffer is full
+     */
+    public enum Overflow {
+        DROP,
+        BLOCK,
+        SAMPLE
+    }
+
+    private final PermissionEvent[] slots;
+    private final int mask;
+    private final Overflow overflow;
+    private final int sampleRate;
+    private final long blockTimeoutNanos;
+    private final List<PermissionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong listenerFailures = new AtomicLong();
+    private long head;
+    private long tail;
+    private long sampled;
+    private boolean closed;
+    private Thread dispatcher;
+
+    /**
+     * Creates a bus whose buffer holds the given number of events, rounded up to a power of two, and
+     * whose BLOCK policy waits up to a second
+     */
+    public EventBus(int capacity, Overflow overflow, int sampleRate) {
+        this(capacity, overflow, sampleRate, 1000);
+    }
+
+    /**
+     * Creates a bus whose BLOCK policy waits at most the given time for a free slot
+     */
+    public EventBus(int capacity, Overflow overflow, int sampleRate, long blockTimeoutMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new PermissionEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new PermissionEvent();
+        }
+        this.mask = size - 1;
+        this.overflow = overflow;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    /**
+     * Adds a listener, starting the dispatch thread on first use
+     */
+    public void subscribe(PermissionListener listener) {
+        listeners.add(listener);
+        lock.lock();
+        try {
+            if (dispatcher == null && !closed) {
+                dispatcher = new Thread(this::dispatch, "event-dispatch");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a listener; events already published may still reach it
+     */
+    public void unsubscribe(PermissionListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Checks if anyone is listening, so publishers can skip building events
+     */
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Publishes an event, applying the overflow policy if the buffer is full.
+     *
+     * Returns false if the event was discarded.
+     */
+    public boolean publish(PermissionEvent.Type type, String subject, int oldMode, int newMode) {
+        if (listeners.isEmpty()) {
+            return false;
+        }
+        long timestamp = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (overflow == Overflow.SAMPLE && tail - head >= slots.length / 2
+                    && (tail - head == slots.length || sampled++ % sampleRate != 0)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (tail - head == slots.length) {
+                if (overflow != Overflow.BLOCK) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                long remaining = blockTimeoutNanos;
+                while (tail - head == slots.length && !closed) {
+                    if (remaining <= 0) {
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                    try {
+                        remaining = notFull.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped.incrementAndGet();
+                        return false;
+                    }
+                }
+            }
+            if (closed) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            slots[(int) (tail & mask)].set(type, timestamp, subject, oldMode, newMode, tail);
+            tail++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every event published before the call has been delivered, or the timeout expires.
+     *
+     * Returns false on timeout.
+     */
+    public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+        try {
+            long target = tail;
+            while (head < target && dispatcher != null && dispatcher.isAlive()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                notFull.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of events discarded by the overflow policy
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Gets the number of events handed to listeners, counting each listener separately
+     */
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    /**
+     * Gets the number of events a listener failed to handle
+     */
+    public long getListenerFailures() {
+        return listenerFailures.get();
+    }
+
+    /**
+     * Gets the number of events waiting to be delivered
+     */
+    public int getPending() {
+        lock.lock();
+        try {
+            return (int) (tail - head);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the overflow policy
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * Stops accepting events; events already published are still delivered
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            long from;
+            long to;
+            lock.lock();
+            try {
+                while (head == tail && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (head == tail) {
+                    return;
+                }
+                from = head;
+                to = tail;
+            } finally {
+                lock.unlock();
+            }
+
+            // Slots between head and tail are not reused until head moves past them
+            for (long sequence = from; sequence < to; sequence++) {
+                PermissionEvent event = slots[(int) (sequence & mask)];
+                for (PermissionListener listener : listeners) {
+                    try {
+                        listener.onEvent(event);
+                        delivered.incrementAndGet();
+                    } catch (Exception e) {
+                        if (listenerFailures.getAndIncrement() == 0) {
+                            System.err.println("Warning: Event listener failed: " + e);
+                        }
+                    }
+                }
+                event.clear();
+            }
+
+            lock.lock();
+            try {
+                head = to;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.canyonetcie;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of the controlled folders and their write state.
+ * 
+ * Folders are stored in a trie keyed by normalized path components, so the
+ * innermost folder covering a path is found in time proportional to the
+ * path's depth. Each folder has a small integer id and its state is one bit
+ * of a BitSet, with a maintained count of enabled folders.
+ * 
+ * The index is copy-on-write: readers use the current snapshot without
+ * locking, and each change publishes a new snapshot.
+ */
+public class FolderIndex {
+
+    private final Object lock = new Object();
+    private volatile Snapshot snapshot = new Snapshot(new Node(), new String[0], new Path[0],
+            Collections.emptyMap(), new BitSet(), 0, 0);
+
+    /**
+     * Adds a folder, returning false if a folder with the same normalized path is already present
+     */
+    public boolean add(String folder) {
+        Path path = normalize(folder);
+        synchronized (lock) {
+            Snapshot current = snapshot;
+            Node existing = current.find(path);
+            if (existing != null && existing.path.equals(path)) {
+                return false;
+            }
+            int id = 0;
+            while (id < current.folders.length && current.folders[id] != null) {
+                id++;
+            }
+            String[] folders = Arrays.copyOf(current.folders, Math.max(current.folders.length, id + 1));
+            Path[] paths = Arrays.copyOf(current.paths, folders.length);
+            folders[id] = folder;
+            paths[id] = path;
+            Map<String, Integer> ids = new HashMap<>(current.ids);
+            ids.put(folder, id);
+            snapshot = new Snapshot(buildTrie(paths), folders, paths, ids, current.enabled,
+                    current.enabledCount, current.count + 1);
+            return true;
+        }
+    }
+
+    /**
+     * Removes a folder, returning false if it was not present
+     */
+    public boolean remove(String folder) {
+        synchronized (lock) {
+            Snapshot current = snapshot;
+            Integer id = current.ids.get(folder);
+            if (id == null) {
+                return false;
+            }
+            String[] folders = current.folders.clone();
+            Path[] paths = current.paths.clone();
+            folders[id] = null;
+            paths[id] = null;
+            Map<String, Integer> ids = new HashMap<>(current.ids);
+            ids.remove(folder);
+            BitSet enabled = (BitSet) current.enabled.clone();
+            int enabledCount = current.enabledCount - (enabled.get(id) ? 1 : 0);
+            enabled.clear(id);
+            snapshot = new Snapshot(buildTrie(paths), folders, paths, ids, enabled, enabledCount, current.count - 1);
+            return true;
+        }
+    }
+
+    /**
+     * Records the write state of a folder, returning the previous state or null if the folder is unknown
+     */
+    public Boolean setWriteEnabled(String folder, boolean writeEnabled) {
+        synchronized (lock) {
+            Snapshot current = snapshot;
+            Integer id = current.ids.get(folder);
+            if (id == null) {
+                return null;
+            }
+            boolean previous = current.enabled.get(id);
+            if (previous != writeEnabled) {
+                BitSet enabled = (BitSet) current.enabled.clone();
+                enabled.set(id, writeEnabled);
+                snapshot = new Snapshot(current.root, current.folders, current.paths, current.ids, enabled,
+                        current.enabledCount + (writeEnabled ? 1 : -1), current.count);
+            }
+            return previous;
+        }
+    }
+
+    /**
+     * Checks if write permissions are enabled on a folder
+     */
+    public boolean isWriteEnabled(String folder) {
+        Snapshot current = snapshot;
+        Integer id = current.ids.get(folder);
+        return id != null && current.enabled.get(id);
+    }
+
+    /**
+     * Checks if write permissions are enabled on every folder
+     */
+    public boolean allWriteEnabled() {
+        Snapshot current = snapshot;
+        return current.enabledCount == current.count;
+    }
+
+    /**
+     * Finds the innermost folder containing the path, or null if no folder covers it
+     */
+    public String findGoverningFolder(Path path) {
+        Snapshot current = snapshot;
+        Node node = current.find(path.toAbsolutePath().normalize());
+        return node != null ? current.folders[node.folderId] : null;
+    }
+
+    /**
+     * Gets the folders in the order they were added
+     */
+    public Set<String> getFolders() {
+        Set<String> folders = new LinkedHashSet<>();
+        for (String folder : snapshot.folders) {
+            if (folder != null) {
+                folders.add(folder);
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * Gets the number of folders
+     */
+    public int size() {
+        return snapshot.count;
+    }
+
+    static Path normalize(String folder) {
+        return Paths.get(folder).toAbsolutePath().normalize();
+    }
+
+    private static Node buildTrie(Path[] paths) {
+        Node root = new Node();
+        for (int id = 0; id < paths.length; id++) {
+            if (paths[id] == null) {
+                continue;
+            }
+            Node node = root.children.computeIfAbsent(String.valueOf(paths[id].getRoot()), c -> new Node());
+            for (Path component : paths[id]) {
+                node = node.children.computeIfAbsent(component.toString(), c -> new Node());
+            }
+            node.folderId = id;
+            node.path = paths[id];
+        }
+        return root;
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>(4);
+        int folderId = -1;
+        Path path;
+    }
+
+    private static final class Snapshot {
+        final Node root;
+        final String[] folders;
+        final Path[] paths;
+        final Map<String, Integer> ids;
+        final BitSet enabled;
+        final int enabledCount;
+        final int count;
+
+        Snapshot(Node root, String[] folders, Path[] paths, Map<String, Integer> ids, BitSet enabled,
+                 int enabledCount, int count) {
+            this.root = root;
+            this.folders = folders;
+            this.paths = paths;
+            this.ids = ids;
+            this.enabled = enabled;
+            this.enabledCount = enabledCount;
+            this.count = count;
+        }
+
+        /**
+         * Walks the trie along the path and returns the deepest folder node on the way
+         */
+        Node find(Path normalized) {
+            Node node = root.children.get(String.valueOf(normalized.getRoot()));
+            Node governing = null;
+            if (node != null && node.folderId >= 0) {
+                governing = node;
+            }
+            for (int i = 0; node != null && i < normalized.getNameCount(); i++) {
+                node = node.children.get(normalized.getName(i).toString());
+                if (node != null && node.folderId >= 0) {
+                    governing = node;
+                }
+            }
+            return governing;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.canyonetcie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes an inventory of the entries under the controlled folders as CSV and in a columnar binary format.
+ *
+ * Walker threads add rows to batches of their own, and full batches are
+ * handed to a single writer thread through a bounded queue, so walkers
+ * never contend on the files and memory use is a few batches whatever the
+ * size of the tree. When the writer falls behind, walkers wait.
+ *
+ * The binary file starts with a header (magic, version) followed by blocks
+ * of up to {@link #BLOCK_ROWS} rows. Each block stores its row count and
+ * then one column at a time: entry type bytes, current modes, target modes
+ * (shorts), owner ids (ints), a violation bitmap, path end offsets (ints)
+ * and the UTF-8 path bytes. A footer holds the owner names in id order, the
+ * offset of each block and the row and violation totals; the last twelve
+ * bytes of the file are the footer offset and the magic again.
+ */
+public class Inventory implements Closeable {
+
+    static final int MAGIC = 0x50434956;
+    static final int VERSION = 1;
+    static final int BLOCK_ROWS = 65536;
+    static final int BATCH_ROWS = 1024;
+    private static final int QUEUED_BATCHES = 16;
+    private static final Batch END = new Batch();
+
+    private final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+    // Keyed by thread rather than thread-local, so nothing stays behind on the walker's long-lived threads
+    private final Map<Thread, Batch> batches = new ConcurrentHashMap<>();
+    private final BufferedWriter csv;
+    private final CountingOutputStream columnarBytes;
+    private final DataOutputStream columnar;
+    private final Thread writer;
+    private final Map<String, Integer> owners = new HashMap<>();
+    private final List<String> ownerNames = new ArrayList<>();
+    private final List<Long> blockOffsets = new ArrayList<>();
+    private final Block block = new Block();
+    private long rows;
+    private long violations;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * Creates the CSV and binary files, which must not exist yet, and starts the writer thread
+     */
+    public Inventory(Path csvFile, Path columnarFile) throws IOException {
+        this.csv = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+        try {
+            this.columnarBytes = new CountingOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(columnarFile, StandardOpenOption.CREATE_NEW), 1 << 16));
+        } catch (IOException e) {
+            csv.close();
+            Files.deleteIfExists(csvFile);
+            throw e;
+        }
+        this.columnar = new DataOutputStream(columnarBytes);
+        csv.write("path,type,mode,target,owner,violation\n");
+        columnar.writeInt(MAGIC);
+        columnar.writeInt(VERSION);
+        this.writer = new Thread(this::write, "inventory-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds an entry; may be called from many threads at once, and blocks while the writer catches up
+     */
+    public void add(Path path, BasicFileAttributes attributes, int mode, int target, boolean violation)
+            throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw failed;
+        }
+        String owner = attributes instanceof PosixFileAttributes
+                ? ((PosixFileAttributes) attributes).owner().getName() : "";
+        Thread thread = Thread.currentThread();
+        Batch batch = batches.get(thread);
+        if (batch == null) {
+            // Only this thread adds or removes its own batch
+            batch = new Batch();
+            batches.put(thread, batch);
+        }
+        batch.add(path.toString(), attributes.isDirectory() ? 'd' : 'f', mode, target, owner, violation);
+        if (batch.size == BATCH_ROWS) {
+            batches.remove(thread);
+            enqueue(batch);
+        }
+    }
+
+    /**
+     * Gets the number of entries written so far
+     */
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    /**
+     * Gets the number of entries written so far whose mode differs from their target
+     */
+    public synchronized long getViolations() {
+        return violations;
+    }
+
+    /**
+     * Writes the remaining entries and the footer and closes both files; every walk must have finished
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // Enqueueing throws once the writer has failed; the files must still be closed
+            for (Batch batch : batches.values()) {
+                enqueue(batch);
+            }
+            batches.clear();
+            enqueue(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing inventory", e);
+        } finally {
+            csv.close();
+            columnar.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void enqueue(Batch batch) throws IOException {
+        try {
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (!writer.isAlive()) {
+                    throw failure != null ? failure : new IOException("Inventory writer stopped");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing inventory", e);
+        }
+    }
+
+    private void write() {
+        try {
+            Batch batch;
+            while ((batch = queue.take()) != END) {
+                for (int i = 0; i < batch.size; i++) {
+                    writeRow(batch, i);
+                }
+            }
+            flushBlock();
+            writeFooter();
+            csv.flush();
+            columnar.flush();
+        } catch (IOException e) {
+            failure = e;
+            queue.clear();
+        } catch (InterruptedException e) {
+            failure = new IOException("Inventory writer interrupted", e);
+        }
+    }
+
+    private void writeRow(Batch batch, int i) throws IOException {
+        String path = batch.paths[i];
+        csv.write(csvField(path));
+        csv.write(',');
+        csv.write(batch.types[i]);
+        csv.write(',');
+        csv.write(formatMode(batch.modes[i]));
+        csv.write(',');
+        csv.write(formatMode(batch.targets[i]));
+        csv.write(',');
+        csv.write(csvField(batch.owners[i]));
+        csv.write(batch.violations[i] ? ",true\n" : ",false\n");
+
+        Integer owner = owners.get(batch.owners[i]);
+        if (owner == null) {
+            owner = ownerNames.size();
+            owners.put(batch.owners[i], owner);
+            ownerNames.add(batch.owners[i]);
+        }
+        block.add(path, batch.types[i], batch.modes[i], batch.targets[i], owner, batch.violations[i]);
+        synchronized (this) {
+            rows++;
+            if (batch.violations[i]) {
+                violations++;
+            }
+        }
+        if (block.size == BLOCK_ROWS) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (block.size == 0) {
+            return;
+        }
+        blockOffsets.add(columnarBytes.count);
+        int size = block.size;
+        columnar.writeInt(size);
+        columnar.write(block.types, 0, size);
+        for (int i = 0; i < size; i++) {
+            columnar.writeShort(block.modes[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            columnar.writeShort(block.targets[i]);
+        }
+        for (int i = 0; i < size; i++) {
+            columnar.writeInt(block.owners[i]);
+        }
+        columnar.write(block.violations, 0, (size + 7) / 8);
+        for (int i = 0; i < size; i++) {
+            columnar.writeInt(block.pathEnds[i]);
+        }
+        columnar.write(block.pathBytes, 0, block.pathLength);
+        block.clear();
+    }
+
+    private void writeFooter() throws IOException {
+        long footer = columnarBytes.count;
+        columnar.writeInt(ownerNames.size());
+        for (String owner : ownerNames) {
+            columnar.writeUTF(owner);
+        }
+        columnar.writeInt(blockOffsets.size());
+        for (long offset : blockOffsets) {
+            columnar.writeLong(offset);
+        }
+        columnar.writeLong(rows);
+        columnar.writeLong(violations);
+        columnar.writeLong(footer);
+        columnar.writeInt(MAGIC);
+    }
+
+    private static String formatMode(int mode) {
+        return mode < 0 ? "" : String.format("%04o", mode);
+    }
+
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Passes every row of a binary inventory file to the consumer, one block in memory at a time
+     */
+    public static void read(Path columnarFile, Consumer<Row> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(columnarFile, StandardOpenOption.READ)) {
+            ByteBuffer trailer = ByteBuffer.allocate(12);
+            if (channel.size() < 20 || channel.read(trailer, channel.size() - 12) != 12 || trailer.getInt(8) != MAGIC) {
+                throw new IOException("Not a complete inventory file: " + columnarFile);
+            }
+            long footer = trailer.getLong(0);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel.position(footer))));
+            List<String> owners = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                owners.add(in.readUTF());
+            }
+            long[] offsets = new long[in.readInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readLong();
+            }
+
+            for (long offset : offsets) {
+                DataInputStream blockIn = new DataInputStream(new BufferedInputStream(
+                        Channels.newInputStream(channel.position(offset)), 1 << 16));
+                int size = blockIn.readInt();
+                byte[] types = new byte[size];
+                blockIn.readFully(types);
+                int[] modes = readShorts(blockIn, size);
+                int[] targets = readShorts(blockIn, size);
+                int[] ownerIds = new int[size];
+                for (int i = 0; i < size; i++) {
+                    ownerIds[i] = blockIn.readInt();
+                }
+                byte[] violations = new byte[(size + 7) / 8];
+                blockIn.readFully(violations);
+                int[] pathEnds = new int[size];
+                for (int i = 0; i < size; i++) {
+                    pathEnds[i] = blockIn.readInt();
+                }
+                byte[] paths = new byte[size == 0 ? 0 : pathEnds[size - 1]];
+                blockIn.readFully(paths);
+                for (int i = 0; i < size; i++) {
+                    int start = i == 0 ? 0 : pathEnds[i - 1];
+                    consumer.accept(new Row(new String(paths, start, pathEnds[i] - start, StandardCharsets.UTF_8),
+                            (char) types[i], modes[i], targets[i], owners.get(ownerIds[i]),
+                            (violations[i >> 3] & (1 << (i & 7))) != 0));
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated inventory file: " + columnarFile, e);
+        }
+    }
+
+    private static int[] readShorts(DataInputStream in, int size) throws IOException {
+        int[] values = new int[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = in.readShort();
+        }
+        return values;
+    }
+
+    /**
+     * One entry of an inventory
+     */
+    public static final class Row {
+        private final String path;
+        private final char type;
+        private final int mode;
+        private final int target;
+        private final String owner;
+        private final boolean violation;
+
+        Row(String path, char type, int mode, int target, String owner, boolean violation) {
+            this.path = path;
+            this.type = type;
+            this.mode = mode;
+            this.target = target;
+            this.owner = owner;
+            this.violation = violation;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets 'd' for a directory or 'f' for anything else
+         */
+        public char getType() {
+            return type;
+        }
+
+        /**
+         * Gets the mode found, or -1 where the platform has none
+         */
+        public int getMode() {
+            return mode;
+        }
+
+        /**
+         * Gets the mode the entry should have in its folder's current state, or -1 where the platform has none
+         */
+        public int getTarget() {
+            return target;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public boolean isViolation() {
+            return violation;
+        }
+    }
+
+    /**
+     * Rows added by one walker thread and not yet handed to the writer
+     */
+    private static final class Batch {
+        final String[] paths = new String[BATCH_ROWS];
+        final char[] types = new char[BATCH_ROWS];
+        final int[] modes = new int[BATCH_ROWS];
+        final int[] targets = new int[BATCH_ROWS];
+        final String[] owners = new String[BATCH_ROWS];
+        final boolean[] violations = new boolean[BATCH_ROWS];
+        int size;
+
+        void add(String path, char type, int mode, int target, String owner, boolean violation) {
+            paths[size] = path;
+            types[size] = type;
+            modes[size] = mode;
+            targets[size] = target;
+            owners[size] = owner;
+            violations[size] = violation;
+            size++;
+        }
+    }
+
+    /**
+     * Columns of the block being written
+     */
+    private static final class Block {
+        final byte[] types = new byte[BLOCK_ROWS];
+        final short[] modes = new short[BLOCK_ROWS];
+        final short[] targets = new short[BLOCK_ROWS];
+        final int[] owners = new int[BLOCK_ROWS];
+        final byte[] violations = new byte[BLOCK_ROWS / 8];
+        final int[] pathEnds = new int[BLOCK_ROWS];
+        byte[] pathBytes = new byte[1 << 20];
+        int pathLength;
+        int size;
+
+        void add(String path, char type, int mode, int target, int owner, boolean violation) {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            if (pathLength + bytes.length > pathBytes.length) {
+                pathBytes = Arrays.copyOf(pathBytes, Math.max(pathBytes.length * 2, pathLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, pathBytes, pathLength, bytes.length);
+            pathLength += bytes.length;
+            types[size] = (byte) type;
+            modes[size] = (short) mode;
+            targets[size] = (short) target;
+            owners[size] = owner;
+            if (violation) {
+                violations[size >> 3] |= 1 << (size & 7);
+            }
+            pathEnds[size] = pathLength;
+            size++;
+        }
+
+        void clear() {
+            Arrays.fill(violations, (byte) 0);
+            size = 0;
+            pathLength = 0;
+        }
+    }
+
+    /**
+     * Tracks the offset blocks are written at
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.canyonetcie;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters and latency histograms for permission checker operations.
+ * 
+ * Each operation keeps a log-linear histogram (eight sub-buckets per power of
+ * two, so percentiles are accurate to about 12%) made of atomic counters,
+ * which keeps recording cheap enough for the per-entry chmod path. Stats can
+ * be exposed as JMX MBeans and written periodically in Prometheus text format.
+ */
+public class Metrics {
+
+    public static final String CHMOD = "chmod";
+    public static final String WALK = "walk";
+    public static final String ROLE_CHECK = "role_check";
+    public static final String ENABLE = "enable";
+    public static final String DISABLE = "disable";
+    public static final String EXPIRE = "expire";
+    public static final String INITIALIZE = "initialize";
+
+    private static final String JMX_DOMAIN = "com.canyonetcie";
+
+    private final Map<String, OperationStats> operations = new ConcurrentHashMap<>();
+    private final LongAdder entries = new LongAdder();
+    private volatile boolean jmxRegistered;
+    private ScheduledExecutorService exporter;
+
+    /**
+     * Gets the stats for an operation, creating them on first use
+     */
+    public OperationStats operation(String name) {
+        OperationStats stats = operations.get(name);
+        if (stats == null) {
+            stats = operations.computeIfAbsent(name, OperationStats::new);
+            if (jmxRegistered) {
+                registerMBean(stats);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Counts entries processed by tree walks
+     */
+    public void recordEntries(long count) {
+        entries.add(count);
+    }
+
+    /**
+     * Gets the total number of entries processed by tree walks
+     */
+    public long getEntries() {
+        return entries.sum();
+    }
+
+    /**
+     * Gets the walk throughput in entries per second of walking time
+     */
+    public double getEntriesPerSecond() {
+        long walkNanos = operation(WALK).getTotalNanos();
+        return walkNanos == 0 ? 0 : entries.sum() * 1_000_000_000.0 / walkNanos;
+    }
+
+    /**
+     * Gets a snapshot of all operations, sorted by name
+     */
+    public Map<String, OperationStats> getOperations() {
+        return new TreeMap<>(operations);
+    }
+
+    /**
+     * Registers an MBean per operation with the platform MBean server
+     */
+    public void registerMBeans() {
+        jmxRegistered = true;
+        for (OperationStats stats : operations.values()) {
+            registerMBean(stats);
+        }
+    }
+
+    private void registerMBean(OperationStats stats) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=Operation,name=" + stats.getName());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(stats, OperationStatsMBean.class), name);
+        } catch (JMException e) {
+            System.err.println("Warning: Could not register MBean for " + stats.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts writing the stats to a Prometheus text file at a fixed interval
+     */
+    public synchronized void startExport(Path file, long intervalSeconds) {
+        if (exporter != null) {
+            return;
+        }
+        exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-exporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exporter.scheduleAtFixedRate(() -> {
+            try {
+                writePrometheus(file);
+            } catch (IOException e) {
+                System.err.println("Warning: Could not write metrics file: " + e.getMessage());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic export
+     */
+    public synchronized void stopExport() {
+        if (exporter != null) {
+            exporter.shutdownNow();
+            exporter = null;
+        }
+    }
+
+    /**
+     * Writes the stats in Prometheus text exposition format, replacing the file atomically
+     */
+    public void writePrometheus(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writePrometheus(out);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    void writePrometheus(Writer out) throws IOException {
+        Map<String, OperationStats> snapshot = getOperations();
+        out.write("# HELP permissions_checker_operation_seconds Latency of permission checker operations\n");
+        out.write("# TYPE permissions_checker_operation_seconds histogram\n");
+        for (OperationStats stats : snapshot.values()) {
+            String label = "operation=\"" + stats.getName() + "\"";
+            long cumulative = 0;
+            int bucket = 0;
+            // One bucket per power of two from 1us to about 68s
+            for (int exponent = 10; exponent <= 36; exponent++) {
+                long bound = 1L << exponent;
+                while (bucket < OperationStats.BUCKETS && OperationStats.upperBound(bucket) < bound) {
+                    cumulative += stats.buckets.get(bucket++);
+                }
+                out.write("permissions_checker_operation_seconds_bucket{" + label + ",le=\"" + bound / 1e9 + "\"} " + cumulative + "\n");
+            }
+            out.write("permissions_checker_operation_seconds_bucket{" + label + ",le=\"+Inf\"} " + stats.getCount() + "\n");
+            out.write("permissions_checker_operation_seconds_sum{" + label + "} " + stats.getTotalNanos() / 1e9 + "\n");
+            out.write("permissions_checker_operation_seconds_count{" + label + "} " + stats.getCount() + "\n");
+        }
+        out.write("# HELP permissions_checker_operation_failures_total Failed permission checker operations\n");
+        out.write("# TYPE permissions_checker_operation_failures_total counter\n");
+        for (OperationStats stats : snapshot.values()) {
+            out.write("permissions_checker_operation_failures_total{operation=\"" + stats.getName() + "\"} " + stats.getFailures() + "\n");
+        }
+        out.write("# HELP permissions_checker_entries_total Entries processed by tree walks\n");
+        out.write("# TYPE permissions_checker_entries_total counter\n");
+        out.write("permissions_checker_entries_total " + getEntries() + "\n");
+    }
+
+    /**
+     * JMX view of one operation's stats
+     */
+    public interface OperationStatsMBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    /**
+     * Count, failures and latency histogram of one operation
+     */
+    public static final class OperationStats implements OperationStatsMBean {
+        static final int BUCKETS = 61 * 8;
+
+        private final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        OperationStats(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records one execution of the operation
+         */
+        public void record(long nanos, boolean success) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucketFor(value));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulate(value);
+            if (!success) {
+                failures.increment();
+            }
+        }
+
+        /**
+         * Records an execution that started at the given System.nanoTime()
+         */
+        public void recordSince(long startNanos, boolean success) {
+            record(System.nanoTime() - startNanos, success);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return percentileNanos(0.50) / 1000.0;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return percentileNanos(0.99) / 1000.0;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return percentileNanos(0.999) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+
+        /**
+         * Estimates a percentile as the upper bound of the bucket containing it
+         */
+        public long percentileNanos(double quantile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxNanos.get());
+                }
+            }
+            return maxNanos.get();
+        }
+
+        static int bucketFor(long value) {
+            if (value < 8) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) ((value >>> (exponent - 3)) & 7);
+            return (exponent - 2) * 8 + subBucket;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < 8) {
+                return bucket;
+            }
+            int exponent = bucket / 8 + 2;
+            int subBucket = bucket % 8;
+            long bound = (9L + subBucket) << (exponent - 3);
+            return bound < 0 ? Long.MAX_VALUE : bound - 1;
+        }
+    }
+}
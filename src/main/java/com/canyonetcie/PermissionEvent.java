@@ -0,0 +1,91 @@
+package com.canyonetcie;
+
+import java.time.Instant;
+
+/**
+ * A change made by the permission manager, as delivered to listeners.
+ *
+ * Events live in the slots of the event bus's ring buffer and are reused
+ * once every listener has seen them, so a listener must copy any field it
+ * wants to keep after {@link PermissionListener#onEvent} returns.
+ */
+public final class PermissionEvent {
+
+    /**
+     * Kind of change; the order is part of the audit log format
+     */
+    public enum Type {
+        INITIALIZE,
+        ENABLE,
+        DISABLE,
+        LOCK,
+        RELEASE,
+        CHMOD,
+        EXPIRE
+    }
+
+    private Type type;
+    private long timestamp;
+    private String subject;
+    private int oldMode;
+    private int newMode;
+    private long sequence;
+
+    void set(Type type, long timestamp, String subject, int oldMode, int newMode, long sequence) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.subject = subject;
+        this.oldMode = oldMode;
+        this.newMode = newMode;
+        this.sequence = sequence;
+    }
+
+    void clear() {
+        subject = null;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the time the change was made, in epoch milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the absolute path of the controlled folder or entry that changed
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * Gets the mode before the change, or -1 if unknown
+     */
+    public int getOldMode() {
+        return oldMode;
+    }
+
+    /**
+     * Gets the mode after the change, or -1 if the platform has none
+     */
+    public int getNewMode() {
+        return newMode;
+    }
+
+    /**
+     * Gets the position of the event in the order it was published
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public String toString() {
+        return Instant.ofEpochMilli(timestamp) + " " + type + " " + subject
+                + (newMode >= 0 ? String.format(" %04o", newMode) : "");
+    }
+}
@@ -0,0 +1,13 @@
+package com.canyonetcie;
+
+/**
+ * Receives permission changes on the event bus's dispatch thread.
+ */
+public interface PermissionListener {
+
+    /**
+     * Handles one event; the event object is reused afterwards and must not be kept.
+     * An exception is reported and counted, and does not stop delivery to other listeners.
+     */
+    void onEvent(PermissionEvent event) throws Exception;
+}
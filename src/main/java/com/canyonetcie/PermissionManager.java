@@ -1,13 +1,22 @@
 package com.canyonetcie;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages folder permissions based on user roles.
@@ -17,20 +26,76 @@ import java.util.*;
  */
 public class PermissionManager {
 
-    private final Map<String, Boolean> controlledFolders = new HashMap<>();
-    private final Set<String> defaultFolders;
+    private final FolderIndex controlledFolders = new FolderIndex();
+    /**
+     * Longest duration of a timed grant; longer grants are given without a duration
+     */
+    public static final Duration MAX_GRANT = Duration.ofDays(365);
+    
+    private final Map<String, AtomicLong> folderGenerations = new ConcurrentHashMap<>();
+    private final AtomicLong ungovernedGeneration = new AtomicLong();
+    private volatile PolicyTable policy;
+    private final PermissionWalker walker;
+    private final boolean recursive;
+    private final Path manifestFile;
+    private final ApplyManifest manifest;
+    private final Metrics metrics;
+    private DriftWatcher driftWatcher;
+    private volatile AuditLog auditLog;
+    private final ThreadLocal<String> actor = new ThreadLocal<>();
+    private final EventBus events;
+    private final TimingWheel<String> grantWheel;
+    private final Map<String, TimingWheel.Timeout<String>> grants = new HashMap<>();
+    private final RootRunner rootRunner;
+    private final Map<String, String> failedRoots = new ConcurrentHashMap<>();
+    private final Map<String, Long> folderEntries = new ConcurrentHashMap<>();
+    private final ExecutorService applyExecutor;
+    private ApplyOperation activeOperation;
+    private PolicyTable deferredPolicy;
     
     public PermissionManager() {
-        // Initialize with default controlled folders
-        defaultFolders = new HashSet<>();
-        defaultFolders.add("./controlled_folder1");
-        defaultFolders.add("./controlled_folder2");
-        defaultFolders.add("./data");
+        this(new Config());
+    }
+    
+    public PermissionManager(Config config) {
+        this(config, new Metrics());
+    }
+    
+    public PermissionManager(Config config, Metrics metrics) {
+        this(config, metrics, PolicyTable.compile(config));
+    }
+    
+    public PermissionManager(Config config, Metrics metrics, PolicyTable policy) {
+        this.metrics = metrics;
+        this.policy = policy;
+        this.walker = new PermissionWalker(config.getWalkParallelism(), metrics);
+        this.recursive = config.isRecursiveEnforcement();
+        this.manifestFile = config.getManifestFile();
+        this.manifest = manifestFile != null ? ApplyManifest.load(manifestFile) : null;
+        this.events = new EventBus(config.getEventBufferSize(), config.getEventOverflow(), config.getEventSampleRate(),
+                config.getEventBlockTimeoutMillis());
+        this.grantWheel = new TimingWheel<>(config.getGrantTickMillis(), config.getGrantWheelSlots(), this::expireGrants);
+        this.rootRunner = new RootRunner(config.getInitParallelism(), config.getInitRootTimeoutSeconds() * 1000L,
+                "root-init");
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(config.getInitParallelism(), config.getInitParallelism(),
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "folder-apply");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.applyExecutor = executor;
+        walker.setChangeListener(this::entryChanged);
         
-        // Create folders if they don't exist and initialize permission tracking
-        for (String folder : defaultFolders) {
-            createFolderIfNotExists(folder);
-            controlledFolders.put(folder, false); // Initially read-only
+        // Create the configured folders if they don't exist, so a hung mount only delays its own folder
+        Map<String, Exception> failures = rootRunner.run(policy.getFolders(),
+                (folder, control) -> createFolderIfNotExists(folder));
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+            System.err.println("Failed to create folder: " + failure.getKey() + " - " + failure.getValue().getMessage());
+        }
+        // Initialize permission tracking
+        for (String folder : policy.getFolders()) {
+            controlledFolders.add(folder); // Initially read-only
         }
     }
     
@@ -50,87 +115,744 @@ public class PermissionManager {
     }
 
     /**
-     * Sets all controlled folders to read-only
+     * Sets all controlled folders to read-only, skipping subtrees the manifest shows as unchanged.
+     * 
+     * Folders are processed concurrently, each with its own deadline. A folder
+     * that fails or times out does not stop the others; once every folder has
+     * been tried, the failures are reported together in the thrown exception
+     * and kept for {@link #getFailedRoots()}.
      */
-    public void setAllFoldersReadOnly() throws IOException {
-        for (String folder : controlledFolders.keySet()) {
-            setFolderReadOnly(folder, true);
-            controlledFolders.put(folder, false);
+    public synchronized void setAllFoldersReadOnly() throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            Set<String> folders = controlledFolders.getFolders();
+            for (String folder : folders) {
+                // Denied in our records even if the folder cannot be reached
+                setWriteEnabled(folder, false);
+            }
+            // The control stops a walk that outlives its deadline, so it does not race the next apply
+            Map<String, Exception> failures = rootRunner.run(folders,
+                    (folder, control) -> setFolderMode(folder, policy.getMode(folder, true), "read-only", true,
+                            PermissionEvent.Type.INITIALIZE, control));
+            failedRoots.clear();
+            for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+                failedRoots.put(failure.getKey(), String.valueOf(failure.getValue().getMessage()));
+                System.err.println("Failed to initialize " + failure.getKey() + ": " + failure.getValue().getMessage());
+            }
+            finishApply();
+            if (!failures.isEmpty()) {
+                Exception first = failures.values().iterator().next();
+                throw new IOException("Could not initialize " + failures.size() + " of " + folders.size()
+                        + " controlled folders: " + String.join(", ", failures.keySet()), first);
+            }
+            success = true;
+        } finally {
+            metrics.operation(Metrics.INITIALIZE).recordSince(start, success);
         }
     }
+    
+    /**
+     * Gets the folders the last initialization or background apply could not finish, with the reason for each
+     */
+    public Map<String, String> getFailedRoots() {
+        return new TreeMap<>(failedRoots);
+    }
 
     /**
      * Enables write permissions for non-admin users on all controlled folders
      */
-    public void enableWritePermissions() throws IOException {
-        for (String folder : controlledFolders.keySet()) {
-            setFolderReadOnly(folder, false);
-            controlledFolders.put(folder, true);
+    public synchronized void enableWritePermissions() throws IOException {
+        checkIdle();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            cancelGrants();
+            for (String folder : controlledFolders.getFolders()) {
+                applyState(folder, true, PermissionEvent.Type.ENABLE);
+                failedRoots.remove(folder);
+            }
+            finishApply();
+            success = true;
+        } finally {
+            metrics.operation(Metrics.ENABLE).recordSince(start, success);
         }
     }
 
     /**
      * Disables write permissions for non-admin users on all controlled folders
      */
-    public void disableWritePermissions() throws IOException {
-        for (String folder : controlledFolders.keySet()) {
-            setFolderReadOnly(folder, true);
-            controlledFolders.put(folder, false);
+    public synchronized void disableWritePermissions() throws IOException {
+        checkIdle();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            cancelGrants();
+            for (String folder : controlledFolders.getFolders()) {
+                applyState(folder, false, PermissionEvent.Type.DISABLE);
+                failedRoots.remove(folder);
+            }
+            finishApply();
+            success = true;
+        } finally {
+            metrics.operation(Metrics.DISABLE).recordSince(start, success);
         }
     }
     
     /**
-     * Sets the read-only status of a folder
+     * Starts enabling write permissions on all controlled folders in the background
+     */
+    public ApplyOperation enableWritePermissionsAsync() throws IOException {
+        return applyAsync(true);
+    }
+
+    /**
+     * Starts disabling write permissions on all controlled folders in the background
+     */
+    public ApplyOperation disableWritePermissionsAsync() throws IOException {
+        return applyAsync(false);
+    }
+
+    /**
+     * Starts an enable or disable that applies the folders concurrently and completes with a result
+     * per folder.
+     * 
+     * A folder that fails or is cancelled does not stop the others. It is recorded
+     * as write-disabled, since part of it may already be read-only, and listed by
+     * {@link #getFailedRoots()} until a later apply succeeds. Other enables and
+     * disables are refused until the operation completes.
      */
-    private void setFolderReadOnly(String folderPath, boolean readOnly) throws IOException {
+    private synchronized ApplyOperation applyAsync(boolean enable) throws IOException {
+        checkIdle();
+        cancelGrants();
+        Set<String> folders = new TreeSet<>(controlledFolders.getFolders());
+        long total = 0;
+        for (String folder : folders) {
+            Long entries = folderEntries.get(folder);
+            total = entries == null || total < 0 ? -1 : total + entries;
+        }
+        ApplyOperation operation = new ApplyOperation(enable, folders, total);
+        activeOperation = operation;
+
+        PermissionEvent.Type event = enable ? PermissionEvent.Type.ENABLE : PermissionEvent.Type.DISABLE;
+        String caller = actor.get();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (String folder : folders) {
+            pending.add(CompletableFuture.runAsync(() -> {
+                setActor(caller);
+                try {
+                    applyFolder(operation, folder, enable, event);
+                } finally {
+                    setActor(null);
+                }
+            }, applyExecutor));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, e) -> {
+            synchronized (this) {
+                try {
+                    finishApply();
+                } catch (IOException ex) {
+                    System.err.println("Warning: Could not sync audit log: " + ex.getMessage());
+                }
+                activeOperation = null;
+                PolicyTable deferred = deferredPolicy;
+                if (deferred != null) {
+                    deferredPolicy = null;
+                    applyPolicy(deferred);
+                }
+            }
+            ApplyOperation.Result result = new ApplyOperation.Result(operation.getFolderResults(),
+                    operation.getElapsedNanos());
+            metrics.operation(enable ? Metrics.ENABLE : Metrics.DISABLE).record(result.getElapsedNanos(),
+                    result.isSuccess());
+            operation.complete(result);
+        });
+        return operation;
+    }
+
+    private void applyFolder(ApplyOperation operation, String folder, boolean enable, PermissionEvent.Type event) {
+        PermissionWalker.Control control = operation.control(folder);
+        ApplyOperation.Status status;
+        PermissionWalker.WalkResult walk = null;
+        String error = null;
+        if (control.isCancelled()) {
+            status = ApplyOperation.Status.CANCELLED;
+            error = "Cancelled before it started";
+        } else {
+            synchronized (this) {
+                // Recorded before the walk so the drift watcher corrects towards the new mode
+                setWriteEnabled(folder, enable);
+            }
+            try {
+                walk = setFolderMode(folder, policy.getMode(folder, !enable), enable ? "read-write" : "read-only",
+                        false, event, control);
+                status = walk != null ? ApplyOperation.Status.APPLIED : ApplyOperation.Status.MISSING;
+            } catch (CancellationException e) {
+                status = ApplyOperation.Status.CANCELLED;
+                error = e.getMessage();
+            } catch (IOException | RuntimeException e) {
+                status = ApplyOperation.Status.FAILED;
+                error = e.getCause() != null ? e.getCause().getMessage() : e.getMessage();
+            }
+        }
+        synchronized (this) {
+            if (status == ApplyOperation.Status.APPLIED || status == ApplyOperation.Status.MISSING) {
+                setWriteEnabled(folder, enable);
+                failedRoots.remove(folder);
+            } else {
+                setWriteEnabled(folder, false);
+                failedRoots.put(folder, String.valueOf(error));
+            }
+        }
+        operation.finish(folder, status, walk, error);
+    }
+
+    /**
+     * Gets the enable or disable running in the background, or null if there is none
+     */
+    public synchronized ApplyOperation getActiveOperation() {
+        return activeOperation;
+    }
+
+    private void checkIdle() throws IOException {
+        if (activeOperation != null) {
+            throw new IOException("A background " + (activeOperation.isEnable() ? "enable" : "disable")
+                    + " is still running; wait for it or cancel it first");
+        }
+    }
+
+    /**
+     * Applies a planned write state to each listed folder, saving the manifest once at the end
+     */
+    public synchronized void applyFolderStates(Map<String, Boolean> writeEnabled) throws IOException {
+        checkIdle();
+        for (Map.Entry<String, Boolean> folder : writeEnabled.entrySet()) {
+            if (!controlledFolders.getFolders().contains(folder.getKey())) {
+                continue;
+            }
+            cancelGrant(folder.getKey());
+            applyState(folder.getKey(), folder.getValue(),
+                    folder.getValue() ? PermissionEvent.Type.ENABLE : PermissionEvent.Type.DISABLE);
+        }
+        finishApply();
+    }
+    
+    /**
+     * Enables write permissions on one controlled folder until the duration has passed, or indefinitely if it is null.
+     * 
+     * A new grant on a folder replaces its previous expiry.
+     */
+    public synchronized void enableWritePermissions(String folder, Duration duration) throws IOException {
+        checkIdle();
+        // Checked before anything changes, so a grant that cannot be timed never leaves the folder open
+        long delayMillis = duration != null ? grantMillis(duration) : 0;
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            cancelGrant(folder);
+            if (!controlledFolders.isWriteEnabled(folder)) {
+                applyState(folder, true, PermissionEvent.Type.ENABLE);
+                finishApply();
+            }
+            if (duration != null) {
+                grants.put(folder, grantWheel.schedule(folder, delayMillis));
+            }
+            success = true;
+        } finally {
+            metrics.operation(Metrics.ENABLE).recordSince(start, success);
+        }
+    }
+    
+    /**
+     * Gets a grant's duration in milliseconds, rejecting durations that are not positive or exceed {@link #MAX_GRANT}
+     */
+    private static long grantMillis(Duration duration) {
+        if (duration.isNegative() || duration.isZero() || duration.compareTo(MAX_GRANT) > 0) {
+            throw new IllegalArgumentException("Grant duration must be positive and at most "
+                    + MAX_GRANT.toDays() + " days: " + duration);
+        }
+        return duration.toMillis();
+    }
+    
+    /**
+     * Gets the expiry time, in epoch milliseconds, of each folder with a timed grant
+     */
+    public synchronized Map<String, Long> getGrants() {
+        Map<String, Long> expiries = new TreeMap<>();
+        for (Map.Entry<String, TimingWheel.Timeout<String>> grant : grants.entrySet()) {
+            expiries.put(grant.getKey(), grant.getValue().getDeadline());
+        }
+        return expiries;
+    }
+    
+    /**
+     * Finds the controlled folder a user-supplied path names, or null if it is not one
+     */
+    public String resolveControlledFolder(String path) {
+        Path normalized = FolderIndex.normalize(path);
+        String folder = controlledFolders.findGoverningFolder(normalized);
+        return folder != null && FolderIndex.normalize(folder).equals(normalized) ? folder : null;
+    }
+    
+    /**
+     * Revokes every grant that expired in one tick of the wheel in a single apply pass
+     */
+    private synchronized void expireGrants(List<TimingWheel.Timeout<String>> expired) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            for (TimingWheel.Timeout<String> grant : expired) {
+                String folder = grant.getKey();
+                // A grant replaced or cancelled after its timeout fired is no longer the current one
+                if (!grants.remove(folder, grant) || !controlledFolders.getFolders().contains(folder)) {
+                    continue;
+                }
+                try {
+                    // Locked in our records even if a chmod fails, so decisions stop allowing writes
+                    applyState(folder, false, PermissionEvent.Type.EXPIRE);
+                } catch (IOException e) {
+                    System.err.println("Failed to revoke expired grant on " + folder + ": " + e.getMessage());
+                }
+                System.out.println("Write grant expired: " + folder);
+            }
+            finishApply();
+            success = true;
+        } catch (IOException e) {
+            System.err.println("Warning: Could not sync audit log: " + e.getMessage());
+        } finally {
+            metrics.operation(Metrics.EXPIRE).recordSince(start, success);
+        }
+    }
+    
+    private void cancelGrant(String folder) {
+        TimingWheel.Timeout<String> grant = grants.remove(folder);
+        if (grant != null) {
+            grantWheel.cancel(grant);
+        }
+    }
+    
+    private void cancelGrants() {
+        for (TimingWheel.Timeout<String> grant : grants.values()) {
+            grantWheel.cancel(grant);
+        }
+        grants.clear();
+    }
+    
+    /**
+     * Records a folder's new state and then applies the mode it calls for, so the drift watcher corrects
+     * towards that mode during the walk instead of undoing it. A folder whose walk fails is recorded as
+     * write-disabled, since part of it may already be read-only.
+     */
+    private void applyState(String folder, boolean writeEnabled, PermissionEvent.Type event) throws IOException {
+        setWriteEnabled(folder, writeEnabled);
+        try {
+            setFolderReadOnly(folder, !writeEnabled, false, event);
+        } catch (IOException | RuntimeException e) {
+            setWriteEnabled(folder, false);
+            throw e;
+        }
+    }
+    
+    /**
+     * Records the state of a folder and invalidates decisions derived from the old state
+     */
+    private void setWriteEnabled(String folder, boolean enabled) {
+        Boolean previous = controlledFolders.setWriteEnabled(folder, enabled);
+        if (previous != null && previous != enabled) {
+            bumpGeneration(folder);
+        }
+    }
+    
+    /**
+     * Saves the manifest and waits until the audit records of the apply are on disk
+     */
+    private void finishApply() throws IOException {
+        saveManifest();
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.sync();
+        }
+    }
+    
+    /**
+     * Writes the apply manifest after a successful apply
+     */
+    private void saveManifest() {
+        if (manifest == null) {
+            return;
+        }
+        List<Path> roots = new ArrayList<>();
+        for (String folder : controlledFolders.getFolders()) {
+            roots.add(Paths.get(folder));
+        }
+        try {
+            manifest.save(manifestFile, roots);
+        } catch (IOException e) {
+            System.err.println("Warning: Could not save manifest file: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Sets the read-only status of a folder and, in recursive mode, everything below it
+     */
+    private void setFolderReadOnly(String folderPath, boolean readOnly, boolean incremental, PermissionEvent.Type event)
+            throws IOException {
+        setFolderMode(folderPath, policy.getMode(folderPath, readOnly), readOnly ? "read-only" : "read-write",
+                incremental, event, null);
+    }
+    
+    /**
+     * Applies a directory mode to a folder and, in recursive mode, everything below it; returns
+     * null if the folder does not exist
+     */
+    private PermissionWalker.WalkResult setFolderMode(String folderPath, Set<PosixFilePermission> mode, String state,
+                                                      boolean incremental, PermissionEvent.Type event,
+                                                      PermissionWalker.Control control) throws IOException {
         Path path = Paths.get(folderPath);
         
         if (!Files.exists(path)) {
             System.out.println("Warning: Folder does not exist: " + folderPath);
+            return null;
+        }
+        
+        // Recorded before the walk so the changes it makes follow the event that caused them
+        String subject = FolderIndex.normalize(folderPath).toString();
+        String caller = actor.get();
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.record(caller, event, subject, -1, PolicyTable.mode(mode));
+        }
+        events.publish(event, subject, -1, PolicyTable.mode(mode));
+        
+        PermissionWalker.Options options = new PermissionWalker.Options(mode).recursive(recursive).control(control)
+                .actor(caller);
+        PermissionWalker.WalkResult result = walker.apply(path,
+                incremental ? options.incremental(manifest) : options.manifest(manifest));
+        if (result.getUnchangedDirectories() == 0) {
+            // Full walks give the estimate of the folder's size used for progress
+            folderEntries.put(folderPath, result.getEntries());
+        }
+        if (result.getFailures() > 0) {
+            System.err.println("Failed to set permissions for " + result.getFailures() + " entries under " + folderPath);
+            throw new IOException("Permission change failed", result.getFirstFailure());
+        }
+        
+        System.out.println(String.format("Set %s to %s (%s, %d entries: %d changed, %d already correct, %.0f entries/sec)",
+                folderPath, state, PosixFilePermissions.toString(mode), result.getEntries(),
+                result.getApplied(), result.getSkipped(), result.getEntriesPerSecond()));
+        if (result.getUnchangedDirectories() > 0) {
+            System.out.println("  Skipped " + result.getUnchangedDirectories() + " unchanged directories");
+        }
+        return result;
+    }
+
+    /**
+     * Estimates how many entries under the controlled folders have drifted from the mode their folder's
+     * current state calls for, by checking a random sample of at most the given size within the budget
+     */
+    public DriftSampler.Result verify(int sampleSize, long budgetNanos) throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            throw new IOException("Verification needs POSIX file permissions");
+        }
+        Map<String, Set<PosixFilePermission>> folders = new LinkedHashMap<>();
+        for (String folder : new TreeSet<>(controlledFolders.getFolders())) {
+            folders.put(folder, policy.getMode(folder, !controlledFolders.isWriteEnabled(folder)));
+        }
+        return new DriftSampler(manifest, recursive, sampleSize, budgetNanos, new Random()).sample(folders);
+    }
+
+    /**
+     * Walks every controlled folder as enabling or disabling write permissions would, passing each
+     * entry that would change to the listener without changing anything; returns the combined counts
+     */
+    public PermissionWalker.WalkResult plan(boolean writeEnabled, PermissionWalker.PlanListener listener)
+            throws IOException {
+        PermissionWalker.WalkResult total = new PermissionWalker.WalkResult(0, 0, 0, 0, 0, 0, null);
+        for (String folder : new TreeSet<>(controlledFolders.getFolders())) {
+            Path path = Paths.get(folder);
+            if (!Files.exists(path)) {
+                System.out.println("Warning: Folder does not exist: " + folder);
+                continue;
+            }
+            Set<PosixFilePermission> mode = policy.getMode(folder, !writeEnabled);
+            total = total.plus(walker.apply(path,
+                    new PermissionWalker.Options(mode).recursive(recursive).plan(listener)));
+        }
+        return total;
+    }
+    
+    /**
+     * Adds every entry under the controlled folders to the inventory, marking entries whose mode differs
+     * from what their folder's current state calls for; returns the combined counts
+     */
+    public PermissionWalker.WalkResult inventory(Inventory inventory) throws IOException {
+        PermissionWalker.WalkResult total = new PermissionWalker.WalkResult(0, 0, 0, 0, 0, 0, null);
+        for (String folder : new TreeSet<>(controlledFolders.getFolders())) {
+            Path path = Paths.get(folder);
+            if (!Files.exists(path)) {
+                System.out.println("Warning: Folder does not exist: " + folder);
+                continue;
+            }
+            Set<PosixFilePermission> mode = policy.getMode(folder, !controlledFolders.isWriteEnabled(folder));
+            total = total.plus(walker.apply(path,
+                    new PermissionWalker.Options(mode).recursive(recursive).inventory(inventory::add)));
+        }
+        return total;
+    }
+    
+    /**
+     * Switches to a newly loaded policy, touching only what differs from the current one.
+     * 
+     * Folders that were added are locked down, folders that were removed are
+     * released by giving them their read-write mode, and folders whose modes
+     * changed are re-applied in their current state. Other folders are not walked.
+     * 
+     * While a background enable or disable runs, the policy is kept and applied
+     * once it completes, so no folder is changed or released under its walk; a
+     * later policy replaces one still waiting.
+     */
+    public synchronized void applyPolicy(PolicyTable next) {
+        if (activeOperation != null) {
+            deferredPolicy = next;
+            System.out.println("Policy change deferred until the background "
+                    + (activeOperation.isEnable() ? "enable" : "disable") + " completes");
             return;
         }
+        // The watcher was started for the old folder set, and would undo releases and mode changes meanwhile
+        boolean watching = driftWatcher != null;
+        stopWatching();
+        PolicyTable previous = policy;
+        Map<Path, String> before = byPath(previous.getFolders());
+        Map<Path, String> after = byPath(next.getFolders());
+        policy = next;
         
-        try {
-            // For Unix-like systems (including macOS)
-            if (System.getProperty("os.name").toLowerCase().contains("windows")) {
-                // Windows approach
-                File file = path.toFile();
-                file.setWritable(!readOnly);
-            } else {
-                // Unix/Linux/macOS approach using POSIX permissions
-                Set<PosixFilePermission> permissions;
-                
-                if (readOnly) {
-                    // Read and execute only (r-xr-xr-x)
-                    permissions = PosixFilePermissions.fromString("r-xr-xr-x");
-                } else {
-                    // Read, write, and execute (rwxrwxrwx)
-                    permissions = PosixFilePermissions.fromString("rwxrwxrwx");
+        for (Map.Entry<Path, String> folder : before.entrySet()) {
+            if (!after.containsKey(folder.getKey())) {
+                try {
+                    setFolderMode(folder.getValue(), previous.getMode(folder.getValue(), false), "read-write", false,
+                            PermissionEvent.Type.RELEASE, null);
+                } catch (IOException e) {
+                    System.err.println("Failed to release " + folder.getValue() + ": " + e.getMessage());
+                }
+                cancelGrant(folder.getValue());
+                removeControlledFolder(folder.getValue());
+                System.out.println("Released folder: " + folder.getValue());
+            }
+        }
+        for (Map.Entry<Path, String> folder : after.entrySet()) {
+            String existing = before.get(folder.getKey());
+            try {
+                if (existing == null) {
+                    addControlledFolder(folder.getValue());
+                    applyState(folder.getValue(), false, PermissionEvent.Type.LOCK);
+                    System.out.println("Now controlling folder: " + folder.getValue());
+                } else if (!previous.sameModes(next, existing)) {
+                    boolean enabled = controlledFolders.isWriteEnabled(existing);
+                    setFolderReadOnly(existing, !enabled, false,
+                            enabled ? PermissionEvent.Type.ENABLE : PermissionEvent.Type.DISABLE);
                 }
-                
-                Files.setPosixFilePermissions(path, permissions);
+            } catch (IOException e) {
+                System.err.println("Failed to apply " + folder.getValue() + ": " + e.getMessage());
+            }
+        }
+        try {
+            finishApply();
+        } catch (IOException e) {
+            System.err.println("Warning: Could not sync audit log: " + e.getMessage());
+        }
+        
+        if (watching) {
+            try {
+                startWatching();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not restart drift watcher: " + e.getMessage());
             }
-            
-            System.out.println("Set " + folderPath + " to " + (readOnly ? "read-only" : "read-write"));
-            
-        } catch (Exception e) {
-            System.err.println("Failed to set permissions for " + folderPath + ": " + e.getMessage());
-            throw new IOException("Permission change failed", e);
         }
     }
+    
+    private static Map<Path, String> byPath(List<String> folders) {
+        Map<Path, String> paths = new LinkedHashMap<>();
+        for (String folder : folders) {
+            paths.put(FolderIndex.normalize(folder), folder);
+        }
+        return paths;
+    }
 
+    /**
+     * Starts watching the controlled folders and correcting permission drift in the background
+     */
+    public synchronized DriftWatcher startWatching() throws IOException {
+        if (driftWatcher == null) {
+            DriftWatcher watcher = new DriftWatcher(walker, getControlledFolders(),
+                    folder -> policy.getMode(folder, !controlledFolders.isWriteEnabled(folder)));
+            watcher.start();
+            driftWatcher = watcher;
+        }
+        return driftWatcher;
+    }
+    
+    /**
+     * Gets the running drift watcher, or null if drift is not being watched
+     */
+    public synchronized DriftWatcher getDriftWatcher() {
+        return driftWatcher;
+    }
+    
+    /**
+     * Stops the drift watcher if it is running
+     */
+    public synchronized void stopWatching() {
+        if (driftWatcher != null) {
+            try {
+                driftWatcher.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not stop drift watcher: " + e.getMessage());
+            }
+            driftWatcher = null;
+        }
+    }
+    
+    /**
+     * Gets the current compiled policy the folders and their modes are taken from
+     */
+    public PolicyTable getPolicy() {
+        return policy;
+    }
+    
+    /**
+     * Records folder state changes, and every mode change they make, in the audit log; null stops auditing
+     */
+    public void setAuditLog(AuditLog auditLog) {
+        this.auditLog = auditLog;
+    }
+    
+    /**
+     * Sets the user that changes made on the calling thread are recorded as, or null for the audit log's own
+     */
+    public void setActor(String caller) {
+        if (caller != null) {
+            actor.set(caller);
+        } else {
+            actor.remove();
+        }
+    }
+    
+    /**
+     * Records and publishes a mode change made by the walker
+     */
+    private void entryChanged(Path path, int oldMode, int newMode, String caller) throws IOException {
+        AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.record(caller, PermissionEvent.Type.CHMOD, path.toString(), oldMode, newMode);
+        }
+        if (events.hasListeners()) {
+            events.publish(PermissionEvent.Type.CHMOD, path.toString(), oldMode, newMode);
+        }
+    }
+    
+    /**
+     * Adds a listener told about every folder state change and every mode change, on a background thread
+     */
+    public void addListener(PermissionListener listener) {
+        events.subscribe(listener);
+    }
+    
+    /**
+     * Removes a listener added with {@link #addListener}
+     */
+    public void removeListener(PermissionListener listener) {
+        events.unsubscribe(listener);
+    }
+    
+    /**
+     * Gets the bus events are published on, for draining and reporting
+     */
+    public EventBus getEventBus() {
+        return events;
+    }
+    
+    /**
+     * Stops the drift watcher, grant expiry and the event bus; events already published are still delivered
+     */
+    public void close() {
+        ApplyOperation operation = getActiveOperation();
+        if (operation != null) {
+            operation.cancel(false);
+        }
+        applyExecutor.shutdown();
+        try {
+            // Cancelled walks stop at the next directory; let them finish before the audit log closes
+            if (!applyExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                System.err.println("Warning: Background enable/disable did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stopWatching();
+        grantWheel.close();
+        events.close();
+    }
+    
+    /**
+     * Gets the audit log changes are recorded in, or null if auditing is off
+     */
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+    
+    /**
+     * Gets the metrics recorded by this manager and its walker
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Checks if write permissions are enabled for all controlled folders
      */
     public boolean areWritePermissionsEnabled() {
-        return controlledFolders.values().stream().allMatch(Boolean::booleanValue);
+        return controlledFolders.allWriteEnabled();
     }
 
     /**
      * Gets the set of controlled folder paths
      */
     public Set<String> getControlledFolders() {
-        return new HashSet<>(controlledFolders.keySet());
+        return new HashSet<>(controlledFolders.getFolders());
+    }
+    
+    /**
+     * Checks if write permissions are enabled for a single controlled folder
+     */
+    public boolean isWriteEnabled(String folder) {
+        return controlledFolders.isWriteEnabled(folder);
+    }
+    
+    /**
+     * Finds the innermost controlled folder containing the path, or null if no folder covers it
+     */
+    public String findGoverningFolder(Path path) {
+        return controlledFolders.findGoverningFolder(path);
+    }
+    
+    /**
+     * Gets a counter that increases whenever the state or coverage of the folder changes;
+     * a null folder stands for paths outside every controlled folder
+     */
+    public long getFolderGeneration(String folder) {
+        if (folder == null) {
+            return ungovernedGeneration.get();
+        }
+        AtomicLong generation = folderGenerations.get(folder);
+        return generation != null ? generation.get() : 0;
+    }
+    
+    private void bumpGeneration(String folder) {
+        if (folder == null) {
+            ungovernedGeneration.incrementAndGet();
+        } else {
+            folderGenerations.computeIfAbsent(folder, f -> new AtomicLong()).incrementAndGet();
+        }
     }
     
     /**
@@ -138,14 +860,22 @@ public class PermissionManager {
      */
     public void addControlledFolder(String folderPath) {
         createFolderIfNotExists(folderPath);
-        controlledFolders.put(folderPath, false); // Initially read-only
+        // Paths below the new folder were governed by its enclosing folder, if any
+        String enclosing = findGoverningFolder(FolderIndex.normalize(folderPath));
+        if (!controlledFolders.add(folderPath)) {
+            return;
+        }
+        bumpGeneration(enclosing);
+        bumpGeneration(folderPath);
     }
     
     /**
      * Removes a folder from being controlled by this manager
      */
     public void removeControlledFolder(String folderPath) {
-        controlledFolders.remove(folderPath);
+        if (controlledFolders.remove(folderPath)) {
+            bumpGeneration(folderPath);
+        }
     }
 }
 
@@ -0,0 +1,729 @@
+package com.canyonetcie;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Applies read-only or read-write permissions to a controlled folder tree.
+ * 
+ * Every directory is processed by its own fork-join task, so subdirectories
+ * are spread across the pool and idle workers steal pending work from busy ones.
+ * Symbolic links are never followed, and entries already in the target mode
+ * are counted but not changed, so repeating an apply is nearly free.
+ * 
+ * Where the platform offers {@link SecureDirectoryStream} (Linux), each
+ * directory is opened once relative to its parent's handle, without following
+ * links, and its entries are read and changed relative to that handle. The
+ * kernel then does not resolve the full path again for every entry, and a
+ * directory renamed or replaced by a link during the walk cannot redirect a
+ * change outside the controlled folder.
+ */
+public class PermissionWalker {
+
+    static final Set<PosixFilePermission> READ_ONLY_DIRECTORY = PolicyTable.permissions(0555);
+    static final Set<PosixFilePermission> READ_WRITE_DIRECTORY = PolicyTable.permissions(0777);
+    private static final Set<PosixFilePermission> WRITE_BITS = EnumSet.of(
+            PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+    private final ForkJoinPool pool;
+    private final boolean posix;
+    private final Metrics metrics;
+    private final Metrics.OperationStats chmodStats;
+    private final Metrics.OperationStats walkStats;
+    private volatile ChangeListener changeListener;
+
+    public PermissionWalker(int parallelism) {
+        this(parallelism, new Metrics());
+    }
+
+    public PermissionWalker(int parallelism, Metrics metrics) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.metrics = metrics;
+        this.chmodStats = metrics.operation(Metrics.CHMOD);
+        this.walkStats = metrics.operation(Metrics.WALK);
+        this.posix = !System.getProperty("os.name").toLowerCase().contains("windows");
+    }
+
+    /**
+     * Applies the requested mode to the root folder and, when recursive, every entry below it
+     */
+    public WalkResult apply(Path root, boolean readOnly, boolean recursive) throws IOException {
+        return apply(root, new Options(readOnly ? READ_ONLY_DIRECTORY : READ_WRITE_DIRECTORY).recursive(recursive));
+    }
+
+    /**
+     * Walks the tree as the options ask, by default giving directories the options' mode and files its
+     * write bits. Throws {@link CancellationException} if the options' control was cancelled during the walk
+     */
+    public WalkResult apply(Path root, Options options) throws IOException {
+        Path normalizedRoot = root.toAbsolutePath().normalize();
+        BasicFileAttributes rootAttributes = readAttributes(normalizedRoot);
+        Walk walk = new Walk(options);
+        long start = System.nanoTime();
+        pool.invoke(new DirectoryTask(walk, normalizedRoot, rootAttributes, true));
+        WalkResult result = new WalkResult(walk.applied.sum(), walk.skipped.sum(), walk.unchangedDirectories.sum(),
+                walk.directories.sum(), walk.failures.sum(), System.nanoTime() - start, walk.firstFailure.get());
+        boolean cancelled = walk.cancelled();
+        walkStats.record(result.getElapsedNanos(), result.getFailures() == 0 && !cancelled);
+        metrics.recordEntries(result.getEntries());
+        if (cancelled) {
+            throw new CancellationException("Cancelled after " + result.getEntries() + " entries");
+        }
+        return result;
+    }
+
+    /**
+     * Sets the listener told about every mode change, or null for none
+     */
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Gets the number of worker threads used for tree walks
+     */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Computes the permissions an entry should have for the requested directory mode.
+     * 
+     * Directories get the mode itself; files only take over its write bits so
+     * that their read and execute bits are preserved.
+     */
+    static Set<PosixFilePermission> targetPermissions(Set<PosixFilePermission> current, boolean directory,
+                                                      Set<PosixFilePermission> directoryMode) {
+        if (directory) {
+            return directoryMode;
+        }
+        Set<PosixFilePermission> target = EnumSet.noneOf(PosixFilePermission.class);
+        target.addAll(current);
+        for (PosixFilePermission bit : WRITE_BITS) {
+            if (directoryMode.contains(bit)) {
+                target.add(bit);
+            } else {
+                target.remove(bit);
+            }
+        }
+        return target;
+    }
+
+    private BasicFileAttributes readAttributes(Path path) throws IOException {
+        if (posix) {
+            return Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    /**
+     * Reads an entry's attributes relative to an open directory, without following links
+     */
+    private static BasicFileAttributes readAttributes(SecureDirectoryStream<Path> directory, Path name)
+            throws IOException {
+        return directory.getFileAttributeView(name, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS)
+                .readAttributes();
+    }
+
+    /**
+     * Sets an entry's permissions through the view of an open directory when there is one.
+     * 
+     * The view opens the entry to change it, so it is only used for regular files and
+     * directories, where opening has no side effects; if the entry cannot be opened for
+     * reading the change falls back to the path.
+     */
+    private static void setPermissions(Path path, BasicFileAttributes attributes, PosixFileAttributeView view,
+                                       Set<PosixFilePermission> target) throws IOException {
+        if (view != null && (attributes.isRegularFile() || attributes.isDirectory())) {
+            try {
+                view.setPermissions(target);
+                return;
+            } catch (AccessDeniedException e) {
+                // Not readable by us; chmod by path only needs ownership
+            }
+        }
+        Files.setPosixFilePermissions(path, target);
+    }
+
+    /**
+     * Changes the entry's mode only if it differs from the target, through the view if one is given
+     */
+    private boolean applyEntry(Walk walk, Path path, BasicFileAttributes attributes, PosixFileAttributeView view) {
+        if (walk.control != null) {
+            walk.control.entries.increment();
+        }
+        long start = 0;
+        try {
+            if (posix) {
+                Set<PosixFilePermission> current = ((PosixFileAttributes) attributes).permissions();
+                Set<PosixFilePermission> target = targetPermissions(current, attributes.isDirectory(), walk.directoryMode);
+                if (walk.inventory != null) {
+                    boolean correct = current.equals(target);
+                    walk.inventory.entry(path, attributes, PolicyTable.mode(current), PolicyTable.mode(target), !correct);
+                    (correct ? walk.skipped : walk.applied).increment();
+                    return true;
+                }
+                if (current.equals(target)) {
+                    walk.skipped.increment();
+                    return true;
+                }
+                if (walk.plan != null) {
+                    walk.plan.planned(path, PolicyTable.mode(current), PolicyTable.mode(target));
+                    walk.applied.increment();
+                    return true;
+                }
+                start = System.nanoTime();
+                setPermissions(path, attributes, view, target);
+                notifyChange(walk, path, PolicyTable.mode(current), PolicyTable.mode(target));
+            } else {
+                File file = path.toFile();
+                if (walk.inventory != null) {
+                    boolean correct = file.canWrite() != walk.readOnly;
+                    walk.inventory.entry(path, attributes, -1, -1, !correct);
+                    (correct ? walk.skipped : walk.applied).increment();
+                    return true;
+                }
+                if (file.canWrite() != walk.readOnly) {
+                    walk.skipped.increment();
+                    return true;
+                }
+                if (walk.plan != null) {
+                    walk.plan.planned(path, -1, -1);
+                    walk.applied.increment();
+                    return true;
+                }
+                start = System.nanoTime();
+                if (!file.setWritable(!walk.readOnly)) {
+                    throw new IOException("Could not change writable flag");
+                }
+                notifyChange(walk, path, -1, -1);
+            }
+            chmodStats.recordSince(start, true);
+            walk.applied.increment();
+            return true;
+        } catch (IOException e) {
+            chmodStats.recordSince(start, false);
+            walk.fail(path, e);
+            return false;
+        }
+    }
+
+    private void notifyChange(Walk walk, Path path, int oldMode, int newMode) throws IOException {
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.changed(path, oldMode, newMode, walk.actor);
+        }
+    }
+
+    /**
+     * Receives every mode change made by a walk; a failure marks the entry as failed
+     */
+    public interface ChangeListener {
+        /**
+         * Called after the mode of the entry was changed, with the actor given in the walk's options;
+         * modes are -1 where the platform has none
+         */
+        void changed(Path path, int oldMode, int newMode, String actor) throws IOException;
+    }
+
+    /**
+     * Receives every change a planned walk would make; a failure marks the entry as failed
+     */
+    public interface PlanListener {
+        /**
+         * Called for an entry whose mode differs from the target; modes are -1 where the platform has none
+         */
+        void planned(Path path, int currentMode, int targetMode) throws IOException;
+    }
+
+    /**
+     * Receives every entry of an inventory walk; a failure marks the entry as failed
+     */
+    public interface EntryListener {
+        /**
+         * Called for each entry with its attributes, its mode and the mode an apply would give it;
+         * modes are -1 where the platform has none
+         */
+        void entry(Path path, BasicFileAttributes attributes, int currentMode, int targetMode, boolean violation)
+                throws IOException;
+    }
+
+    /**
+     * Shared state of a single apply call
+     */
+    private static final class Walk {
+        final Set<PosixFilePermission> directoryMode;
+        final int mode;
+        final boolean readOnly;
+        final boolean recursive;
+        final ApplyManifest manifest;
+        final boolean incremental;
+        final PlanListener plan;
+        final EntryListener inventory;
+        final Control control;
+        final String actor;
+        final LongAdder applied = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        final LongAdder unchangedDirectories = new LongAdder();
+        final LongAdder directories = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final AtomicReference<IOException> firstFailure = new AtomicReference<>();
+
+        Walk(Options options) {
+            this.directoryMode = options.directoryMode;
+            this.mode = PolicyTable.mode(directoryMode);
+            this.readOnly = !directoryMode.contains(PosixFilePermission.OWNER_WRITE);
+            this.recursive = options.recursive;
+            this.manifest = options.recursive ? options.manifest : null;
+            this.incremental = options.incremental;
+            this.plan = options.plan;
+            this.inventory = options.inventory;
+            this.control = options.control;
+            this.actor = options.actor;
+        }
+
+        boolean cancelled() {
+            return control != null && control.isCancelled();
+        }
+
+        void fail(Path path, IOException e) {
+            failures.increment();
+            firstFailure.compareAndSet(null, new IOException("Failed to set permissions for " + path + ": " + e.getMessage(), e));
+        }
+    }
+
+    /**
+     * Applies permissions to one directory and its files, forking a subtask per subdirectory
+     */
+    private final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Walk walk;
+        private final Path directory;
+        private final BasicFileAttributes attributes;
+        private final boolean root;
+        private final SecureDirectoryStream<Path> parent;
+
+        DirectoryTask(Walk walk, Path directory, BasicFileAttributes attributes, boolean root) {
+            this(walk, directory, attributes, root, null);
+        }
+
+        /**
+         * Creates a task for a subdirectory that is opened relative to the parent's handle, if one is given
+         */
+        DirectoryTask(Walk walk, Path directory, BasicFileAttributes attributes, boolean root,
+                      SecureDirectoryStream<Path> parent) {
+            this.walk = walk;
+            this.directory = directory;
+            this.attributes = attributes;
+            this.root = root;
+            this.parent = parent;
+        }
+
+        private DirectoryStream<Path> open() throws IOException {
+            if (parent != null) {
+                return parent.newDirectoryStream(directory.getFileName(), LinkOption.NOFOLLOW_LINKS);
+            }
+            return Files.newDirectoryStream(directory);
+        }
+
+        @Override
+        protected void compute() {
+            if (walk.cancelled()) {
+                return;
+            }
+            if (walk.incremental && walk.manifest != null && attributes.isDirectory() && reuseManifest()) {
+                return;
+            }
+
+            boolean descend = attributes.isDirectory() && !(root && !walk.recursive);
+            DirectoryStream<Path> stream = null;
+            if (descend) {
+                try {
+                    stream = open();
+                } catch (AccessDeniedException e) {
+                    // The directory may only become readable through its own change; opened again below
+                } catch (IOException e) {
+                    // Gone or replaced by a link since it was listed; never change it by path
+                    fail(e);
+                    return;
+                }
+            }
+            try {
+                SecureDirectoryStream<Path> handle = handle(stream);
+                boolean clean = applyEntry(walk, directory, attributes,
+                        handle == null ? null : handle.getFileAttributeView(PosixFileAttributeView.class));
+                if (!descend) {
+                    return;
+                }
+                if (stream == null) {
+                    try {
+                        stream = open();
+                    } catch (IOException e) {
+                        fail(e);
+                        return;
+                    }
+                }
+                list(stream, clean);
+            } finally {
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        // Nothing was left to read
+                    }
+                }
+            }
+        }
+
+        private void fail(IOException e) {
+            walk.fail(directory, e);
+            if (walk.manifest != null) {
+                walk.manifest.forget(directory);
+            }
+        }
+
+        private SecureDirectoryStream<Path> handle(DirectoryStream<Path> stream) {
+            return posix && stream instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) stream : null;
+        }
+
+        /**
+         * Applies permissions to the directory's files and forks a task per subdirectory
+         */
+        private void list(DirectoryStream<Path> stream, boolean clean) {
+            SecureDirectoryStream<Path> handle = handle(stream);
+
+            // Read the fingerprint before listing so that concurrent changes invalidate it
+            ApplyManifest.Fingerprint fingerprint = null;
+            if (walk.manifest != null) {
+                try {
+                    fingerprint = ApplyManifest.fingerprint(directory);
+                } catch (IOException e) {
+                    clean = false;
+                }
+            }
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            List<String> subdirectoryNames = new ArrayList<>();
+            walk.directories.increment();
+            try {
+                for (Path child : stream) {
+                    if (walk.cancelled()) {
+                        clean = false;
+                        break;
+                    }
+                    try {
+                        Path name = child.getFileName();
+                        BasicFileAttributes childAttributes = handle != null
+                                ? readAttributes(handle, name) : readAttributes(child);
+                        if (childAttributes.isSymbolicLink()) {
+                            continue;
+                        }
+                        if (childAttributes.isDirectory()) {
+                            subdirectories.add(new DirectoryTask(walk, child, childAttributes, false, handle));
+                            subdirectoryNames.add(name.toString());
+                        } else {
+                            clean &= applyEntry(walk, child, childAttributes, handle == null ? null
+                                    : handle.getFileAttributeView(name, PosixFileAttributeView.class,
+                                    LinkOption.NOFOLLOW_LINKS));
+                        }
+                    } catch (IOException e) {
+                        walk.fail(child, e);
+                        clean = false;
+                    }
+                }
+            } catch (DirectoryIteratorException e) {
+                walk.fail(directory, e.getCause());
+                clean = false;
+            }
+
+            if (walk.manifest != null) {
+                if (clean) {
+                    walk.manifest.record(directory, fingerprint, walk.mode, subdirectoryNames);
+                } else {
+                    walk.manifest.forget(directory);
+                }
+            }
+            // Subdirectories are opened relative to this directory's handle, so it stays open until they finish
+            invokeAll(subdirectories);
+        }
+
+        /**
+         * Descends into the recorded subdirectories without listing this directory if it is unchanged.
+         * 
+         * The directory is still opened, without reading it, so that its subdirectories are checked
+         * and opened relative to its handle just as they would be after a listing.
+         */
+        private boolean reuseManifest() {
+            String[] names;
+            try {
+                names = walk.manifest.unchangedSubdirectories(
+                        directory, ApplyManifest.fingerprint(directory), walk.mode);
+            } catch (IOException e) {
+                return false;
+            }
+            if (names == null) {
+                return false;
+            }
+            DirectoryStream<Path> stream;
+            try {
+                stream = open();
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                SecureDirectoryStream<Path> handle = handle(stream);
+                List<DirectoryTask> subdirectories = new ArrayList<>(names.length);
+                for (String name : names) {
+                    Path child = directory.resolve(name);
+                    BasicFileAttributes childAttributes = handle != null
+                            ? readAttributes(handle, child.getFileName()) : readAttributes(child);
+                    if (!childAttributes.isDirectory()) {
+                        return false;
+                    }
+                    subdirectories.add(new DirectoryTask(walk, child, childAttributes, false, handle));
+                }
+                walk.unchangedDirectories.increment();
+                invokeAll(subdirectories);
+                return true;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Nothing was read
+                }
+            }
+        }
+    }
+
+    /**
+     * What a walk does, set with chained calls on top of the directory mode to apply.
+     * 
+     * By default the walk is recursive and changes every entry not yet in its target
+     * mode; a plan or inventory listener turns it into a walk that changes nothing.
+     */
+    public static final class Options {
+        private final Set<PosixFilePermission> directoryMode;
+        private boolean recursive = true;
+        private ApplyManifest manifest;
+        private boolean incremental;
+        private PlanListener plan;
+        private EntryListener inventory;
+        private Control control;
+        private String actor;
+
+        /**
+         * Creates options that give directories the mode and files only its write bits
+         */
+        public Options(Set<PosixFilePermission> directoryMode) {
+            this.directoryMode = directoryMode;
+        }
+
+        /**
+         * Sets whether entries below the root are walked, or only the root itself
+         */
+        public Options recursive(boolean recursive) {
+            this.recursive = recursive;
+            return this;
+        }
+
+        /**
+         * Records every fully applied directory in the manifest, if one is given
+         */
+        public Options manifest(ApplyManifest manifest) {
+            this.manifest = manifest;
+            this.incremental = false;
+            return this;
+        }
+
+        /**
+         * Skips directories the manifest shows as unchanged since they were last applied in the
+         * same mode, and records the directories that were walked
+         */
+        public Options incremental(ApplyManifest manifest) {
+            this.manifest = manifest;
+            this.incremental = manifest != null;
+            return this;
+        }
+
+        /**
+         * Instead of changing anything, passes each entry that would change to the listener,
+         * from the walker's threads
+         */
+        public Options plan(PlanListener plan) {
+            this.plan = plan;
+            this.inventory = null;
+            return this;
+        }
+
+        /**
+         * Instead of changing anything, passes every entry to the listener together with the
+         * mode an apply would give it, from the walker's threads
+         */
+        public Options inventory(EntryListener inventory) {
+            this.inventory = inventory;
+            this.plan = null;
+            return this;
+        }
+
+        /**
+         * Counts progress on the control and stops early once it is cancelled
+         */
+        public Options control(Control control) {
+            this.control = control;
+            return this;
+        }
+
+        /**
+         * Sets the user the walk's changes are made for, passed on to the change listener
+         */
+        public Options actor(String actor) {
+            this.actor = actor;
+            return this;
+        }
+    }
+
+    /**
+     * Progress and cancellation of a running walk, shared with the caller
+     */
+    public static final class Control {
+        private final LongAdder entries = new LongAdder();
+        private volatile boolean cancelled;
+
+        /**
+         * Asks the walk to stop; directories not yet listed are left as they are
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Gets the number of entries processed so far
+         */
+        public long getEntries() {
+            return entries.sum();
+        }
+    }
+
+    /**
+     * Outcome of a tree walk
+     */
+    public static final class WalkResult {
+        private final long applied;
+        private final long skipped;
+        private final long unchangedDirectories;
+        private final long directories;
+        private final long failures;
+        private final long elapsedNanos;
+        private final IOException firstFailure;
+
+        WalkResult(long applied, long skipped, long unchangedDirectories, long directories, long failures,
+                   long elapsedNanos, IOException firstFailure) {
+            this.applied = applied;
+            this.skipped = skipped;
+            this.unchangedDirectories = unchangedDirectories;
+            this.directories = directories;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.firstFailure = firstFailure;
+        }
+
+        /**
+         * Gets the number of entries processed, whether changed or already correct
+         */
+        public long getEntries() {
+            return applied + skipped;
+        }
+
+        /**
+         * Gets the number of entries whose mode was changed
+         */
+        public long getApplied() {
+            return applied;
+        }
+
+        /**
+         * Gets the number of entries already in the target mode
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Gets the number of directories skipped because the manifest showed them unchanged
+         */
+        public long getUnchangedDirectories() {
+            return unchangedDirectories;
+        }
+
+        /**
+         * Gets the number of directories whose entries were listed
+         */
+        public long getDirectories() {
+            return directories;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public IOException getFirstFailure() {
+            return firstFailure;
+        }
+
+        /**
+         * Estimates the system calls an apply of this walk makes: a stat per entry, an open, read
+         * and close per directory listed, and a chmod per entry changed
+         */
+        public long getEstimatedSyscalls() {
+            return getEntries() + 3 * directories + applied;
+        }
+
+        /**
+         * Combines the counts of walks over several trees
+         */
+        WalkResult plus(WalkResult other) {
+            return new WalkResult(applied + other.applied, skipped + other.skipped,
+                    unchangedDirectories + other.unchangedDirectories, directories + other.directories,
+                    failures + other.failures, elapsedNanos + other.elapsedNanos,
+                    firstFailure != null ? firstFailure : other.firstFailure);
+        }
+
+        /**
+         * Gets the processing rate in entries per second
+         */
+        public double getEntriesPerSecond() {
+            return elapsedNanos == 0 ? 0 : getEntries() * 1_000_000_000.0 / elapsedNanos;
+        }
+    }
+}
@@ -1,7 +1,30 @@
 package com.canyonetcie;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Main application class for the Permissions Checker.
@@ -12,13 +35,36 @@ import java.util.Scanner;
  */
 public class PermissionsChecker {
     
+    /**
+     * Deepest nesting of batch files run from within batch files
+     */
+    private static final int MAX_BATCH_DEPTH = 8;
+    
+    private final Config config;
+    private final Metrics metrics;
     private final PermissionManager permissionManager;
     private final UserManager userManager;
+    private final AuthorizationService authorizationService;
     private final Scanner scanner;
+    private CommandServer commandServer;
+    private AgentServer agentServer;
+    private ConfigWatcher configWatcher;
+    private AuditLog auditLog;
     
     public PermissionsChecker() {
-        this.permissionManager = new PermissionManager();
-        this.userManager = new UserManager();
+        this(new Config(), new Metrics());
+    }
+    
+    /**
+     * Creates a checker for the given configuration, e.g. for the load test harness
+     */
+    PermissionsChecker(Config config, Metrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        PolicyTable policy = PolicyTable.compile(config);
+        this.permissionManager = new PermissionManager(config, metrics, policy);
+        this.userManager = new UserManager(config, metrics, policy);
+        this.authorizationService = new AuthorizationService(userManager, permissionManager, config);
         this.scanner = new Scanner(System.in);
     }
     
@@ -29,8 +75,17 @@ public class PermissionsChecker {
             app.initialize();
             
             if (args.length > 0) {
-                // Command provided as argument
-                app.processCommand(args[0]);
+                // Command provided as arguments
+                app.processCommand(String.join(" ", args));
+                if (args[0].equalsIgnoreCase("watch")) {
+                    app.awaitWatcher();
+                } else if (args[0].equalsIgnoreCase("serve")) {
+                    app.awaitServer();
+                } else if (args[0].equalsIgnoreCase("agent")) {
+                    app.awaitAgent();
+                } else {
+                    app.awaitBackground();
+                }
             } else {
                 // Interactive mode
                 app.runInteractiveMode();
@@ -46,41 +101,83 @@ public class PermissionsChecker {
     /**
      * Initialize the application by setting all folders to read-only
      */
-    private void initialize() throws IOException {
+    void initialize() throws IOException {
+        if (config.isMetricsJmxEnabled()) {
+            metrics.registerMBeans();
+        }
+        if (config.getMetricsExportFile() != null) {
+            metrics.startExport(config.getMetricsExportFile(), config.getMetricsExportIntervalSeconds());
+        }
+        
+        if (config.getAuditDirectory() != null) {
+            auditLog = AuditLog.open(config.getAuditDirectory(), config.getAuditSegmentBytes(),
+                    config.getAuditRetentionBytes(), config.getAuditCommitIntervalMillis(),
+                    userManager.getCurrentUser());
+            permissionManager.setAuditLog(auditLog);
+        }
+        
+        if (config.isVerboseLogging()) {
+            permissionManager.addListener(event -> System.out.println("Event: " + event));
+        }
+        
         System.out.println("Initializing Permissions Checker...");
         System.out.println("Setting all controlled folders to read-only...");
         
-        permissionManager.setAllFoldersReadOnly();
+        try {
+            permissionManager.setAllFoldersReadOnly();
+        } catch (IOException e) {
+            // Folders that could be locked down stay usable; give up only if none could
+            if (permissionManager.getFailedRoots().size() < permissionManager.getControlledFolders().size()) {
+                System.err.println("Warning: " + e.getMessage());
+            } else {
+                throw e;
+            }
+        }
+        
+        if (config.isConfigWatchEnabled()) {
+            configWatcher = new ConfigWatcher(config.getConfigFile(), permissionManager.getPolicy(), this::applyPolicy);
+            configWatcher.start();
+        }
         
         System.out.println("Initialization complete.");
         System.out.println("Current user: " + userManager.getCurrentUser());
         System.out.println("Admin privileges: " + userManager.hasAdminRole());
     }
     
+    /**
+     * Applies a reloaded policy to the folders and roles
+     */
+    private void applyPolicy(PolicyTable previous, PolicyTable next) {
+        permissionManager.applyPolicy(next);
+        userManager.setPolicy(next);
+    }
+    
     /**
      * Run the application in interactive mode, listening for commands
      */
     private void runInteractiveMode() {
         System.out.println("\nPermissions Checker is now in listening mode.");
         System.out.println("Available commands:");
-        System.out.println("  enable  - Enable writing by non-admin users");
-        System.out.println("  disable - Disable writing by non-admin users");
+        System.out.println("  enable [<folder>] [for <duration>] - Enable writing by non-admin users");
+        System.out.println("  disable [<folder>] - Disable writing by non-admin users");
         System.out.println("  status  - Show current permission status");
+        System.out.println("  watch   - Correct permission drift in the background");
         System.out.println("  help    - Show this help message");
         System.out.println("  exit    - Exit the application");
         System.out.println();
         
         while (true) {
             System.out.print("permissions-checker> ");
-            String command = scanner.nextLine().trim().toLowerCase();
+            String command = scanner.nextLine().trim();
             
-            if (command.equals("exit")) {
+            if (command.equalsIgnoreCase("exit")) {
                 break;
             }
             
             try {
                 processCommand(command);
-            } catch (IOException e) {
+            } catch (IOException | RuntimeException e) {
+                // One failed command should not end the session
                 System.err.println("Error executing command: " + e.getMessage());
             }
         }
@@ -90,81 +187,866 @@ public class PermissionsChecker {
      * Process a single command
      */
     private void processCommand(String command) throws IOException {
-        switch (command.toLowerCase()) {
+        processCommand(command, System.out);
+    }
+    
+    /**
+     * Process a single command on behalf of the user running the application
+     */
+    boolean processCommand(String command, PrintStream out) throws IOException {
+        return processCommand(command, out, userManager.getCurrentUser());
+    }
+    
+    /**
+     * Process a command received over a socket, refusing the forms that read from this process's stdin
+     * or read a file with its privileges on behalf of a non-admin caller
+     */
+    boolean processRemoteCommand(String caller, String command, PrintStream out) throws IOException {
+        String[] parts = command.trim().split("\\s+");
+        if (parts[0].equalsIgnoreCase("batch")) {
+            if (parts.length < 2 || parts[1].equals("-")) {
+                out.println("Error: batch needs a file when sent over a socket.");
+                return false;
+            }
+            if (!userManager.isAdmin(caller)) {
+                out.println("Error: Admin privileges required to run a batch file.");
+                return false;
+            }
+        }
+        // Changes the command makes are audited as the client's, not the user running the application
+        permissionManager.setActor(caller);
+        try {
+            return processCommand(command, out, caller);
+        } finally {
+            permissionManager.setActor(null);
+        }
+    }
+    
+    /**
+     * Process a single command on behalf of the given caller, writing its output to the given stream.
+     * Admin-only commands check the caller's role, not that of the user running the application.
+     * 
+     * Returns false if the command was not recognized.
+     */
+    boolean processCommand(String command, PrintStream out, String caller) throws IOException {
+        String[] parts = command.trim().split("\\s+");
+        switch (parts[0].toLowerCase()) {
             case "enable":
-                enableWritePermissions();
+                enableWritePermissions(parts, out, caller);
                 break;
             case "disable":
-                disableWritePermissions();
+                disableWritePermissions(parts, out, caller);
                 break;
             case "status":
-                showStatus();
+                showStatus(out, caller);
+                if (parts.length > 1 && parts[1].equalsIgnoreCase("--verify")) {
+                    verifyPermissions(out);
+                } else if (parts.length > 1) {
+                    out.println("Usage: status [--verify]");
+                }
+                break;
+            case "progress":
+                showProgress(out);
+                break;
+            case "cancel":
+                cancelBackground(out, caller);
+                break;
+            case "watch":
+                startWatching(out, caller);
+                break;
+            case "check":
+                checkAccess(parts, out);
+                break;
+            case "serve":
+                startServer(out, caller);
+                break;
+            case "batch":
+                runBatch(parts, out, caller);
+                break;
+            case "agent":
+                startAgent(out, caller);
+                break;
+            case "fanout":
+                return fanOut(command, out, caller);
+            case "stats":
+                showStats(out);
+                break;
+            case "log":
+                showLog(parts, out, caller);
+                break;
+            case "plan":
+                showPlan(parts, out, caller);
+                break;
+            case "audit":
+                writeInventory(parts, out, caller);
                 break;
             case "help":
-                showHelp();
+                showHelp(out);
                 break;
             default:
-                System.out.println("Unknown command: " + command);
-                System.out.println("Type 'help' for available commands.");
+                out.println("Unknown command: " + command);
+                out.println("Type 'help' for available commands.");
+                return false;
         }
+        return true;
     }
     
     /**
-     * Enable write permissions for non-admin users
+     * Enable write permissions for non-admin users: enable [<folder>] [for <duration>]
      */
-    private void enableWritePermissions() throws IOException {
-        if (!userManager.hasAdminRole()) {
-            System.out.println("Error: Admin privileges required to enable write permissions.");
+    private void enableWritePermissions(String[] parts, PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to enable write permissions.");
+            return;
+        }
+        if (parts.length == 2 && parts[1].equals("&")) {
+            startBackground(true, out);
             return;
         }
         
-        System.out.println("Enabling write permissions for non-admin users...");
-        permissionManager.enableWritePermissions();
-        System.out.println("Write permissions enabled successfully.");
+        int forIndex = parts.length > 1 && parts[parts.length - 2].equalsIgnoreCase("for") ? parts.length - 2 : parts.length;
+        if (forIndex > 2) {
+            out.println("Usage: enable [<folder>] [for <duration>]");
+            return;
+        }
+        Duration duration = null;
+        if (forIndex < parts.length) {
+            try {
+                duration = parseDuration(parts[parts.length - 1]);
+            } catch (IllegalArgumentException e) {
+                out.println("Error: " + e.getMessage());
+                return;
+            }
+        }
+        
+        if (forIndex == 1 && duration == null) {
+            out.println("Enabling write permissions for non-admin users...");
+            permissionManager.enableWritePermissions();
+            out.println("Write permissions enabled successfully.");
+            return;
+        }
+        List<String> folders = new ArrayList<>();
+        if (forIndex == 2) {
+            String folder = permissionManager.resolveControlledFolder(parts[1]);
+            if (folder == null) {
+                out.println("Error: Not a controlled folder: " + parts[1]);
+                return;
+            }
+            folders.add(folder);
+        } else {
+            folders.addAll(new TreeSet<>(permissionManager.getControlledFolders()));
+        }
+        for (String folder : folders) {
+            permissionManager.enableWritePermissions(folder, duration);
+            out.println("Write permissions enabled on " + folder
+                    + (duration != null ? " for " + formatDuration(duration) : "") + ".");
+        }
     }
     
     /**
-     * Disable write permissions for non-admin users
+     * Disable write permissions for non-admin users: disable [<folder>]
      */
-    private void disableWritePermissions() throws IOException {
-        if (!userManager.hasAdminRole()) {
-            System.out.println("Error: Admin privileges required to disable write permissions.");
+    private void disableWritePermissions(String[] parts, PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to disable write permissions.");
+            return;
+        }
+        if (parts.length == 2 && parts[1].equals("&")) {
+            startBackground(false, out);
             return;
         }
         
-        System.out.println("Disabling write permissions for non-admin users...");
+        if (parts.length > 1) {
+            String folder = permissionManager.resolveControlledFolder(parts[1]);
+            if (folder == null) {
+                out.println("Error: Not a controlled folder: " + parts[1]);
+                return;
+            }
+            permissionManager.applyFolderStates(Collections.singletonMap(folder, false));
+            out.println("Write permissions disabled on " + folder + ".");
+            return;
+        }
+        out.println("Disabling write permissions for non-admin users...");
         permissionManager.disableWritePermissions();
-        System.out.println("Write permissions disabled successfully.");
+        out.println("Write permissions disabled successfully.");
+    }
+    
+    /**
+     * Start an enable or disable of all folders in the background, reporting the outcome when it completes
+     */
+    private void startBackground(boolean enable, PrintStream out) throws IOException {
+        String action = enable ? "Enabling" : "Disabling";
+        ApplyOperation operation = enable ? permissionManager.enableWritePermissionsAsync()
+                : permissionManager.disableWritePermissionsAsync();
+        out.println(action + " write permissions on " + operation.getFolders().size()
+                + " folders in the background. Use 'progress' to follow it or 'cancel' to stop it.");
+        operation.whenComplete((result, e) -> reportBackground(operation, result));
+    }
+    
+    private static void reportBackground(ApplyOperation operation, ApplyOperation.Result result) {
+        String action = operation.isEnable() ? "Enable" : "Disable";
+        if (result == null) {
+            System.out.println(action + " cancelled after " + operation.getEntriesDone() + " entries; "
+                    + operation.getFoldersDone() + " of " + operation.getFolders().size() + " folders finished.");
+            return;
+        }
+        System.out.println(String.format("%s finished in %.1f s: %d applied, %d missing, %d failed, %d cancelled.",
+                action, result.getElapsedNanos() / 1e9, result.count(ApplyOperation.Status.APPLIED),
+                result.count(ApplyOperation.Status.MISSING), result.count(ApplyOperation.Status.FAILED),
+                result.count(ApplyOperation.Status.CANCELLED)));
+        for (ApplyOperation.FolderResult folder : result.getFolders().values()) {
+            if (folder.getError() != null) {
+                System.out.println("  " + folder.getFolder() + ": " + folder.getStatus() + " (" + folder.getError() + ")");
+            }
+        }
+    }
+    
+    /**
+     * Show how far the background enable or disable has got
+     */
+    private void showProgress(PrintStream out) {
+        ApplyOperation operation = permissionManager.getActiveOperation();
+        if (operation == null) {
+            out.println("No enable or disable is running in the background.");
+            return;
+        }
+        long done = operation.getEntriesDone();
+        long total = operation.getEntriesTotal();
+        String entries = total < 0 ? done + " entries"
+                : String.format("%d of ~%d entries (%.0f%%)", done, total, 100.0 * Math.min(done, total) / Math.max(total, 1));
+        out.println((operation.isEnable() ? "Enable" : "Disable") + (operation.isCancelled() ? " (cancelling)" : "")
+                + ": " + entries + ", " + operation.getFoldersDone() + " of " + operation.getFolders().size()
+                + " folders done, " + formatDuration(Duration.ofSeconds(operation.getElapsedNanos() / 1000000000L))
+                + " elapsed");
+    }
+    
+    /**
+     * Cancel the background enable or disable
+     */
+    private void cancelBackground(PrintStream out, String caller) {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to cancel an enable or disable.");
+            return;
+        }
+        ApplyOperation operation = permissionManager.getActiveOperation();
+        if (operation == null) {
+            out.println("No enable or disable is running in the background.");
+            return;
+        }
+        operation.cancel(false);
+        out.println("Cancelling; folders not finished are left write-disabled.");
+    }
+    
+    /**
+     * Wait for an enable or disable started in the background by a one-shot command
+     */
+    private void awaitBackground() {
+        ApplyOperation operation = permissionManager.getActiveOperation();
+        if (operation == null) {
+            return;
+        }
+        try {
+            operation.join();
+        } catch (CancellationException | CompletionException e) {
+            // Reported by the completion callback
+        }
+    }
+    
+    /**
+     * Parses a grant duration such as 90s, 15m, 2h or 1d, or an ISO-8601 duration such as PT15M
+     */
+    static Duration parseDuration(String value) {
+        Duration duration;
+        try {
+            char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+            if (value.toUpperCase().startsWith("P")) {
+                duration = Duration.parse(value);
+            } else if (Character.isDigit(unit)) {
+                duration = Duration.ofMinutes(Long.parseLong(value));
+            } else {
+                long amount = Long.parseLong(value.substring(0, value.length() - 1));
+                switch (unit) {
+                    case 's':
+                        duration = Duration.ofSeconds(amount);
+                        break;
+                    case 'm':
+                        duration = Duration.ofMinutes(amount);
+                        break;
+                    case 'h':
+                        duration = Duration.ofHours(amount);
+                        break;
+                    case 'd':
+                        duration = Duration.ofDays(amount);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid duration: " + value);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid duration: " + value + " (use e.g. 90s, 15m, 2h or 1d)");
+        }
+        if (duration.isNegative() || duration.isZero()) {
+            throw new IllegalArgumentException("Duration must be positive: " + value);
+        }
+        if (duration.compareTo(PermissionManager.MAX_GRANT) > 0) {
+            throw new IllegalArgumentException("Duration must be at most " + PermissionManager.MAX_GRANT.toDays()
+                    + "d: " + value);
+        }
+        return duration;
+    }
+    
+    private static String formatDuration(Duration duration) {
+        return duration.toString().substring(2).toLowerCase();
+    }
+    
+    /**
+     * Start correcting permission drift in the background
+     */
+    private void startWatching(PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to watch for permission drift.");
+            return;
+        }
+        
+        permissionManager.startWatching();
+    }
+    
+    /**
+     * Block until the drift watcher stops, used when watching from the command line
+     */
+    private void awaitWatcher() {
+        DriftWatcher watcher = permissionManager.getDriftWatcher();
+        if (watcher == null) {
+            return;
+        }
+        try {
+            watcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Run commands from a file, or stdin if none is given, collapsing enable/disable bursts into one apply per folder
+     */
+    private void runBatch(String[] parts, PrintStream out, String caller) throws IOException {
+        runBatch(parts, out, caller, new ArrayDeque<>());
+    }
+    
+    /**
+     * Runs a batch from within the batches listed, outermost last; a nested batch must name a file
+     * that is not already running, so it can neither read stdin nor recurse
+     */
+    private void runBatch(String[] parts, PrintStream out, String caller, Deque<String> running) throws IOException {
+        boolean fromStdin = parts.length < 2 || parts[1].equals("-");
+        String source = fromStdin ? "-" : Paths.get(parts[1]).toRealPath().toString();
+        if (!running.isEmpty()) {
+            if (fromStdin) {
+                out.println("Error: A nested batch needs a file.");
+                return;
+            }
+            if (running.contains(source)) {
+                out.println("Error: Batch " + parts[1] + " is already running.");
+                return;
+            }
+            if (running.size() >= MAX_BATCH_DEPTH) {
+                out.println("Error: Batches cannot be nested more than " + MAX_BATCH_DEPTH + " deep.");
+                return;
+            }
+        }
+        BufferedReader reader = fromStdin
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(parts[1]), StandardCharsets.UTF_8);
+        CommandBatch batch = new CommandBatch(permissionManager.getControlledFolders());
+        running.push(source);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (!batch.offer(line)) {
+                    // Other commands observe the state, so pending toggles are applied first
+                    applyBatch(batch, out, caller);
+                    String[] lineParts = line.split("\\s+");
+                    if (lineParts[0].equalsIgnoreCase("batch")) {
+                        runBatch(lineParts, out, caller, running);
+                    } else {
+                        processCommand(line, out, caller);
+                    }
+                }
+            }
+            applyBatch(batch, out, caller);
+        } finally {
+            running.pop();
+            if (!fromStdin) {
+                reader.close();
+            }
+        }
+        out.println("Batch complete: " + batch.getCommands() + " commands, " + batch.getToggles() + " toggles, "
+                + batch.getAppliedUpdates() + " folder updates applied, " + batch.getElidedUpdates() + " elided.");
+    }
+    
+    /**
+     * Apply the net folder states accumulated by a batch
+     */
+    private void applyBatch(CommandBatch batch, PrintStream out, String caller) throws IOException {
+        if (!batch.hasPending()) {
+            return;
+        }
+        if (!userManager.isAdmin(caller)) {
+            batch.discard();
+            out.println("Error: Admin privileges required to change write permissions.");
+            return;
+        }
+        Map<String, Boolean> plan = batch.drain();
+        out.println("Applying net state for " + plan.size() + " folders...");
+        permissionManager.applyFolderStates(plan);
+    }
+    
+    /**
+     * Start serving commands to local clients over a socket
+     */
+    private synchronized void startServer(PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to serve commands.");
+            return;
+        }
+        if (commandServer != null) {
+            out.println("Command server already listening on " + commandServer.getLocalAddress());
+            return;
+        }
+        
+        CommandServer server = new CommandServer(this::processRemoteCommand, config.getServerSocket(),
+                config.getServerPort(), config.getServerTokenFile(), userManager.getCurrentUser());
+        server.start();
+        commandServer = server;
+    }
+    
+    /**
+     * Block until the command server stops, used when serving from the command line
+     */
+    private void awaitServer() {
+        CommandServer server;
+        synchronized (this) {
+            server = commandServer;
+        }
+        if (server == null) {
+            return;
+        }
+        try {
+            server.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Start accepting commands from a coordinator over TCP
+     */
+    private synchronized void startAgent(PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to run as an agent.");
+            return;
+        }
+        if (agentServer != null) {
+            out.println("Agent already listening on " + agentServer.getLocalAddress());
+            return;
+        }
+        if (config.getAgentToken().isEmpty()) {
+            out.println("Error: Set agent.token before running as an agent.");
+            return;
+        }
+        
+        AgentServer agent = new AgentServer(this::processRemoteCommand, config.getAgentHost(), config.getAgentPort(),
+                config.getAgentToken(), config.getAgentConnections(), config.getAgentReadTimeoutSeconds() * 1000);
+        agent.start();
+        agentServer = agent;
+    }
+    
+    /**
+     * Block until the agent stops, used when running as an agent from the command line
+     */
+    private void awaitAgent() {
+        AgentServer agent;
+        synchronized (this) {
+            agent = agentServer;
+        }
+        if (agent == null) {
+            return;
+        }
+        try {
+            agent.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Send a command to every configured agent at once and report how each node answered: fanout <command>
+     * 
+     * Returns false if any node did not run the command successfully.
+     */
+    private boolean fanOut(String command, PrintStream out, String caller) {
+        String remote = command.trim().substring("fanout".length()).trim();
+        if (remote.isEmpty()) {
+            out.println("Usage: fanout <command>");
+            return false;
+        }
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to send commands to agents.");
+            return false;
+        }
+        List<InetSocketAddress> agents;
+        try {
+            agents = config.getAgents();
+        } catch (IllegalArgumentException e) {
+            out.println("Error: Invalid agents setting: " + e.getMessage());
+            return false;
+        }
+        if (agents.isEmpty()) {
+            out.println("Error: No agents configured; set agents to a list of host:port addresses.");
+            return false;
+        }
+        
+        Coordinator coordinator = new Coordinator(agents, config.getAgentToken(), caller,
+                config.getAgentsTimeoutSeconds() * 1000, config.getAgentsParallelism());
+        long start = System.nanoTime();
+        List<Coordinator.NodeResult> results = coordinator.send(remote);
+        double wallMillis = (System.nanoTime() - start) / 1e6;
+        
+        long failed = results.stream().filter(r -> r.getStatus() != Coordinator.Status.OK).count();
+        out.println(String.format("Fan-out '%s' to %d agents: %d ok, %d failed (%.1f ms)",
+                remote, results.size(), results.size() - failed, failed, wallMillis));
+        double[] latencies = new double[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            Coordinator.NodeResult result = results.get(i);
+            latencies[i] = result.getLatencyNanos() / 1e6;
+            out.println(String.format("  %-28s %-11s %9.1f ms  %s", result.getNode(), result.getStatus(),
+                    latencies[i], result.getSummary()));
+        }
+        Arrays.sort(latencies);
+        out.println(String.format("  Latency: p50 %.1f ms, max %.1f ms",
+                latencies[(latencies.length - 1) / 2], latencies[latencies.length - 1]));
+        return failed == 0;
+    }
+    
+    /**
+     * Check whether a user may read or write a path: check <user> <path> [read|write]
+     */
+    private void checkAccess(String[] parts, PrintStream out) {
+        if (parts.length < 3) {
+            out.println("Usage: check <user> <path> [read|write]");
+            return;
+        }
+        AuthorizationService.Operation operation = AuthorizationService.Operation.WRITE;
+        if (parts.length > 3) {
+            try {
+                operation = AuthorizationService.Operation.valueOf(parts[3].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                out.println("Unknown operation: " + parts[3]);
+                return;
+            }
+        }
+        boolean allowed = authorizationService.check(parts[1], Paths.get(parts[2]), operation);
+        out.println((allowed ? "ALLOW " : "DENY ") + parts[1] + " " + operation.name().toLowerCase() + " " + parts[2]);
+    }
+    
+    /**
+     * Stream audit records: log [--since <time>] [--until <time>] [--event <event>] [--user <name>] [--path <directory>] [--limit <n>]
+     */
+    private void showLog(String[] parts, PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to read the audit log.");
+            return;
+        }
+        if (config.getAuditDirectory() == null) {
+            out.println("Auditing is disabled.");
+            return;
+        }
+        AuditReader.Filter filter;
+        try {
+            filter = AuditReader.Filter.parse(parts, 1);
+        } catch (IllegalArgumentException e) {
+            out.println("Error: " + e.getMessage());
+            return;
+        }
+        new AuditReader(config.getAuditDirectory()).print(filter, out);
+    }
+    
+    /**
+     * Stream the changes enable or disable would make without making them: plan enable|disable [file]
+     */
+    private void showPlan(String[] parts, PrintStream out, String caller) throws IOException {
+        if (parts.length < 2 || parts.length > 3
+                || !(parts[1].equalsIgnoreCase("enable") || parts[1].equalsIgnoreCase("disable"))) {
+            out.println("Usage: plan enable|disable [file]");
+            return;
+        }
+        boolean writeEnabled = parts[1].equalsIgnoreCase("enable");
+        Path file = null;
+        if (parts.length > 2) {
+            if (!userManager.isAdmin(caller)) {
+                out.println("Error: Admin privileges required to write a plan to a file.");
+                return;
+            }
+            file = reportFile(parts[2], out);
+            if (file == null) {
+                return;
+            }
+        }
+        PrintStream target;
+        try {
+            target = file != null ? new PrintStream(new BufferedOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE_NEW)), false, "UTF-8") : out;
+        } catch (FileAlreadyExistsException e) {
+            out.println("Error: " + file + " already exists.");
+            return;
+        }
+        PermissionWalker.WalkResult result;
+        try {
+            // Lines are written as the walk finds them, in no particular order, so nothing is collected
+            result = permissionManager.plan(writeEnabled, (path, current, mode) -> target.println(
+                    path + " " + formatMode(current) + " -> " + formatMode(mode)));
+        } finally {
+            if (target != out) {
+                target.close();
+            }
+        }
+        if (target != out && target.checkError()) {
+            throw new IOException("Could not write plan to " + file);
+        }
+        out.println(String.format("Plan for %s: %d entries in %d directories, %d to change, %d already correct",
+                parts[1].toLowerCase(), result.getEntries(), result.getDirectories(), result.getApplied(),
+                result.getSkipped()));
+        out.println("  Estimated syscalls: " + result.getEstimatedSyscalls() + " (" + result.getEntries() + " stat, "
+                + 3 * result.getDirectories() + " directory reads, " + result.getApplied() + " chmod)");
+        if (result.getFailures() > 0) {
+            out.println("  Unreadable entries: " + result.getFailures() + " (first: "
+                    + result.getFirstFailure().getMessage() + ")");
+        }
+        if (target != out) {
+            out.println("  Written to " + file);
+        }
+    }
+    
+    /**
+     * Resolves a file name given to a command inside the reports directory, creating the directories it
+     * needs; returns null, after saying why, if file output is disabled or the name points outside it
+     */
+    private Path reportFile(String name, PrintStream out) throws IOException {
+        Path directory = config.getReportsDirectory();
+        if (directory == null) {
+            out.println("Error: Writing reports to files is disabled; set reports.dir.");
+            return null;
+        }
+        Path base = directory.toAbsolutePath().normalize();
+        Path file = base.resolve(name).normalize();
+        if (Paths.get(name).isAbsolute() || !file.startsWith(base) || file.equals(base)) {
+            out.println("Error: Report files are written to " + directory + "; give a name inside it: " + name);
+            return null;
+        }
+        Files.createDirectories(file.getParent());
+        // A link inside the reports directory must not lead the file out of it
+        if (!file.getParent().toRealPath().startsWith(base.toRealPath())) {
+            out.println("Error: " + name + " leads outside " + directory);
+            return null;
+        }
+        return file;
+    }
+    
+    /**
+     * Write an inventory of every controlled entry with its mode, owner and whether it violates policy: audit [prefix]
+     */
+    private void writeInventory(String[] parts, PrintStream out, String caller) throws IOException {
+        if (!userManager.isAdmin(caller)) {
+            out.println("Error: Admin privileges required to write an inventory.");
+            return;
+        }
+        String prefix = parts.length > 1 ? parts[1] : "inventory";
+        Path csvFile = reportFile(prefix + ".csv", out);
+        Path columnarFile = csvFile != null ? reportFile(prefix + ".pcinv", out) : null;
+        if (columnarFile == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        PermissionWalker.WalkResult result;
+        try (Inventory inventory = new Inventory(csvFile, columnarFile)) {
+            result = permissionManager.inventory(inventory);
+        } catch (FileAlreadyExistsException e) {
+            out.println("Error: " + e.getFile() + " already exists.");
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        out.println(String.format("Inventory: %d entries in %d directories, %d violations (%.1fs, %.0f entries/sec)",
+                result.getEntries(), result.getDirectories(), result.getApplied(), seconds,
+                seconds > 0 ? result.getEntries() / seconds : 0));
+        if (result.getFailures() > 0) {
+            out.println("  Unreadable entries: " + result.getFailures() + " (first: "
+                    + result.getFirstFailure().getMessage() + ")");
+        }
+        out.println("  Written to " + csvFile + " and " + columnarFile);
+    }
+    
+    private static String formatMode(int mode) {
+        return mode < 0 ? "?" : String.format("%04o", mode);
     }
     
     /**
      * Show current permission status
      */
-    private void showStatus() {
-        System.out.println("Current Status:");
-        System.out.println("  User: " + userManager.getCurrentUser());
-        System.out.println("  Admin Role: " + userManager.hasAdminRole());
-        System.out.println("  Write Permissions Enabled: " + permissionManager.areWritePermissionsEnabled());
-        System.out.println("  Controlled Folders: " + permissionManager.getControlledFolders().size());
+    private void showStatus(PrintStream out, String caller) {
+        out.println("Current Status:");
+        out.println("  User: " + caller);
+        out.println("  Admin Role: " + userManager.isAdmin(caller));
+        out.println("  Write Permissions Enabled: " + permissionManager.areWritePermissionsEnabled());
+        out.println("  Controlled Folders: " + permissionManager.getControlledFolders().size());
+        ApplyOperation operation = permissionManager.getActiveOperation();
+        if (operation != null) {
+            out.println("  Background " + (operation.isEnable() ? "Enable" : "Disable") + ": "
+                    + operation.getFoldersDone() + " of " + operation.getFolders().size() + " folders done");
+        }
+        Map<String, String> failedRoots = permissionManager.getFailedRoots();
+        if (!failedRoots.isEmpty()) {
+            out.println("  Failed Folders: " + failedRoots.size());
+            for (Map.Entry<String, String> root : failedRoots.entrySet()) {
+                out.println("    " + root.getKey() + " (" + root.getValue() + ")");
+            }
+        }
+        UserDirectory directory = userManager.getUserDirectory();
+        if (directory != null) {
+            out.println("  User Directory: " + directory.getUserCount() + " users, " + directory.getGroupCount()
+                    + " groups, " + userManager.getDirectoryAdminCount() + " admins");
+        }
+        DriftWatcher watcher = permissionManager.getDriftWatcher();
+        if (watcher != null) {
+            out.println("  Watched Directories: " + watcher.getWatchedDirectories());
+            out.println("  Drift Corrections: " + watcher.getCorrectedEntries());
+        }
+        EventBus events = permissionManager.getEventBus();
+        if (events.hasListeners()) {
+            out.println("  Events Delivered: " + events.getDelivered() + " (" + events.getDropped() + " dropped, "
+                    + events.getPending() + " pending)");
+        }
+        Map<String, Long> grants = permissionManager.getGrants();
+        if (!grants.isEmpty()) {
+            long now = System.currentTimeMillis();
+            out.println("  Timed Grants: " + grants.size());
+            for (Map.Entry<String, Long> grant : grants.entrySet()) {
+                long remaining = Math.max(0, grant.getValue() - now);
+                out.println("    " + grant.getKey() + " (expires in "
+                        + formatDuration(Duration.ofSeconds((remaining + 999) / 1000)) + ")");
+            }
+        }
+        if (configWatcher != null) {
+            out.println("  Config Reloads: " + configWatcher.getReloads() + " (" + configWatcher.getRejections() + " rejected)");
+        }
+    }
+    
+    /**
+     * Estimate from a random sample how many controlled entries have drifted from policy on disk
+     */
+    private void verifyPermissions(PrintStream out) throws IOException {
+        DriftSampler.Result result = permissionManager.verify(config.getVerifySampleSize(),
+                TimeUnit.MILLISECONDS.toNanos(config.getVerifyBudgetMillis()));
+        DriftSampler.Estimate total = result.getTotal();
+        out.println(String.format("Verification (%d of %d entries sampled in %.1f s%s):", total.getChecked(),
+                total.getSeen(), result.getElapsedNanos() / 1e9,
+                result.isComplete() ? "" : ", walk cut short by the time budget"));
+        out.println("  Estimated Drift: " + formatEstimate(total));
+        for (Map.Entry<String, DriftSampler.Estimate> folder : result.getFolders().entrySet()) {
+            out.println("    " + folder.getKey() + ": " + formatEstimate(folder.getValue()));
+        }
+        if (result.getErrors() > 0) {
+            out.println("  Unreadable Entries: " + result.getErrors());
+        }
+    }
+    
+    private static String formatEstimate(DriftSampler.Estimate estimate) {
+        if (estimate.getChecked() == 0) {
+            return "no entries checked";
+        }
+        return String.format("%.2f%% (95%% CI %.2f%%-%.2f%%, %d of %d drifted)", 100 * estimate.getRate(),
+                100 * estimate.getLower(), 100 * estimate.getUpper(), estimate.getDrifted(), estimate.getChecked());
+    }
+    
+    /**
+     * Show operation counts and latency percentiles
+     */
+    private void showStats(PrintStream out) {
+        out.println("Operation Stats:");
+        out.println(String.format("  %-12s %10s %8s %12s %12s %12s %12s %12s",
+                "operation", "count", "failed", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (Metrics.OperationStats stats : metrics.getOperations().values()) {
+            out.println(String.format("  %-12s %10d %8d %12.1f %12.1f %12.1f %12.1f %12.1f",
+                    stats.getName(), stats.getCount(), stats.getFailures(), stats.getMeanMicros(),
+                    stats.getP50Micros(), stats.getP99Micros(), stats.getP999Micros(), stats.getMaxMicros()));
+        }
+        out.println(String.format("  Entries Walked: %d (%.0f entries/sec)", metrics.getEntries(), metrics.getEntriesPerSecond()));
     }
     
     /**
      * Show help information
      */
-    private void showHelp() {
-        System.out.println("\nPermissions Checker Help:");
-        System.out.println("  enable  - Enable writing by non-admin users (admin only)");
-        System.out.println("  disable - Disable writing by non-admin users (admin only)");
-        System.out.println("  status  - Show current permission status");
-        System.out.println("  help    - Show this help message");
-        System.out.println("  exit    - Exit the application");
-        System.out.println();
+    private void showHelp(PrintStream out) {
+        out.println("\nPermissions Checker Help:");
+        out.println("  enable  - Enable writing by non-admin users (admin only)");
+        out.println("  enable <folder> [for <duration>] - Enable writing on one folder, e.g. for 30m (admin only)");
+        out.println("  disable [<folder>] - Disable writing by non-admin users (admin only)");
+        out.println("  enable & | disable & - Apply all folders in the background (admin only)");
+        out.println("  progress - Show how far the background enable or disable has got");
+        out.println("  cancel  - Stop the background enable or disable (admin only)");
+        out.println("  status [--verify] - Show current permission status, estimating drift on disk from a random sample");
+        out.println("  watch   - Correct permission drift in the background (admin only)");
+        out.println("  check <user> <path> [read|write] - Check whether a user may access a path");
+        out.println("  serve   - Accept commands from local clients over a socket (admin only)");
+        out.println("  agent   - Accept commands from a coordinator over TCP (admin only)");
+        out.println("  fanout <command> - Run a command on every configured agent at once (admin only)");
+        out.println("  batch [file] - Run commands from a file or stdin, coalescing enable/disable toggles");
+        out.println("  stats   - Show operation counts and latency percentiles");
+        out.println("  audit [prefix] - Write every controlled entry's mode, owner and policy violations to CSV and binary files");
+        out.println("  plan enable|disable [file] - List the changes enable or disable would make, without making them");
+        out.println("  log [--since <time>] [--event <event>] [--path <dir>] ... - Show audit records (admin only)");
+        out.println("  help    - Show this help message");
+        out.println("  exit    - Exit the application");
+        out.println();
     }
     
     /**
      * Cleanup resources
      */
-    private void cleanup() {
+    void cleanup() {
+        if (configWatcher != null) {
+            try {
+                configWatcher.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not stop config watcher: " + e.getMessage());
+            }
+        }
+        permissionManager.close();
+        metrics.stopExport();
+        if (auditLog != null) {
+            try {
+                auditLog.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not close audit log: " + e.getMessage());
+            }
+        }
+        if (agentServer != null) {
+            try {
+                agentServer.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not stop agent: " + e.getMessage());
+            }
+        }
+        if (commandServer != null) {
+            try {
+                commandServer.close();
+            } catch (IOException e) {
+                System.err.println("Warning: Could not stop command server: " + e.getMessage());
+            }
+        }
         if (scanner != null) {
             scanner.close();
         }
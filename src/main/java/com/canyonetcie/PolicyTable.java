@@ -0,0 +1,332 @@
+package com.canyonetcie;
+
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable access policy compiled from the configuration.
+ *
+ * Controlled folders get dense ids, with their read-only and read-write
+ * directory modes held in arrays indexed by id. Roles are bits of a long:
+ * users and groups map to the mask of roles they hold, and each folder has
+ * the mask of roles allowed to write to it. A check is therefore a map lookup
+ * followed by mask arithmetic, and no property is parsed after compilation.
+ *
+ * Roles are configured as:
+ * <pre>
+ * roles=admin,editors
+ * role.editors.users=alice,bob
+ * role.editors.groups=staff
+ * role.editors.write=./data
+ * role.editors.manage=false
+ * </pre>
+ * and folder modes as {@code folder.mode.readonly.<folder>=r-xr-x---} and
+ * {@code folder.mode.readwrite.<folder>=rwxrwx---}, falling back to
+ * {@code default.mode.readonly} and {@code default.mode.readwrite}.
+ */
+public final class PolicyTable {
+
+    public static final int MAX_ROLES = Long.SIZE;
+
+    private static final String DEFAULT_READ_ONLY = "r-xr-xr-x";
+    private static final String DEFAULT_READ_WRITE = "rwxrwxrwx";
+    private static final String WILDCARD = "*";
+    private static final PosixFilePermission[] BITS = {
+            PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+            PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ };
+    private static final List<Set<PosixFilePermission>> MODES = buildModes();
+
+    private final List<String> folders;
+    private final Map<String, Integer> folderIds;
+    private final short[] readOnlyModes;
+    private final short[] readWriteModes;
+    private final short defaultReadOnlyMode;
+    private final short defaultReadWriteMode;
+    private final List<String> roles;
+    private final Map<String, Long> userRoles;
+    private final Map<String, Long> groupRoles;
+    private final long[] writeMasks;
+    private final long writeAnyMask;
+    private final long manageMask;
+    private final Set<String> managerGroups;
+
+    private PolicyTable(List<String> folders, Map<String, Integer> folderIds, short[] readOnlyModes,
+                        short[] readWriteModes, short defaultReadOnlyMode, short defaultReadWriteMode,
+                        List<String> roles, Map<String, Long> userRoles, Map<String, Long> groupRoles,
+                        long[] writeMasks, long writeAnyMask, long manageMask) {
+        this.folders = folders;
+        this.folderIds = folderIds;
+        this.readOnlyModes = readOnlyModes;
+        this.readWriteModes = readWriteModes;
+        this.defaultReadOnlyMode = defaultReadOnlyMode;
+        this.defaultReadWriteMode = defaultReadWriteMode;
+        this.roles = roles;
+        this.userRoles = userRoles;
+        this.groupRoles = groupRoles;
+        this.writeMasks = writeMasks;
+        this.writeAnyMask = writeAnyMask;
+        this.manageMask = manageMask;
+        Set<String> groups = new HashSet<>();
+        for (Map.Entry<String, Long> group : groupRoles.entrySet()) {
+            if ((group.getValue() & manageMask) != 0) {
+                groups.add(group.getKey());
+            }
+        }
+        this.managerGroups = Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * Compiles the controlled folders, folder modes and roles of the configuration,
+     * printing a warning for each setting that had to be ignored or defaulted
+     */
+    public static PolicyTable compile(Config config) {
+        List<String> problems = new ArrayList<>();
+        PolicyTable policy = compile(config, problems);
+        for (String problem : problems) {
+            System.err.println("Warning: " + problem);
+        }
+        return policy;
+    }
+
+    /**
+     * Compiles the configuration, adding a description of every invalid setting to the problems
+     */
+    public static PolicyTable compile(Config config, List<String> problems) {
+        List<String> folders = new ArrayList<>();
+        Map<String, Integer> folderIds = new HashMap<>();
+        for (String folder : splitList(config.getControlledFolders())) {
+            if (folderIds.putIfAbsent(folderKey(folder), folders.size()) == null) {
+                folders.add(folder);
+            }
+        }
+
+        if (folders.isEmpty()) {
+            problems.add("No controlled folders configured");
+        }
+
+        short defaultReadOnly = parseMode(config, "default.mode.readonly", DEFAULT_READ_ONLY, DEFAULT_READ_ONLY,
+                problems);
+        short defaultReadWrite = parseMode(config, "default.mode.readwrite", DEFAULT_READ_WRITE, DEFAULT_READ_WRITE,
+                problems);
+        short[] readOnlyModes = new short[folders.size()];
+        short[] readWriteModes = new short[folders.size()];
+        for (int id = 0; id < folders.size(); id++) {
+            readOnlyModes[id] = parseMode(config, "folder.mode.readonly." + folders.get(id),
+                    null, modeString(defaultReadOnly), problems);
+            readWriteModes[id] = parseMode(config, "folder.mode.readwrite." + folders.get(id),
+                    null, modeString(defaultReadWrite), problems);
+        }
+
+        List<String> roles = new ArrayList<>(new LinkedHashSet<>(splitList(config.getProperty("roles", "admin"))));
+        if (roles.size() > MAX_ROLES) {
+            problems.add("Only the first " + MAX_ROLES + " roles are used");
+            roles = roles.subList(0, MAX_ROLES);
+        }
+        Map<String, Long> userRoles = new HashMap<>();
+        Map<String, Long> groupRoles = new HashMap<>();
+        long[] writeMasks = new long[folders.size()];
+        long writeAnyMask = 0;
+        long manageMask = 0;
+        for (int index = 0; index < roles.size(); index++) {
+            String role = roles.get(index);
+            long bit = 1L << index;
+            boolean admin = role.equals("admin");
+            String users = config.getProperty("role." + role + ".users", admin ? config.getAdminUsers() : "");
+            for (String user : splitList(users)) {
+                userRoles.merge(user.toLowerCase(), bit, (a, b) -> a | b);
+            }
+            for (String group : splitList(config.getProperty("role." + role + ".groups", ""))) {
+                groupRoles.merge(group, bit, (a, b) -> a | b);
+            }
+            for (String folder : splitList(config.getProperty("role." + role + ".write", ""))) {
+                if (folder.equals(WILDCARD)) {
+                    writeAnyMask |= bit;
+                    continue;
+                }
+                Integer id = folderIds.get(folderKey(folder));
+                if (id == null) {
+                    problems.add("Role " + role + " grants write to an uncontrolled folder: " + folder);
+                } else {
+                    writeMasks[id] |= bit;
+                }
+            }
+            if (Boolean.parseBoolean(config.getProperty("role." + role + ".manage", "false").trim())) {
+                manageMask |= bit;
+            }
+        }
+
+        return new PolicyTable(Collections.unmodifiableList(folders), folderIds, readOnlyModes, readWriteModes,
+                defaultReadOnly, defaultReadWrite, Collections.unmodifiableList(roles), userRoles, groupRoles,
+                writeMasks, writeAnyMask, manageMask);
+    }
+
+    /**
+     * Checks if a folder has the same directory modes in both policies
+     */
+    public boolean sameModes(PolicyTable other, String folder) {
+        return getMode(folder, true).equals(other.getMode(folder, true))
+                && getMode(folder, false).equals(other.getMode(folder, false));
+    }
+
+    /**
+     * Gets the controlled folders in configuration order
+     */
+    public List<String> getFolders() {
+        return folders;
+    }
+
+    /**
+     * Gets the role names; a role's index is its bit in a role mask
+     */
+    public List<String> getRoles() {
+        return roles;
+    }
+
+    /**
+     * Gets the groups whose members hold a role allowed to change folder states
+     */
+    public Set<String> getManagerGroups() {
+        return managerGroups;
+    }
+
+    /**
+     * Gets the directory mode a folder should have in the requested state;
+     * folders added after compilation use the default modes
+     */
+    public Set<PosixFilePermission> getMode(String folder, boolean readOnly) {
+        Integer id = folderIds.get(folderKey(folder));
+        if (id == null) {
+            return MODES.get(readOnly ? defaultReadOnlyMode : defaultReadWriteMode);
+        }
+        return MODES.get(readOnly ? readOnlyModes[id] : readWriteModes[id]);
+    }
+
+    /**
+     * Gets the mask of roles held by a user, directly or through one of the groups
+     */
+    public long rolesOf(String user, Collection<String> groups) {
+        Long mask = userRoles.get(user.toLowerCase());
+        long roleMask = mask != null ? mask : 0;
+        for (String group : groups) {
+            Long groupMask = groupRoles.get(group);
+            if (groupMask != null) {
+                roleMask |= groupMask;
+            }
+        }
+        return roleMask;
+    }
+
+    /**
+     * Gets the mask of roles the group grants to its members
+     */
+    public long rolesOfGroup(String group) {
+        Long mask = groupRoles.get(group);
+        return mask != null ? mask : 0;
+    }
+
+    /**
+     * Checks if any of the roles may enable or disable write permissions
+     */
+    public boolean canManage(long roleMask) {
+        return (roleMask & manageMask) != 0;
+    }
+
+    /**
+     * Checks if any of the roles may write to the folder regardless of its state
+     */
+    public boolean canWrite(long roleMask, String folder) {
+        if ((roleMask & writeAnyMask) != 0) {
+            return true;
+        }
+        Integer id = folderIds.get(folderKey(folder));
+        return id != null && (roleMask & writeMasks[id]) != 0;
+    }
+
+    /**
+     * Gets the shared, unmodifiable permission set for a mode such as 0755
+     */
+    public static Set<PosixFilePermission> permissions(int mode) {
+        return MODES.get(mode & 0777);
+    }
+
+    /**
+     * Converts a permission set to its numeric mode
+     */
+    public static int mode(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        for (int bit = 0; bit < BITS.length; bit++) {
+            if (permissions.contains(BITS[bit])) {
+                mode |= 1 << bit;
+            }
+        }
+        return mode;
+    }
+
+    private static List<Set<PosixFilePermission>> buildModes() {
+        List<Set<PosixFilePermission>> modes = new ArrayList<>(512);
+        for (int mode = 0; mode < 512; mode++) {
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (int bit = 0; bit < BITS.length; bit++) {
+                if ((mode & (1 << bit)) != 0) {
+                    permissions.add(BITS[bit]);
+                }
+            }
+            modes.add(Collections.unmodifiableSet(permissions));
+        }
+        return Collections.unmodifiableList(modes);
+    }
+
+    private static String folderKey(String folder) {
+        return FolderIndex.normalize(folder).toString();
+    }
+
+    private static String modeString(short mode) {
+        return PosixFilePermissions.toString(MODES.get(mode));
+    }
+
+    /**
+     * Parses a mode given as rwxr-x--- or as octal, reporting a problem and using the fallback if it is invalid
+     */
+    private static short parseMode(Config config, String key, String defaultValue, String fallback,
+                                   List<String> problems) {
+        String value = config.getProperty(key, defaultValue);
+        if (value == null) {
+            return (short) mode(PosixFilePermissions.fromString(fallback));
+        }
+        value = value.trim();
+        try {
+            if (value.matches("0?[0-7]{3}")) {
+                return (short) Integer.parseInt(value, 8);
+            }
+            return (short) mode(PosixFilePermissions.fromString(value));
+        } catch (IllegalArgumentException e) {
+            problems.add("Invalid value for " + key + ": " + value);
+            return (short) mode(PosixFilePermissions.fromString(fallback));
+        }
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        if (value == null) {
+            return items;
+        }
+        for (String item : value.split(",")) {
+            String trimmed = item.trim();
+            if (!trimmed.isEmpty()) {
+                items.add(trimmed);
+            }
+        }
+        return items;
+    }
+}
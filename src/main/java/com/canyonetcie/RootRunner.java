@@ -0,0 +1,202 @@
+package com.canyonetcie;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a task for each controlled root concurrently, so one slow root does not hold up the others.
+ *
+ * At most {@code parallelism} roots are worked on at a time. Each root gets
+ * its own deadline, counted from when its task starts; a root that misses it
+ * is reported as failed and its walk control is cancelled, which stops the
+ * walk at its next directory. A thread stuck in a hung filesystem call cannot
+ * be stopped, so a timed-out root no longer counts against the limit and the
+ * remaining roots start in its place. Before returning, the runner waits up
+ * to one more timeout for timed-out roots to stop, so their walks do not go
+ * on changing modes after the caller has moved on.
+ */
+public class RootRunner {
+
+    /**
+     * Work done for one root
+     */
+    public interface RootTask {
+        /**
+         * Works on the root, stopping early once the control is cancelled
+         */
+        void run(String root, PermissionWalker.Control control) throws Exception;
+    }
+
+    private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+    private final int parallelism;
+    private final long timeoutNanos;
+    private final String name;
+
+    /**
+     * Creates a runner whose threads are named after the given action
+     */
+    public RootRunner(int parallelism, long timeoutMillis, String name) {
+        this.parallelism = Math.max(1, parallelism);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMillis));
+        this.name = name;
+    }
+
+    /**
+     * Runs the task for every root and waits until each has finished, failed or timed out.
+     *
+     * Returns the failure of each root that did not complete, in the order the roots were given.
+     */
+    public Map<String, Exception> run(Collection<String> roots, RootTask task) {
+        Map<String, Exception> failures = new HashMap<>();
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + THREAD_IDS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<String> completion = new ExecutorCompletionService<>(executor);
+        Deque<String> queue = new ArrayDeque<>(roots);
+        Map<Future<String>, Running> running = new HashMap<>();
+        List<Running> timedOut = new ArrayList<>();
+        try {
+            while (!queue.isEmpty() || !running.isEmpty()) {
+                while (running.size() < parallelism && !queue.isEmpty()) {
+                    String root = queue.poll();
+                    Running started = new Running(root);
+                    running.put(completion.submit(() -> {
+                        started.start();
+                        try {
+                            task.run(root, started.control);
+                        } finally {
+                            started.stopped.countDown();
+                        }
+                        return root;
+                    }), started);
+                }
+
+                Future<String> done;
+                try {
+                    done = completion.poll(nextWait(running), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    for (Map.Entry<Future<String>, Running> root : running.entrySet()) {
+                        root.getValue().control.cancel();
+                        root.getKey().cancel(true);
+                        failures.put(root.getValue().root, e);
+                    }
+                    for (String root : queue) {
+                        failures.put(root, e);
+                    }
+                    break;
+                }
+                Running finished = done != null ? running.remove(done) : null;
+                if (finished != null) {
+                    try {
+                        done.get();
+                    } catch (ExecutionException e) {
+                        failures.put(finished.root, e.getCause() instanceof Exception
+                                ? (Exception) e.getCause() : new ExecutionException(e.getCause()));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                long now = System.nanoTime();
+                Iterator<Map.Entry<Future<String>, Running>> active = running.entrySet().iterator();
+                while (active.hasNext()) {
+                    Map.Entry<Future<String>, Running> root = active.next();
+                    Running started = root.getValue();
+                    if (started.started && now - started.startNanos >= timeoutNanos) {
+                        started.control.cancel();
+                        root.getKey().cancel(true);
+                        active.remove();
+                        timedOut.add(started);
+                        failures.put(started.root, new TimeoutException(
+                                "Timed out after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+                    }
+                }
+            }
+            awaitStopped(timedOut, failures);
+        } finally {
+            // Idle threads exit on their own; abandoned ones are daemons and do not block shutdown
+            executor.shutdown();
+        }
+
+        Map<String, Exception> ordered = new LinkedHashMap<>();
+        for (String root : roots) {
+            if (failures.containsKey(root)) {
+                ordered.put(root, failures.get(root));
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Waits up to one timeout for cancelled roots to stop, noting in their failure any that did not
+     */
+    private void awaitStopped(List<Running> timedOut, Map<String, Exception> failures) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        for (Running root : timedOut) {
+            try {
+                if (!root.stopped.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    failures.put(root.root, new TimeoutException("Timed out after "
+                            + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms and did not stop when cancelled"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets how long to wait for a completion before the next running root reaches its deadline
+     */
+    private long nextWait(Map<Future<String>, Running> running) {
+        long now = System.nanoTime();
+        long wait = timeoutNanos;
+        for (Running root : running.values()) {
+            if (!root.started) {
+                // Not started yet; check again shortly so its deadline is enforced once it runs
+                wait = Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100));
+            } else {
+                wait = Math.min(wait, root.startNanos + timeoutNanos - now);
+            }
+        }
+        return Math.max(0, wait);
+    }
+
+    private static final class Running {
+        final String root;
+        final PermissionWalker.Control control = new PermissionWalker.Control();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        volatile long startNanos;
+        volatile boolean started;
+
+        Running(String root) {
+            this.root = root;
+        }
+
+        void start() {
+            startNanos = System.nanoTime();
+            started = true;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.canyonetcie;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Runs expiry callbacks for many timeouts on a single thread.
+ *
+ * Timeouts are hashed by the tick they fall due in onto a fixed ring of
+ * slots, so scheduling and cancelling are constant time however many are
+ * pending. Each tick the thread looks at one slot only; timeouts more than
+ * one turn of the wheel away stay in their slot until their tick comes
+ * round. Everything due in the same tick is handed to the handler as one
+ * batch, so the tick length is also how close together expiries must be to
+ * be handled together, and the precision they are handled with.
+ */
+public class TimingWheel<K> implements Closeable {
+
+    private final long tickMillis;
+    private final List<Set<Timeout<K>>> slots;
+    private final int mask;
+    private final Consumer<List<Timeout<K>>> handler;
+    private final Object lock = new Object();
+    private long startMillis;
+    private long tick;
+    private int size;
+    private boolean closed;
+    private Thread worker;
+
+    /**
+     * Creates a wheel with the given tick length and number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int slotCount, Consumer<List<Timeout<K>>> handler) {
+        int count = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.slots = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slots.add(new LinkedHashSet<>());
+        }
+        this.mask = count - 1;
+        this.handler = handler;
+    }
+
+    /**
+     * Schedules the key to expire after the given delay, starting the wheel thread on first use
+     */
+    public Timeout<K> schedule(K key, long delayMillis) {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Timing wheel is closed");
+            }
+            long now = System.currentTimeMillis();
+            if (worker == null) {
+                startMillis = now;
+                worker = new Thread(this::run, "timing-wheel");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            long deadline = now + Math.max(0, delayMillis);
+            // Never before the tick being processed, so nothing lands in a slot already passed
+            long due = Math.max(tick, (deadline - startMillis) / tickMillis);
+            Timeout<K> timeout = new Timeout<>(key, deadline, due);
+            slots.get((int) (due & mask)).add(timeout);
+            size++;
+            lock.notifyAll();
+            return timeout;
+        }
+    }
+
+    /**
+     * Cancels a pending timeout; returns false if it already expired or was cancelled
+     */
+    public boolean cancel(Timeout<K> timeout) {
+        synchronized (lock) {
+            if (slots.get((int) (timeout.tick & mask)).remove(timeout)) {
+                size--;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gets the number of pending timeouts
+     */
+    public int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    /**
+     * Gets the length of a tick in milliseconds
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Stops the wheel; pending timeouts never expire
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Timeout<K>> expired = new ArrayList<>();
+            synchronized (lock) {
+                try {
+                    while (!closed) {
+                        if (size == 0) {
+                            lock.wait();
+                            continue;
+                        }
+                        long wait = startMillis + (tick + 1) * tickMillis - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        lock.wait(wait);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                long current = (System.currentTimeMillis() - startMillis) / tickMillis;
+                if (current - tick > mask) {
+                    // After a long idle gap one pass over every slot finds everything due
+                    for (Set<Timeout<K>> slot : slots) {
+                        expire(slot, current - 1, expired);
+                    }
+                    tick = current;
+                }
+                for (; tick < current; tick++) {
+                    expire(slots.get((int) (tick & mask)), tick, expired);
+                }
+            }
+            if (!expired.isEmpty()) {
+                try {
+                    handler.accept(expired);
+                } catch (RuntimeException e) {
+                    System.err.println("Warning: Expiry handler failed: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the timeouts of a slot that are due by the given tick to the expired list
+     */
+    private void expire(Set<Timeout<K>> slot, long through, List<Timeout<K>> expired) {
+        Iterator<Timeout<K>> timeouts = slot.iterator();
+        while (timeouts.hasNext()) {
+            Timeout<K> timeout = timeouts.next();
+            if (timeout.tick <= through) {
+                timeouts.remove();
+                size--;
+                expired.add(timeout);
+            }
+        }
+    }
+
+    /**
+     * A pending expiry of a key
+     */
+    public static final class Timeout<K> {
+        private final K key;
+        private final long deadline;
+        private final long tick;
+
+        Timeout(K key, long deadline, long tick) {
+            this.key = key;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        /**
+         * Gets the requested expiry time in epoch milliseconds; it is handled at the end of the tick it falls in
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.canyonetcie;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the groups of the current process and of other users, and their
+ * admin status, without spawning a subprocess.
+ * 
+ * On Linux the uid and group ids are read from /proc/self/status; elsewhere
+ * the user's entry in /etc/passwd and the member lists in /etc/group are used.
+ * Group ids are mapped to names through /etc/group. The result is cached, and
+ * once the TTL expires it is only recomputed if /etc/passwd or /etc/group has
+ * been modified since it was resolved.
+ */
+public class UnixGroupResolver {
+
+    static final Set<String> DEFAULT_ADMIN_GROUPS = Set.of("wheel", "admin", "sudo", "root");
+
+    private final String userName;
+    private volatile Set<String> adminGroups;
+    private final Path procStatus;
+    private final Path passwdFile;
+    private final Path groupFile;
+    private final long ttlNanos;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Snapshot snapshot;
+
+    public UnixGroupResolver(String userName, long ttlSeconds) {
+        this(userName, ttlSeconds, DEFAULT_ADMIN_GROUPS);
+    }
+
+    public UnixGroupResolver(String userName, long ttlSeconds, Set<String> adminGroups) {
+        this(userName, Paths.get("/proc/self/status"), Paths.get("/etc/passwd"), Paths.get("/etc/group"),
+                ttlSeconds, adminGroups);
+    }
+
+    UnixGroupResolver(String userName, Path procStatus, Path passwdFile, Path groupFile, long ttlSeconds) {
+        this(userName, procStatus, passwdFile, groupFile, ttlSeconds, DEFAULT_ADMIN_GROUPS);
+    }
+
+    UnixGroupResolver(String userName, Path procStatus, Path passwdFile, Path groupFile, long ttlSeconds,
+                      Set<String> adminGroups) {
+        this.userName = userName;
+        this.adminGroups = Set.copyOf(adminGroups);
+        this.procStatus = procStatus;
+        this.passwdFile = passwdFile;
+        this.groupFile = groupFile;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+    }
+
+    /**
+     * Checks if the process runs as uid 0 or belongs to an admin group (by default wheel, admin, sudo, root)
+     */
+    public boolean isAdmin() {
+        return current().admin;
+    }
+
+    /**
+     * Checks if the named user has uid 0, an admin primary group, or is listed as a member of an admin group
+     */
+    public boolean isAdmin(String user) {
+        Snapshot current = current();
+        if (current.rootUsers.contains(user)) {
+            return true;
+        }
+        for (String group : current.groupsOf(user)) {
+            if (adminGroups.contains(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets a counter that increases every time membership is resolved again after a change
+     */
+    public long getGeneration() {
+        current();
+        return generation.get();
+    }
+
+    /**
+     * Gets the names of the groups the process belongs to
+     */
+    public Set<String> getGroupNames() {
+        return current().groupNames;
+    }
+
+    /**
+     * Gets the names of the named user's primary group and the groups listing the user as a member
+     */
+    public Set<String> getGroupNames(String user) {
+        return current().groupsOf(user);
+    }
+
+    /**
+     * Replaces the groups that make their members admins
+     */
+    public void setAdminGroups(Set<String> adminGroups) {
+        this.adminGroups = Set.copyOf(adminGroups);
+        invalidate();
+    }
+
+    /**
+     * Drops the cached membership so that the next check resolves it again
+     */
+    public void invalidate() {
+        snapshot = null;
+        generation.incrementAndGet();
+    }
+
+    private Snapshot current() {
+        Snapshot cached = snapshot;
+        long now = System.nanoTime();
+        if (cached != null && now - cached.checkedAt < ttlNanos) {
+            return cached;
+        }
+        long passwdModified = lastModified(passwdFile);
+        long groupModified = lastModified(groupFile);
+        if (cached != null && cached.passwdModified == passwdModified && cached.groupModified == groupModified) {
+            cached = cached.recheckedAt(now);
+        } else {
+            if (cached != null) {
+                generation.incrementAndGet();
+            }
+            cached = resolve(passwdModified, groupModified, now);
+        }
+        snapshot = cached;
+        return cached;
+    }
+
+    private Snapshot resolve(long passwdModified, long groupModified, long now) {
+        long uid = -1;
+        Set<Long> gids = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(procStatus, StandardCharsets.UTF_8)) {
+                if (line.startsWith("Uid:")) {
+                    uid = Long.parseLong(line.substring(4).trim().split("\\s+")[0]);
+                } else if (line.startsWith("Gid:")) {
+                    gids.add(Long.parseLong(line.substring(4).trim().split("\\s+")[0]));
+                } else if (line.startsWith("Groups:")) {
+                    for (String gid : line.substring(7).trim().split("\\s+")) {
+                        if (!gid.isEmpty()) {
+                            gids.add(Long.parseLong(gid));
+                        }
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // No procfs, fall back to the user's passwd entry below
+        }
+
+        boolean fromProc = uid >= 0;
+        Map<String, Long> primaryGids = new HashMap<>();
+        Set<String> rootUsers = new HashSet<>();
+        for (String line : readLines(passwdFile)) {
+            String[] fields = line.split(":", -1);
+            if (fields.length < 4) {
+                continue;
+            }
+            long userUid = parseId(fields[2]);
+            primaryGids.put(fields[0], parseId(fields[3]));
+            if (userUid == 0) {
+                rootUsers.add(fields[0]);
+            }
+            if (!fromProc && fields[0].equals(userName)) {
+                uid = userUid;
+                gids.add(parseId(fields[3]));
+            }
+        }
+
+        Set<String> groupNames = new HashSet<>();
+        Map<Long, String> gidNames = new HashMap<>();
+        Map<String, Set<String>> memberships = new HashMap<>();
+        for (String line : readLines(groupFile)) {
+            String[] fields = line.split(":", -1);
+            if (fields.length < 4) {
+                continue;
+            }
+            long gid = parseId(fields[2]);
+            List<String> members = Arrays.asList(fields[3].split(","));
+            if (gids.contains(gid) || members.contains(userName)) {
+                groupNames.add(fields[0]);
+            }
+            gidNames.putIfAbsent(gid, fields[0]);
+            for (String member : members) {
+                if (!member.isEmpty()) {
+                    memberships.computeIfAbsent(member, m -> new HashSet<>()).add(fields[0]);
+                }
+            }
+        }
+
+        boolean admin = uid == 0 || groupNames.stream().anyMatch(adminGroups::contains);
+        return new Snapshot(Collections.unmodifiableSet(groupNames), admin, primaryGids, gidNames, memberships,
+                rootUsers, passwdModified, groupModified, now);
+    }
+
+    private static List<String> readLines(Path file) {
+        try {
+            return Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static long parseId(String field) {
+        try {
+            return Long.parseLong(field.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).to(TimeUnit.NANOSECONDS);
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static final class Snapshot {
+        final Set<String> groupNames;
+        final boolean admin;
+        final Map<String, Long> primaryGids;
+        final Map<Long, String> gidNames;
+        final Map<String, Set<String>> memberships;
+        final Set<String> rootUsers;
+        final long passwdModified;
+        final long groupModified;
+        final long checkedAt;
+
+        Snapshot(Set<String> groupNames, boolean admin, Map<String, Long> primaryGids, Map<Long, String> gidNames,
+                 Map<String, Set<String>> memberships, Set<String> rootUsers, long passwdModified,
+                 long groupModified, long checkedAt) {
+            this.groupNames = groupNames;
+            this.admin = admin;
+            this.primaryGids = primaryGids;
+            this.gidNames = gidNames;
+            this.memberships = memberships;
+            this.rootUsers = rootUsers;
+            this.passwdModified = passwdModified;
+            this.groupModified = groupModified;
+            this.checkedAt = checkedAt;
+        }
+
+        Snapshot recheckedAt(long now) {
+            return new Snapshot(groupNames, admin, primaryGids, gidNames, memberships, rootUsers,
+                    passwdModified, groupModified, now);
+        }
+
+        Set<String> groupsOf(String user) {
+            Set<String> groups = new HashSet<>(memberships.getOrDefault(user, Collections.emptySet()));
+            Long primaryGid = primaryGids.get(user);
+            String primaryGroup = primaryGid != null ? gidNames.get(primaryGid) : null;
+            if (primaryGroup != null) {
+                groups.add(primaryGroup);
+            }
+            return groups;
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package com.canyonetcie;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Indexed snapshot of the users and groups of a user directory, for bulk role lookups.
+ *
+ * Users and groups are interned to dense int ids. Uids, primary gids and gids
+ * are held in int arrays indexed by id, and every group keeps its members,
+ * including the users for whom it is the primary group, as a bitset of user
+ * ids. A lookup is one map probe on the name followed by array and bit
+ * operations, so checking many users allocates nothing per user.
+ *
+ * A reload keeps the ids of users and groups that are still present, so two
+ * snapshots can be compared bit by bit to find the users whose entries
+ * changed. Ids of removed entries stay unused until more than half of the ids
+ * are unused, when the next reload compacts them.
+ *
+ * The directory is read from a {@link Source}: /etc/passwd and /etc/group, or
+ * an LDIF export of posixAccount and posixGroup entries standing in for an
+ * LDAP server.
+ */
+public final class UserDirectory {
+
+    /**
+     * Id returned for names that are not in the directory
+     */
+    public static final int NO_ID = -1;
+
+    private static final BitSet NO_MEMBERS = new BitSet();
+
+    private final long epoch;
+    private final String[] users;
+    private final Map<String, Integer> userIds;
+    private final int[] uids;
+    private final int[] primaryGids;
+    private final int userCount;
+    private final String[] groups;
+    private final Map<String, Integer> groupIds;
+    private final int[] gids;
+    private final BitSet[] members;
+    private final int groupCount;
+
+    private UserDirectory(long epoch, String[] users, Map<String, Integer> userIds, int[] uids, int[] primaryGids,
+                          String[] groups, Map<String, Integer> groupIds, int[] gids, BitSet[] members) {
+        this.epoch = epoch;
+        this.users = users;
+        this.userIds = userIds;
+        this.uids = uids;
+        this.primaryGids = primaryGids;
+        this.userCount = userIds.size();
+        this.groups = groups;
+        this.groupIds = groupIds;
+        this.gids = gids;
+        this.members = members;
+        this.groupCount = groupIds.size();
+    }
+
+    /**
+     * Creates the source configured by {@code users.directory}: {@code unix} for /etc/passwd and
+     * /etc/group, or the path of an LDIF file
+     */
+    public static Source source(String spec) {
+        if (spec.equalsIgnoreCase("unix")) {
+            return unixFiles(Paths.get("/etc/passwd"), Paths.get("/etc/group"));
+        }
+        if (spec.toLowerCase(Locale.ROOT).endsWith(".ldif")) {
+            return ldif(Paths.get(spec));
+        }
+        throw new IllegalArgumentException("Unsupported user directory: " + spec + " (use unix or an .ldif file)");
+    }
+
+    /**
+     * Creates a source reading passwd and group files; only the file that changed is parsed again
+     */
+    public static Source unixFiles(Path passwdFile, Path groupFile) {
+        return new UnixFiles(passwdFile, groupFile);
+    }
+
+    /**
+     * Creates a source reading posixAccount and posixGroup entries from an LDIF file
+     */
+    public static Source ldif(Path file) {
+        return new LdifFile(file);
+    }
+
+    /**
+     * Reads the source into a new directory, keeping the ids of entries already in the previous one if given
+     */
+    public static UserDirectory load(Source source, UserDirectory previous) throws IOException {
+        List<UserRecord> userRecords = new ArrayList<>();
+        List<GroupRecord> groupRecords = new ArrayList<>();
+        source.read(userRecords, groupRecords);
+        return build(userRecords, groupRecords, previous);
+    }
+
+    static UserDirectory build(List<UserRecord> userRecords, List<GroupRecord> groupRecords,
+                               UserDirectory previous) {
+        Map<String, UserRecord> uniqueUsers = new LinkedHashMap<>();
+        for (UserRecord user : userRecords) {
+            uniqueUsers.putIfAbsent(user.name, user);
+        }
+        Map<String, GroupRecord> uniqueGroups = new LinkedHashMap<>();
+        for (GroupRecord group : groupRecords) {
+            uniqueGroups.putIfAbsent(group.name, group);
+        }
+        // Compact once most ids belong to removed entries
+        if (previous != null && (previous.users.length > 2 * uniqueUsers.size() + 64
+                || previous.groups.length > 2 * uniqueGroups.size() + 64)) {
+            previous = new UserDirectory(previous.epoch + 1, new String[0], Collections.emptyMap(), new int[0],
+                    new int[0], new String[0], Collections.emptyMap(), new int[0], new BitSet[0]);
+        }
+
+        List<String> userNames = new ArrayList<>(previous != null
+                ? Arrays.asList(new String[previous.users.length]) : Collections.emptyList());
+        Map<String, Integer> userIds = new HashMap<>(uniqueUsers.size() * 2);
+        for (String name : uniqueUsers.keySet()) {
+            Integer id = previous != null ? previous.userIds.get(name) : null;
+            if (id == null) {
+                id = userNames.size();
+                userNames.add(name);
+            } else {
+                userNames.set(id, name);
+            }
+            userIds.put(name, id);
+        }
+        int[] uids = new int[userNames.size()];
+        int[] primaryGids = new int[userNames.size()];
+        Arrays.fill(uids, NO_ID);
+        Arrays.fill(primaryGids, NO_ID);
+        for (UserRecord user : uniqueUsers.values()) {
+            int id = userIds.get(user.name);
+            uids[id] = user.uid;
+            primaryGids[id] = user.gid;
+        }
+
+        List<String> groupNames = new ArrayList<>(previous != null
+                ? Arrays.asList(new String[previous.groups.length]) : Collections.emptyList());
+        Map<String, Integer> groupIds = new HashMap<>(uniqueGroups.size() * 2);
+        for (String name : uniqueGroups.keySet()) {
+            Integer id = previous != null ? previous.groupIds.get(name) : null;
+            if (id == null) {
+                id = groupNames.size();
+                groupNames.add(name);
+            } else {
+                groupNames.set(id, name);
+            }
+            groupIds.put(name, id);
+        }
+        int[] gids = new int[groupNames.size()];
+        BitSet[] members = new BitSet[groupNames.size()];
+        Arrays.fill(gids, NO_ID);
+        Map<Integer, Integer> groupsByGid = new HashMap<>();
+        for (GroupRecord group : uniqueGroups.values()) {
+            int id = groupIds.get(group.name);
+            gids[id] = group.gid;
+            members[id] = new BitSet(userNames.size());
+            groupsByGid.putIfAbsent(group.gid, id);
+            for (String member : group.members) {
+                Integer user = userIds.get(member);
+                if (user != null) {
+                    members[id].set(user);
+                }
+            }
+        }
+        for (int user = 0; user < primaryGids.length; user++) {
+            Integer group = primaryGids[user] == NO_ID ? null : groupsByGid.get(primaryGids[user]);
+            if (group != null) {
+                members[group].set(user);
+            }
+        }
+        return new UserDirectory(previous != null ? previous.epoch : 0, userNames.toArray(new String[0]), userIds,
+                uids, primaryGids, groupNames.toArray(new String[0]), groupIds, gids, members);
+    }
+
+    /**
+     * Gets the id of the named user, or {@link #NO_ID}
+     */
+    public int userId(String name) {
+        Integer id = userIds.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    /**
+     * Gets the name of the user with the id, or null if the id is unused
+     */
+    public String userName(int id) {
+        return id >= 0 && id < users.length ? users[id] : null;
+    }
+
+    /**
+     * Gets the uid of the user with the id, or {@link #NO_ID}
+     */
+    public int uid(int id) {
+        return uids[id];
+    }
+
+    /**
+     * Gets the id of the named group, or {@link #NO_ID}
+     */
+    public int groupId(String name) {
+        Integer id = groupIds.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    /**
+     * Gets the gid of the group with the id, or {@link #NO_ID}
+     */
+    public int gid(int id) {
+        return gids[id];
+    }
+
+    /**
+     * Checks if the user belongs to the group, as a listed member or through the primary group
+     */
+    public boolean isMember(int userId, int groupId) {
+        return groupId >= 0 && groupId < members.length && members[groupId] != null
+                && members[groupId].get(userId);
+    }
+
+    /**
+     * Gets the names of the groups the named user belongs to
+     */
+    public Set<String> groupsOf(String user) {
+        int id = userId(user);
+        if (id == NO_ID) {
+            return Collections.emptySet();
+        }
+        Set<String> names = new HashSet<>();
+        for (int group = 0; group < members.length; group++) {
+            if (isMember(id, group)) {
+                names.add(groups[group]);
+            }
+        }
+        return names;
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Computes the role mask and admin status of every user under the policy
+     */
+    public Roles roles(PolicyTable policy) {
+        long[] masks = new long[users.length];
+        BitSet admins = new BitSet(users.length);
+        for (int user = 0; user < users.length; user++) {
+            if (users[user] != null) {
+                masks[user] = policy.rolesOf(users[user], Collections.emptyList());
+            }
+        }
+        for (int group = 0; group < groups.length; group++) {
+            long mask = groups[group] != null ? policy.rolesOfGroup(groups[group]) : 0;
+            if (mask != 0) {
+                for (int user = members[group].nextSetBit(0); user >= 0; user = members[group].nextSetBit(user + 1)) {
+                    masks[user] |= mask;
+                }
+            }
+        }
+        for (int user = 0; user < users.length; user++) {
+            if (users[user] != null && (uids[user] == 0 || policy.canManage(masks[user]))) {
+                admins.set(user);
+            }
+        }
+        return new Roles(this, policy, masks, admins);
+    }
+
+    /**
+     * Gets the names of the users added, removed or changed since the previous snapshot, including users
+     * who joined or left a group
+     */
+    public Set<String> changedUsers(UserDirectory previous) {
+        Set<String> changed = new HashSet<>();
+        if (previous == null || previous.epoch != epoch) {
+            // Ids were reassigned, so compare by name
+            if (previous != null) {
+                for (String user : previous.users) {
+                    if (user != null && !previous.groupsOf(user).equals(groupsOf(user))) {
+                        changed.add(user);
+                    }
+                }
+            }
+            for (String user : users) {
+                int previousId = previous != null ? previous.userId(user) : NO_ID;
+                if (user != null && (previousId == NO_ID || previous.uids[previousId] != uids[userId(user)]
+                        || !previous.groupsOf(user).equals(groupsOf(user)))) {
+                    changed.add(user);
+                }
+            }
+            return changed;
+        }
+
+        BitSet ids = new BitSet();
+        for (int user = 0; user < Math.max(users.length, previous.users.length); user++) {
+            String name = userName(user);
+            String previousName = previous.userName(user);
+            if (name == null || previousName == null || !name.equals(previousName)
+                    || uids[user] != previous.uids[user] || primaryGids[user] != previous.primaryGids[user]) {
+                ids.set(user);
+            }
+        }
+        for (int group = 0; group < Math.max(groups.length, previous.groups.length); group++) {
+            BitSet now = group < members.length && members[group] != null ? members[group] : NO_MEMBERS;
+            BitSet before = group < previous.members.length && previous.members[group] != null
+                    ? previous.members[group] : NO_MEMBERS;
+            BitSet difference = (BitSet) now.clone();
+            difference.xor(before);
+            ids.or(difference);
+        }
+        for (int user = ids.nextSetBit(0); user >= 0; user = ids.nextSetBit(user + 1)) {
+            String name = userName(user);
+            String previousName = previous.userName(user);
+            if (name != null) {
+                changed.add(name);
+            }
+            if (previousName != null) {
+                changed.add(previousName);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Role masks and admin status of every directory user under one policy
+     */
+    public static final class Roles {
+        private final UserDirectory directory;
+        private final PolicyTable policy;
+        private final long[] masks;
+        private final BitSet admins;
+
+        Roles(UserDirectory directory, PolicyTable policy, long[] masks, BitSet admins) {
+            this.directory = directory;
+            this.policy = policy;
+            this.masks = masks;
+            this.admins = admins;
+        }
+
+        public UserDirectory getDirectory() {
+            return directory;
+        }
+
+        public PolicyTable getPolicy() {
+            return policy;
+        }
+
+        /**
+         * Gets the mask of policy roles held by the user, directly or through group membership
+         */
+        public long rolesOf(int userId) {
+            return masks[userId];
+        }
+
+        /**
+         * Checks if the user has uid 0 or holds a role allowed to change folder states
+         */
+        public boolean isAdmin(int userId) {
+            return admins.get(userId);
+        }
+
+        /**
+         * Gets the number of admins in the directory
+         */
+        public int getAdminCount() {
+            return admins.cardinality();
+        }
+    }
+
+    /**
+     * Where directory entries come from
+     */
+    public interface Source {
+        /**
+         * Gets a stamp that differs whenever the source has changed, e.g. file sizes and modification times
+         */
+        long[] stamp() throws IOException;
+
+        /**
+         * Reads every user and group entry
+         */
+        void read(List<UserRecord> users, List<GroupRecord> groups) throws IOException;
+    }
+
+    /**
+     * A user entry: name, uid and primary gid
+     */
+    public static final class UserRecord {
+        final String name;
+        final int uid;
+        final int gid;
+
+        public UserRecord(String name, int uid, int gid) {
+            this.name = name;
+            this.uid = uid;
+            this.gid = gid;
+        }
+    }
+
+    /**
+     * A group entry: name, gid and the names of its listed members
+     */
+    public static final class GroupRecord {
+        final String name;
+        final int gid;
+        final List<String> members;
+
+        public GroupRecord(String name, int gid, List<String> members) {
+            this.name = name;
+            this.gid = gid;
+            this.members = members;
+        }
+    }
+
+    private static int parseId(String field) {
+        try {
+            return Integer.parseUnsignedInt(field.trim());
+        } catch (NumberFormatException e) {
+            return NO_ID;
+        }
+    }
+
+    private static long[] fileStamp(Path file) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return new long[] {attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), attributes.size()};
+        } catch (NoSuchFileException e) {
+            return new long[] {0, -1};
+        }
+    }
+
+    /**
+     * /etc/passwd and /etc/group style files, each parsed again only when its own stamp changes
+     */
+    private static final class UnixFiles implements Source {
+        private final Path passwdFile;
+        private final Path groupFile;
+        private long[] passwdStamp;
+        private long[] groupStamp;
+        private List<UserRecord> users = Collections.emptyList();
+        private List<GroupRecord> groups = Collections.emptyList();
+
+        UnixFiles(Path passwdFile, Path groupFile) {
+            this.passwdFile = passwdFile;
+            this.groupFile = groupFile;
+        }
+
+        @Override
+        public long[] stamp() throws IOException {
+            long[] passwd = fileStamp(passwdFile);
+            long[] group = fileStamp(groupFile);
+            return new long[] {passwd[0], passwd[1], group[0], group[1]};
+        }
+
+        @Override
+        public synchronized void read(List<UserRecord> users, List<GroupRecord> groups) throws IOException {
+            long[] stamp = fileStamp(passwdFile);
+            if (!Arrays.equals(stamp, passwdStamp)) {
+                List<UserRecord> parsed = new ArrayList<>();
+                for (String line : Files.readAllLines(passwdFile, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(":", -1);
+                    if (fields.length >= 4 && !fields[0].isEmpty() && !line.startsWith("#")) {
+                        parsed.add(new UserRecord(fields[0], parseId(fields[2]), parseId(fields[3])));
+                    }
+                }
+                this.users = parsed;
+                passwdStamp = stamp;
+            }
+            stamp = fileStamp(groupFile);
+            if (!Arrays.equals(stamp, groupStamp)) {
+                List<GroupRecord> parsed = new ArrayList<>();
+                for (String line : Files.readAllLines(groupFile, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(":", -1);
+                    if (fields.length >= 4 && !fields[0].isEmpty() && !line.startsWith("#")) {
+                        List<String> members = new ArrayList<>();
+                        for (String member : fields[3].split(",")) {
+                            if (!member.trim().isEmpty()) {
+                                members.add(member.trim());
+                            }
+                        }
+                        parsed.add(new GroupRecord(fields[0], parseId(fields[2]), members));
+                    }
+                }
+                this.groups = parsed;
+                groupStamp = stamp;
+            }
+            users.addAll(this.users);
+            groups.addAll(this.groups);
+        }
+    }
+
+    /**
+     * An LDIF export with posixAccount (uid, uidNumber, gidNumber) and posixGroup or groupOfNames
+     * (cn, gidNumber, memberUid or member) entries
+     */
+    private static final class LdifFile implements Source {
+        private final Path file;
+
+        LdifFile(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public long[] stamp() throws IOException {
+            return fileStamp(file);
+        }
+
+        @Override
+        public void read(List<UserRecord> users, List<GroupRecord> groups) throws IOException {
+            Map<String, List<String>> entry = new HashMap<>();
+            String pending = null;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (line.startsWith(" ") && pending != null) {
+                    // Folded continuation of the previous line
+                    pending += line.substring(1);
+                    continue;
+                }
+                if (pending != null) {
+                    addAttribute(entry, pending);
+                    pending = null;
+                }
+                if (line.trim().isEmpty()) {
+                    addEntry(entry, users, groups);
+                    entry.clear();
+                } else if (!line.startsWith("#")) {
+                    pending = line;
+                }
+            }
+            if (pending != null) {
+                addAttribute(entry, pending);
+            }
+            addEntry(entry, users, groups);
+        }
+
+        private static void addAttribute(Map<String, List<String>> entry, String line) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                return;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value;
+            if (line.startsWith("::", colon)) {
+                value = new String(Base64.getMimeDecoder().decode(line.substring(colon + 2).trim()),
+                        StandardCharsets.UTF_8);
+            } else {
+                value = line.substring(colon + 1).trim();
+            }
+            entry.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+        }
+
+        private static void addEntry(Map<String, List<String>> entry, List<UserRecord> users,
+                                     List<GroupRecord> groups) {
+            Set<String> classes = new HashSet<>();
+            for (String objectClass : entry.getOrDefault("objectclass", Collections.emptyList())) {
+                classes.add(objectClass.toLowerCase(Locale.ROOT));
+            }
+            if (classes.contains("posixaccount") && entry.containsKey("uid")) {
+                users.add(new UserRecord(entry.get("uid").get(0), parseId(first(entry, "uidnumber")),
+                        parseId(first(entry, "gidnumber"))));
+            }
+            if ((classes.contains("posixgroup") || classes.contains("groupofnames")) && entry.containsKey("cn")) {
+                List<String> members = new ArrayList<>(entry.getOrDefault("memberuid", Collections.emptyList()));
+                for (String dn : entry.getOrDefault("member", Collections.emptyList())) {
+                    // uid=alice,ou=people,... names the member by its first relative name
+                    String rdn = dn.split(",", 2)[0].trim();
+                    if (rdn.toLowerCase(Locale.ROOT).startsWith("uid=")) {
+                        members.add(rdn.substring(4).trim());
+                    }
+                }
+                groups.add(new GroupRecord(entry.get("cn").get(0), parseId(first(entry, "gidnumber")), members));
+            }
+        }
+
+        private static String first(Map<String, List<String>> entry, String name) {
+            List<String> values = entry.get(name);
+            return values != null ? values.get(0) : "";
+        }
+    }
+}
@@ -1,34 +1,86 @@
 package com.canyonetcie;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages user roles and current user information.
  * 
  * This class detects the current system user and determines
- * if they have admin privileges.
+ * if they have admin privileges. Roles of other users come from the policy
+ * and group membership, answered from an indexed user directory when one is
+ * configured ({@code users.directory}).
  */
 public class UserManager {
 
     private final String currentUser;
-    private final boolean hasAdminRole;
+    private final boolean sudoUser;
+    private final boolean windowsAdmin;
+    private final UnixGroupResolver groupResolver;
+    private volatile PolicyTable policy;
+    private final AtomicLong policyGeneration = new AtomicLong();
     private final Set<String> adminUsers;
+    private final Map<String, AtomicLong> userGenerations = new ConcurrentHashMap<>();
+    private final Metrics.OperationStats roleCheckStats;
+    private final UserDirectory.Source directorySource;
+    private final long directoryTtlNanos;
+    private volatile UserDirectory directory;
+    private volatile UserDirectory.Roles directoryRoles;
+    private volatile long directoryCheckedAt;
+    private long[] directoryStamp;
     
     public UserManager() {
-        // Initialize admin users (you can extend this list)
-        adminUsers = new HashSet<>();
-        adminUsers.add("root");
-        adminUsers.add("admin");
-        adminUsers.add("administrator");
-        // Add more admin usernames as needed
+        this(new Config());
+    }
+    
+    public UserManager(Config config) {
+        this(config, new Metrics());
+    }
+    
+    public UserManager(Config config, Metrics metrics) {
+        this(config, metrics, PolicyTable.compile(config));
+    }
+    
+    public UserManager(Config config, Metrics metrics, PolicyTable policy) {
+        this.roleCheckStats = metrics.operation(Metrics.ROLE_CHECK);
+        this.policy = policy;
+        this.directorySource = createDirectorySource(config.getUserDirectory());
+        this.directoryTtlNanos = TimeUnit.SECONDS.toNanos(config.getRoleCacheTtlSeconds());
+        // Admins added at runtime, on top of the roles granted by the policy
+        adminUsers = ConcurrentHashMap.newKeySet();
         
         // Detect current user
         this.currentUser = detectCurrentUser();
-        this.hasAdminRole = determineAdminRole();
+        this.sudoUser = detectSudoUser();
+        if (isUnixLikeSystem()) {
+            this.groupResolver = new UnixGroupResolver(currentUser, config.getRoleCacheTtlSeconds(),
+                    policy.getManagerGroups());
+            this.windowsAdmin = false;
+        } else {
+            this.groupResolver = null;
+            this.windowsAdmin = !policy.canManage(rolesOf(currentUser)) && !sudoUser
+                    && checkWindowsAdminPrivileges();
+        }
+    }
+    
+    private static UserDirectory.Source createDirectorySource(String spec) {
+        if (spec == null) {
+            return null;
+        }
+        try {
+            return UserDirectory.source(spec);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Warning: " + e.getMessage());
+            return null;
+        }
     }
     
     /**
@@ -56,36 +108,28 @@ public class UserManager {
         return "unknown";
     }
     
+    /**
+     * Checks if the process was started through sudo (Unix/Linux/macOS)
+     */
+    private boolean detectSudoUser() {
+        String sudoUser = System.getenv("SUDO_USER");
+        return sudoUser != null && !sudoUser.isEmpty();
+    }
+    
     /**
      * Determines if the current user has admin role
      */
     private boolean determineAdminRole() {
-        // Check if user is in admin users list
-        if (adminUsers.contains(currentUser.toLowerCase())) {
+        // Check the runtime admin list and the roles granted by the policy
+        if (adminUsers.contains(currentUser.toLowerCase()) || sudoUser || policy.canManage(rolesOf(currentUser))) {
             return true;
         }
         
-        // Check if user is running as sudo (Unix/Linux/macOS)
-        try {
-            String sudoUser = System.getenv("SUDO_USER");
-            if (sudoUser != null && !sudoUser.isEmpty()) {
-                return true;
-            }
-        } catch (Exception e) {
-            // Ignore and continue with other checks
-        }
-        
-        // Check if user has admin privileges by trying to run a privileged command
-        try {
-            if (isUnixLikeSystem()) {
-                return checkUnixAdminPrivileges();
-            } else {
-                return checkWindowsAdminPrivileges();
-            }
-        } catch (Exception e) {
-            // If we can't determine admin status, assume false for security
-            return false;
+        // Check for uid 0, resolved in-process and cached
+        if (groupResolver != null) {
+            return groupResolver.isAdmin();
         }
+        return windowsAdmin;
     }
     
     /**
@@ -96,28 +140,6 @@ public class UserManager {
         return os.contains("nix") || os.contains("nux") || os.contains("mac") || os.contains("darwin");
     }
     
-    /**
-     * Checks admin privileges on Unix-like systems
-     */
-    private boolean checkUnixAdminPrivileges() {
-        try {
-            // Try to run 'id' command to check if user is in admin groups
-            Process process = Runtime.getRuntime().exec("id");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            String line = reader.readLine();
-            
-            if (line != null) {
-                // Check if user is in admin-related groups
-                String lowerLine = line.toLowerCase();
-                return lowerLine.contains("wheel") || lowerLine.contains("admin") || 
-                       lowerLine.contains("sudo") || lowerLine.contains("root");
-            }
-        } catch (IOException e) {
-            // If command fails, assume no admin privileges
-        }
-        return false;
-    }
-    
     /**
      * Checks admin privileges on Windows systems
      */
@@ -143,7 +165,192 @@ public class UserManager {
      * Checks if the current user has admin role
      */
     public boolean hasAdminRole() {
-        return hasAdminRole;
+        long start = System.nanoTime();
+        boolean admin = determineAdminRole();
+        roleCheckStats.recordSince(start, true);
+        return admin;
+    }
+    
+    /**
+     * Checks if the named user has admin role, either by name or through group membership
+     */
+    public boolean isAdmin(String username) {
+        String user = username.toLowerCase();
+        if (adminUsers.contains(user)) {
+            return true;
+        }
+        if (user.equalsIgnoreCase(currentUser)) {
+            return hasAdminRole();
+        }
+        UserDirectory.Roles roles = directoryRoles();
+        int id = directoryId(roles, username);
+        if (id != UserDirectory.NO_ID) {
+            return roles.isAdmin(id);
+        }
+        return policy.canManage(rolesOf(user)) || (groupResolver != null && groupResolver.isAdmin(user));
+    }
+    
+    /**
+     * Checks many users at once; bit i of the result is set if the i-th user has admin role.
+     * 
+     * Users found in the user directory are answered from its role index, without
+     * allocating per user; the others are checked one by one as by {@link #isAdmin(String)}.
+     */
+    public BitSet areAdmins(List<String> usernames) {
+        long start = System.nanoTime();
+        BitSet admins = new BitSet(usernames.size());
+        UserDirectory.Roles roles = directoryRoles();
+        boolean runtimeAdmins = !adminUsers.isEmpty();
+        for (int i = 0; i < usernames.size(); i++) {
+            String username = usernames.get(i);
+            int id = runtimeAdmins || username.equalsIgnoreCase(currentUser)
+                    ? UserDirectory.NO_ID : directoryId(roles, username);
+            if (id != UserDirectory.NO_ID ? roles.isAdmin(id) : isAdmin(username)) {
+                admins.set(i);
+            }
+        }
+        roleCheckStats.recordSince(start, true);
+        return admins;
+    }
+    
+    /**
+     * Checks if the named user may write to the folder regardless of its state, as an admin or through a role grant
+     */
+    public boolean canWrite(String username, String folder) {
+        return isAdmin(username) || policy.canWrite(rolesOf(username), folder);
+    }
+    
+    /**
+     * Gets the mask of policy roles held by the user, directly or through group membership
+     */
+    private long rolesOf(String username) {
+        if (directorySource != null && !username.equalsIgnoreCase(currentUser)) {
+            UserDirectory.Roles roles = directoryRoles();
+            int id = directoryId(roles, username);
+            if (id != UserDirectory.NO_ID) {
+                return roles.rolesOf(id);
+            }
+        }
+        Set<String> groups;
+        if (groupResolver == null) {
+            groups = Collections.emptySet();
+        } else if (username.equalsIgnoreCase(currentUser)) {
+            groups = groupResolver.getGroupNames();
+        } else {
+            groups = groupResolver.getGroupNames(username.toLowerCase());
+        }
+        return policy.rolesOf(username, groups);
+    }
+    
+    /**
+     * Gets the id of the user in the directory, trying the name as given and then lower-cased
+     */
+    private static int directoryId(UserDirectory.Roles roles, String username) {
+        if (roles == null) {
+            return UserDirectory.NO_ID;
+        }
+        int id = roles.getDirectory().userId(username);
+        return id != UserDirectory.NO_ID ? id : roles.getDirectory().userId(username.toLowerCase());
+    }
+    
+    /**
+     * Gets the role index of the user directory, or null if there is none.
+     * 
+     * Once the role cache TTL has passed, the source is checked for changes and
+     * reloaded if it changed; users whose entries or memberships changed get a
+     * new role generation, so only their cached decisions are dropped.
+     */
+    private UserDirectory.Roles directoryRoles() {
+        if (directorySource == null) {
+            return null;
+        }
+        UserDirectory.Roles roles = directoryRoles;
+        if (roles != null && roles.getPolicy() == policy && System.nanoTime() - directoryCheckedAt < directoryTtlNanos) {
+            return roles;
+        }
+        return refreshDirectory();
+    }
+    
+    private synchronized UserDirectory.Roles refreshDirectory() {
+        long now = System.nanoTime();
+        UserDirectory current = directory;
+        if (current == null || now - directoryCheckedAt >= directoryTtlNanos) {
+            directoryCheckedAt = now;
+            try {
+                long[] stamp = directorySource.stamp();
+                if (current == null || !Arrays.equals(stamp, directoryStamp)) {
+                    UserDirectory next = UserDirectory.load(directorySource, current);
+                    if (current != null) {
+                        for (String user : next.changedUsers(current)) {
+                            bumpGeneration(user);
+                        }
+                    }
+                    directoryStamp = stamp;
+                    directory = next;
+                    current = next;
+                }
+            } catch (IOException e) {
+                System.err.println("Warning: Could not load user directory: " + e.getMessage());
+            }
+        }
+        if (current == null) {
+            return null;
+        }
+        UserDirectory.Roles roles = directoryRoles;
+        PolicyTable currentPolicy = policy;
+        if (roles == null || roles.getDirectory() != current || roles.getPolicy() != currentPolicy) {
+            roles = current.roles(currentPolicy);
+            directoryRoles = roles;
+        }
+        return roles;
+    }
+    
+    /**
+     * Gets the indexed user directory, or null if none is configured or it could not be loaded
+     */
+    public UserDirectory getUserDirectory() {
+        UserDirectory.Roles roles = directoryRoles();
+        return roles != null ? roles.getDirectory() : null;
+    }
+    
+    /**
+     * Gets the number of directory users with admin role, or 0 without a directory
+     */
+    public int getDirectoryAdminCount() {
+        UserDirectory.Roles roles = directoryRoles();
+        return roles != null ? roles.getAdminCount() : 0;
+    }
+    
+    /**
+     * Gets a counter that increases whenever the roles of the named user may have changed
+     */
+    public long getRoleGeneration(String username) {
+        // Reload a changed directory first, so the generation covers what the next check will see
+        directoryRoles();
+        AtomicLong userGeneration = userGenerations.get(username.toLowerCase());
+        long groupGeneration = groupResolver != null ? groupResolver.getGeneration() : 0;
+        return policyGeneration.get() + groupGeneration + (userGeneration != null ? userGeneration.get() : 0);
+    }
+    
+    /**
+     * Switches to a newly loaded policy, invalidating decisions derived from the old roles
+     */
+    public void setPolicy(PolicyTable next) {
+        policy = next;
+        if (groupResolver != null) {
+            groupResolver.setAdminGroups(next.getManagerGroups());
+        }
+        policyGeneration.incrementAndGet();
+    }
+    
+    /**
+     * Drops cached group membership, e.g. after /etc/group was edited
+     */
+    public void invalidateRoleCache() {
+        if (groupResolver != null) {
+            groupResolver.invalidate();
+        }
+        directoryCheckedAt = System.nanoTime() - directoryTtlNanos;
     }
     
     /**
@@ -151,6 +358,7 @@ public class UserManager {
      */
     public void addAdminUser(String username) {
         adminUsers.add(username.toLowerCase());
+        bumpGeneration(username);
     }
     
     /**
@@ -158,6 +366,11 @@ public class UserManager {
      */
     public void removeAdminUser(String username) {
         adminUsers.remove(username.toLowerCase());
+        bumpGeneration(username);
+    }
+    
+    private void bumpGeneration(String username) {
+        userGenerations.computeIfAbsent(username.toLowerCase(), u -> new AtomicLong()).incrementAndGet();
     }
 }
 
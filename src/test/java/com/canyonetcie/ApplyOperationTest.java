@@ -0,0 +1,175 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for enables and disables running in the background.
+ */
+public class ApplyOperationTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path createTree(String name, int directories, int files) throws IOException {
+        Path folder = temporaryFolder.newFolder(name).toPath();
+        for (int d = 0; d < directories; d++) {
+            Path directory = Files.createDirectory(folder.resolve("dir" + d));
+            for (int f = 0; f < files; f++) {
+                Files.createFile(directory.resolve("file" + f));
+            }
+        }
+        return folder;
+    }
+
+    private PermissionManager manager(Path... folders) {
+        return new PermissionManager(config(folders));
+    }
+
+    private static Config config(Path... folders) {
+        StringBuilder controlled = new StringBuilder();
+        for (Path folder : folders) {
+            controlled.append(controlled.length() == 0 ? "" : ",").append(folder);
+        }
+        Config config = new Config();
+        config.setProperty("controlled.folders", controlled.toString());
+        config.setProperty("manifest.file", "");
+        return config;
+    }
+
+    @Test
+    public void testFoldersReportResultsAndProgress() throws Exception {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path first = createTree("first", 5, 10);
+        Path second = createTree("second", 3, 2);
+        Path missing = temporaryFolder.getRoot().toPath().resolve("missing");
+        PermissionManager manager = manager(first, second, missing);
+        try {
+            // Controlled folders are created when the manager starts
+            Files.delete(missing);
+            manager.setAllFoldersReadOnly();
+
+            ApplyOperation operation = manager.enableWritePermissionsAsync();
+            ApplyOperation.Result result = operation.get(30, TimeUnit.SECONDS);
+
+            assertTrue(result.isSuccess());
+            Map<String, ApplyOperation.FolderResult> folders = result.getFolders();
+            assertEquals(ApplyOperation.Status.APPLIED, folders.get(first.toString()).getStatus());
+            assertEquals(ApplyOperation.Status.APPLIED, folders.get(second.toString()).getStatus());
+            assertEquals(ApplyOperation.Status.MISSING, folders.get(missing.toString()).getStatus());
+            assertEquals(56, folders.get(first.toString()).getWalk().getEntries());
+            assertEquals(66, result.getEntries());
+            assertEquals(66, operation.getEntriesDone());
+            assertEquals(3, operation.getFoldersDone());
+            assertEquals("rw-rw-rw-", PosixFilePermissions.toString(
+                    Files.getPosixFilePermissions(first.resolve("dir4/file9"))));
+            assertTrue(manager.areWritePermissionsEnabled());
+            assertNull("The manager should be idle once the result is in", manager.getActiveOperation());
+
+            ApplyOperation disable = manager.disableWritePermissionsAsync();
+            assertEquals("A folder that was never walked leaves the total unknown", -1, disable.getEntriesTotal());
+            assertTrue(disable.get(30, TimeUnit.SECONDS).isSuccess());
+            assertFalse(manager.areWritePermissionsEnabled());
+        } finally {
+            manager.enableWritePermissions();
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testCancelLeavesUnfinishedFoldersWriteDisabled() throws Exception {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path large = createTree("large", 200, 100);
+        // A listener that waits holds up the walk once the small event buffer is full, so it cannot finish early
+        Config config = config(large);
+        config.setProperty("events.buffer.size", "4");
+        config.setProperty("events.overflow", "block");
+        config.setProperty("events.block.timeout.millis", "60000");
+        PermissionManager manager = new PermissionManager(config);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            manager.enableWritePermissions();
+            manager.addListener(event -> release.await());
+            ApplyOperation operation = manager.disableWritePermissionsAsync();
+            assertEquals("The full walk above should give the estimate", 20201, operation.getEntriesTotal());
+            try {
+                manager.enableWritePermissions();
+                fail("A second operation should be refused while one is running");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("still running"));
+            }
+            assertTrue(operation.cancel(false));
+            release.countDown();
+
+            try {
+                operation.join();
+                fail("A cancelled operation should not complete normally");
+            } catch (CancellationException expected) {
+                // The result is only available per folder
+            }
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (manager.getActiveOperation() != null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNull(manager.getActiveOperation());
+            ApplyOperation.FolderResult folder = operation.getFolderResults().get(large.toString());
+            assertEquals(ApplyOperation.Status.CANCELLED, folder.getStatus());
+            assertTrue(operation.getEntriesDone() < operation.getEntriesTotal());
+            assertTrue(manager.getFailedRoots().containsKey(large.toString()));
+            assertFalse(manager.areWritePermissionsEnabled());
+        } finally {
+            release.countDown();
+            manager.enableWritePermissions();
+            manager.close();
+        }
+        assertTrue("A later apply should clear the failure", manager.getFailedRoots().isEmpty());
+    }
+
+    @Test
+    public void testPolicyReloadWaitsForBackgroundApply() throws Exception {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path held = createTree("held", 50, 20);
+        Path added = temporaryFolder.newFolder("added").toPath();
+        Config config = config(held);
+        config.setProperty("events.buffer.size", "4");
+        config.setProperty("events.overflow", "block");
+        config.setProperty("events.block.timeout.millis", "60000");
+        PermissionManager manager = new PermissionManager(config);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            manager.enableWritePermissions();
+            manager.addListener(event -> release.await());
+            ApplyOperation operation = manager.disableWritePermissionsAsync();
+
+            manager.applyPolicy(PolicyTable.compile(config(held, added)));
+            assertFalse("The reload should wait for the running disable",
+                    manager.getControlledFolders().contains(added.toString()));
+            assertEquals(Arrays.asList(held.toString()), manager.getPolicy().getFolders());
+            release.countDown();
+
+            assertTrue(operation.get(30, TimeUnit.SECONDS).isSuccess());
+            assertTrue("The reload should follow the disable",
+                    manager.getControlledFolders().contains(added.toString()));
+            assertEquals("r-xr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(added)));
+            assertFalse(manager.areWritePermissionsEnabled());
+        } finally {
+            release.countDown();
+            manager.enableWritePermissions();
+            manager.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for writing and reading the audit log.
+ */
+public class AuditLogTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private List<AuditReader.Record> readAll(Path directory, String... filter) throws IOException {
+        List<AuditReader.Record> records = new ArrayList<>();
+        new AuditReader(directory).read(AuditReader.Filter.parse(filter, 0), records::add);
+        return records;
+    }
+
+    @Test
+    public void testRecordsRotateAcrossSegments() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        StringBuilder subject = new StringBuilder("/srv/data/");
+        for (int i = 0; i < 200; i++) {
+            subject.append('x');
+        }
+        int count = (int) (3 * AuditLog.MIN_SEGMENT_BYTES / subject.length());
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 10, "alice")) {
+            for (int i = 0; i < count; i++) {
+                log.record(PermissionEvent.Type.CHMOD, subject.toString() + i, 0644, 0444);
+            }
+            log.sync();
+        }
+
+        assertTrue("Records should span several segments", AuditLog.segments(directory).size() >= 3);
+        List<AuditReader.Record> records = readAll(directory);
+        assertEquals(count, records.size());
+        assertEquals(subject + "0", records.get(0).getSubject());
+        assertEquals(subject.toString() + (count - 1), records.get(count - 1).getSubject());
+        assertEquals(0644, records.get(0).getOldMode());
+        assertEquals("alice", records.get(0).getActor());
+    }
+
+    @Test
+    public void testReopenContinuesLastSegmentAndFiltersApply() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 10, "alice")) {
+            log.record(PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777);
+            log.record(PermissionEvent.Type.CHMOD, "/srv/data/a", 0444, 0666);
+        }
+        Path segment = AuditLog.segments(directory).get(0);
+        long written = Files.size(segment);
+        assertTrue("Closing should truncate the segment to its records", written < 256);
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 10, "bob")) {
+            log.record(PermissionEvent.Type.DISABLE, "/srv/database", -1, 0555);
+            log.record(PermissionEvent.Type.CHMOD, "/srv/other/b", 0666, 0444);
+        }
+
+        assertEquals("The last segment had room, so no new one should start", 1, AuditLog.segments(directory).size());
+        assertTrue(Files.size(segment) > written);
+        assertEquals(4, readAll(directory).size());
+        assertEquals(2, readAll(directory, "--event", "chmod").size());
+        assertEquals(2, readAll(directory, "--user", "bob").size());
+        assertEquals(2, readAll(directory, "--path", "/srv/data").size());
+        assertEquals("Siblings sharing a name prefix should not match", 1,
+                readAll(directory, "--path", "/srv/database").size());
+        assertEquals(1, readAll(directory, "--event", "enable,disable", "--limit", "1").size());
+        assertEquals(0, readAll(directory, "--since", "2999-01-01T00:00:00Z").size());
+    }
+
+    @Test
+    public void testRecordsCarryTheirCaller() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 10, "daemon")) {
+            log.record("carol", PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777);
+            log.record(null, PermissionEvent.Type.DISABLE, "/srv/data", -1, 0555);
+        }
+
+        List<AuditReader.Record> records = readAll(directory);
+        assertEquals("carol", records.get(0).getActor());
+        assertEquals("daemon", records.get(1).getActor());
+    }
+
+    @Test
+    public void testRetentionDeletesOldestSegments() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        StringBuilder subject = new StringBuilder("/srv/data/");
+        for (int i = 0; i < 200; i++) {
+            subject.append('x');
+        }
+        long retention = 2 * AuditLog.MIN_SEGMENT_BYTES;
+        int count = (int) (5 * AuditLog.MIN_SEGMENT_BYTES / subject.length());
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, retention, 10, "alice")) {
+            for (int i = 0; i < count; i++) {
+                log.record(PermissionEvent.Type.CHMOD, subject.toString() + i, 0644, 0444);
+            }
+        }
+
+        List<Path> segments = AuditLog.segments(directory);
+        long total = 0;
+        for (Path segment : segments) {
+            total += Files.size(segment);
+        }
+        assertTrue("Only the newest segments should be kept, found " + total + " bytes", total <= retention);
+        assertTrue(segments.get(0).getFileName().toString().compareTo("audit-00000000000000000001.log") > 0);
+        List<AuditReader.Record> records = readAll(directory);
+        assertEquals(subject.toString() + (count - 1), records.get(records.size() - 1).getSubject());
+    }
+
+    @Test
+    public void testCorruptRecordEndsSegment() throws IOException {
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 10, "alice")) {
+            log.record(PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777);
+            log.record(PermissionEvent.Type.CHMOD, "/srv/data/a", 0444, 0666);
+        }
+        // Flip a byte in the body of the second record
+        Path segment = AuditLog.segments(directory).get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, AuditLog.SEGMENT_HEADER);
+            long second = AuditLog.SEGMENT_HEADER + AuditLog.RECORD_HEADER + length.getInt(0);
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), second + AuditLog.RECORD_HEADER + 2);
+        }
+
+        List<AuditReader.Record> records = readAll(directory);
+        assertEquals("Reading should stop at the damaged record", 1, records.size());
+        assertEquals(PermissionEvent.Type.ENABLE, records.get(0).getEvent());
+    }
+
+    @Test
+    public void testPermissionChangesAreAudited() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("audited").toPath();
+        Files.createFile(folder.resolve("file.txt"));
+        Path directory = temporaryFolder.getRoot().toPath().resolve("audit");
+        Config config = new Config();
+        config.setProperty("controlled.folders", folder.toString());
+        config.setProperty("manifest.file", "");
+        PermissionManager manager = new PermissionManager(config);
+
+        try (AuditLog log = AuditLog.open(directory, AuditLog.MIN_SEGMENT_BYTES, 1000, "alice")) {
+            manager.setAuditLog(log);
+            manager.setAllFoldersReadOnly();
+            manager.setActor("carol");
+            try {
+                manager.enableWritePermissions();
+            } finally {
+                manager.setActor(null);
+            }
+            assertTrue("Apply should wait for a commit instead of the interval", log.getCommits() >= 1);
+        }
+
+        List<AuditReader.Record> enables = readAll(directory, "--event", "enable");
+        assertEquals(1, enables.size());
+        assertEquals(folder.toString(), enables.get(0).getSubject());
+        List<AuditReader.Record> changes = readAll(directory, "--event", "chmod", "--path", folder.toString());
+        assertTrue("Every changed entry should be recorded", changes.size() >= 2);
+        assertTrue(changes.stream().anyMatch(r -> r.getSubject().endsWith("file.txt") && r.getNewMode() == 0666));
+        assertEquals("carol", enables.get(0).getActor());
+        assertTrue("Changes should be attributed to the caller of the apply", changes.stream()
+                .filter(r -> r.getNewMode() == 0666).allMatch(r -> r.getActor().equals("carol")));
+        assertTrue(readAll(directory, "--event", "initialize").stream().allMatch(r -> r.getActor().equals("alice")));
+    }
+}
@@ -0,0 +1,98 @@
+package com.canyonetcie;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for per-user authorization decisions and their cache.
+ */
+public class AuthorizationServiceTest {
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private PermissionManager permissionManager;
+    private UserManager userManager;
+    private AuthorizationService authorizationService;
+    private Path folder;
+    
+    @Before
+    public void setUp() throws IOException {
+        Config config = new Config();
+        permissionManager = new PermissionManager(config);
+        userManager = new UserManager(config);
+        authorizationService = new AuthorizationService(userManager, permissionManager, config);
+        folder = temporaryFolder.newFolder("gateway").toPath();
+        permissionManager.addControlledFolder(folder.toString());
+    }
+    
+    @Test
+    public void testWriteDeniedForNonAdminInReadOnlyFolder() {
+        assertFalse("Non-admin should not write to a read-only folder",
+                authorizationService.check("gateway-user", folder.resolve("file.txt"), AuthorizationService.Operation.WRITE));
+        assertTrue("Reads should always be allowed",
+                authorizationService.check("gateway-user", folder.resolve("file.txt"), AuthorizationService.Operation.READ));
+        assertTrue("Paths outside controlled folders should not be restricted",
+                authorizationService.check("gateway-user", temporaryFolder.getRoot().toPath().resolve("other"),
+                        AuthorizationService.Operation.WRITE));
+    }
+    
+    @Test
+    public void testRoleChangeInvalidatesCachedDecision() {
+        Path file = folder.resolve("file.txt");
+        assertFalse(authorizationService.check("gateway-user", file, AuthorizationService.Operation.WRITE));
+        assertFalse(authorizationService.check("gateway-user", file, AuthorizationService.Operation.WRITE));
+        assertEquals("Second check should be served from the cache", 1, authorizationService.getCache().getHits());
+        
+        userManager.addAdminUser("gateway-user");
+        assertTrue("New admin should be allowed to write",
+                authorizationService.check("gateway-user", file, AuthorizationService.Operation.WRITE));
+        
+        userManager.removeAdminUser("gateway-user");
+        assertFalse("Removed admin should be denied again",
+                authorizationService.check("gateway-user", file, AuthorizationService.Operation.WRITE));
+    }
+    
+    @Test
+    public void testFolderSetChangeInvalidatesCachedDecision() throws IOException {
+        Path outside = temporaryFolder.newFolder("later").toPath().resolve("file.txt");
+        assertTrue(authorizationService.check("gateway-user", outside, AuthorizationService.Operation.WRITE));
+        
+        permissionManager.addControlledFolder(outside.getParent().toString());
+        assertFalse("Newly controlled path should be denied",
+                authorizationService.check("gateway-user", outside, AuthorizationService.Operation.WRITE));
+        
+        permissionManager.removeControlledFolder(outside.getParent().toString());
+        assertTrue("Released path should be allowed again",
+                authorizationService.check("gateway-user", outside, AuthorizationService.Operation.WRITE));
+    }
+    
+    @Test
+    public void testNestedFolderGovernsItsSubtree() throws IOException {
+        Path nested = folder.resolve("nested");
+        permissionManager.addControlledFolder(nested.toString());
+        
+        assertEquals("Innermost folder should govern", nested.toString(),
+                permissionManager.findGoverningFolder(nested.resolve("a/b.txt")));
+        assertEquals("Outer folder should govern its other entries", folder.toString(),
+                permissionManager.findGoverningFolder(folder.resolve("c.txt")));
+    }
+    
+    @Test
+    public void testDecisionCacheIsBounded() {
+        DecisionCache<Integer, Boolean> cache = new DecisionCache<>(4, 60, 1);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, true);
+        }
+        assertEquals("Cache should not grow beyond its bound", 4, cache.size());
+        assertNull("Least recently used entries should be evicted", cache.get(0));
+        assertNotNull("Recent entries should be kept", cache.get(9));
+    }
+}
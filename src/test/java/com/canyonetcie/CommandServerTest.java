@@ -0,0 +1,193 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the socket command server over its TCP fallback.
+ */
+public class CommandServerTest {
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private CommandServer server;
+    private Path tokenFile;
+    private final AtomicInteger handled = new AtomicInteger();
+    
+    @Before
+    public void setUp() throws IOException {
+        tokenFile = temporaryFolder.getRoot().toPath().resolve("server.token");
+        server = new CommandServer((caller, command, out) -> {
+            if (command.startsWith("echo ")) {
+                out.println(command.substring(5));
+                return true;
+            }
+            if (command.equals("big")) {
+                handled.incrementAndGet();
+                char[] output = new char[256 * 1024];
+                Arrays.fill(output, 'x');
+                out.print(output);
+                return true;
+            }
+            if (command.equals("whoami")) {
+                out.println(caller);
+                return true;
+            }
+            out.println("Unknown command: " + command);
+            return false;
+        }, null, 0, tokenFile, "owner");
+        server.start();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+    
+    @Test
+    public void testPipelinedCommandsGetOrderedFrames() throws IOException {
+        try (Socket socket = connect()) {
+            OutputStream out = socket.getOutputStream();
+            out.write((auth() + "echo one\necho two\nbogus\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("0 OK ", readFrame(in));
+            assertEquals("1 OK one\n", readFrame(in));
+            assertEquals("2 OK two\n", readFrame(in));
+            assertTrue("Unknown commands should be reported as errors", readFrame(in).startsWith("3 ERR "));
+        }
+    }
+    
+    @Test
+    public void testConcurrentClients() throws Exception {
+        Socket[] sockets = new Socket[8];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = connect();
+                sockets[i].getOutputStream().write((auth() + "echo client" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < sockets.length; i++) {
+                DataInputStream in = new DataInputStream(sockets[i].getInputStream());
+                assertEquals("0 OK ", readFrame(in));
+                assertEquals("1 OK client" + i + "\n", readFrame(in));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+    
+    @Test
+    public void testClientThatDoesNotReadIsNotServedPastTheLimit() throws Exception {
+        int commands = 4 * CommandServer.MAX_IN_FLIGHT;
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(server.getLocalAddress(), 5000);
+        socket.setSoTimeout(5000);
+        try {
+            StringBuilder requests = new StringBuilder(auth());
+            for (int i = 0; i < commands; i++) {
+                requests.append("big\n");
+            }
+            socket.getOutputStream().write(requests.toString().getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(1000);
+            assertTrue("Only about " + CommandServer.MAX_IN_FLIGHT + " commands should run for a client that "
+                    + "does not read, not " + handled.get(), handled.get() < 2 * CommandServer.MAX_IN_FLIGHT);
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("0 OK ", readFrame(in));
+            for (int i = 1; i <= commands; i++) {
+                assertTrue("Frames should keep coming in order once the client reads",
+                        readFrame(in).startsWith(i + " OK xxx"));
+            }
+            assertEquals(commands, handled.get());
+        } finally {
+            socket.close();
+        }
+    }
+    
+    @Test
+    public void testTokenFileIsOwnerOnly() throws IOException {
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+        server.close();
+        assertFalse("Closing the server should remove its token", Files.exists(tokenFile));
+    }
+    
+    @Test
+    public void testCommandsRunAsTheAuthenticatedCaller() throws IOException {
+        try (Socket socket = connect()) {
+            socket.getOutputStream().write((auth() + "whoami\n").getBytes(StandardCharsets.UTF_8));
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals("0 OK ", readFrame(in));
+            assertEquals("1 OK owner\n", readFrame(in));
+        }
+    }
+    
+    @Test
+    public void testUnauthenticatedClientsAreRejected() throws IOException {
+        for (String first : new String[] {"echo sneaky\n", "auth wrong\necho sneaky\n"}) {
+            try (Socket socket = connect()) {
+                socket.getOutputStream().write(first.getBytes(StandardCharsets.UTF_8));
+                
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                assertEquals("0 ERR Authentication failed\n", readFrame(in));
+                assertEquals("The server should close the connection without running anything", -1, in.read());
+            }
+        }
+    }
+    
+    /**
+     * Gets the line authenticating a TCP client with the token the server wrote
+     */
+    private String auth() throws IOException {
+        return "auth " + new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8).trim() + "\n";
+    }
+    
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(server.getLocalAddress(), 5000);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+    
+    /**
+     * Reads one frame and returns it as "sequence status payload"
+     */
+    private static String readFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Connection closed mid-frame", b >= 0);
+            header.write(b);
+        }
+        String[] fields = header.toString(StandardCharsets.UTF_8).split(" ");
+        byte[] payload = new byte[Integer.parseInt(fields[2])];
+        new DataInputStream(in).readFully(payload);
+        return fields[0] + " " + fields[1] + " " + new String(payload, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,121 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for reloading the configuration and applying only the difference.
+ */
+public class ConfigWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path configFile;
+    private Path first;
+    private Path second;
+    private Path third;
+    private PermissionManager permissionManager;
+    private UserManager userManager;
+    private ConfigWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        first = temporaryFolder.newFolder("first").toPath();
+        second = temporaryFolder.newFolder("second").toPath();
+        third = temporaryFolder.newFolder("third").toPath();
+        configFile = temporaryFolder.getRoot().toPath().resolve("test.properties");
+        writeConfig(first + "," + second, "");
+
+        Config config = Config.load(configFile);
+        permissionManager = new PermissionManager(config);
+        userManager = new UserManager(config);
+        permissionManager.setAllFoldersReadOnly();
+        watcher = new ConfigWatcher(configFile, permissionManager.getPolicy(), (previous, next) -> {
+            permissionManager.applyPolicy(next);
+            userManager.setPolicy(next);
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void writeConfig(String folders, String extra) throws IOException {
+        String content = "controlled.folders=" + folders + "\nmanifest.file=\n" + extra;
+        Files.write(configFile, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReloadAppliesOnlyTheDelta() throws IOException {
+        // A change left on an unchanged folder shows whether it was walked again
+        Files.setPosixFilePermissions(second, PosixFilePermissions.fromString("rwxr-xr-x"));
+        writeConfig(second + "," + third, "");
+
+        assertTrue(watcher.reload());
+        assertEquals(Arrays.asList(second.toString(), third.toString()), watcher.getPolicy().getFolders());
+        assertTrue(permissionManager.getControlledFolders().contains(third.toString()));
+        assertFalse(permissionManager.getControlledFolders().contains(first.toString()));
+        assertEquals("Added folder should be locked down",
+                "r-xr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(third)));
+        assertEquals("Removed folder should be released",
+                "rwxrwxrwx", PosixFilePermissions.toString(Files.getPosixFilePermissions(first)));
+        assertEquals("Unchanged folder should not be walked",
+                "rwxr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(second)));
+    }
+
+    @Test
+    public void testModeAndRoleChangesAreApplied() throws IOException {
+        long generation = userManager.getRoleGeneration("alice");
+        writeConfig(first + "," + second, "folder.mode.readonly." + second + "=r-x------\n"
+                + "roles=admin,editors\nrole.editors.users=alice\nrole.editors.write=" + first + "\n");
+
+        assertTrue(watcher.reload());
+        assertEquals("r-x------", PosixFilePermissions.toString(Files.getPosixFilePermissions(second)));
+        assertEquals("r-xr-xr-x", PosixFilePermissions.toString(Files.getPosixFilePermissions(first)));
+        assertTrue("New role should grant write", userManager.canWrite("alice", first.toString()));
+        assertNotEquals("Role change should invalidate cached decisions",
+                generation, userManager.getRoleGeneration("alice"));
+    }
+
+    @Test
+    public void testInvalidChangeIsRejected() throws IOException {
+        PolicyTable before = watcher.getPolicy();
+        writeConfig(third.toString(), "default.mode.readonly=rwx-not-a-mode\n");
+
+        assertFalse(watcher.reload());
+        assertSame("Rejected change should keep the current policy", before, watcher.getPolicy());
+        assertEquals(1, watcher.getRejections());
+        assertFalse(permissionManager.getControlledFolders().contains(third.toString()));
+    }
+
+    @Test
+    public void testFileChangeIsPickedUp() throws Exception {
+        watcher.start();
+        writeConfig(first + "," + second + "," + third, "");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (watcher.getReloads() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, watcher.getReloads());
+        assertTrue(permissionManager.getControlledFolders().contains(third.toString()));
+    }
+}
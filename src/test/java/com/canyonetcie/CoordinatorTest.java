@@ -0,0 +1,166 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for fanning commands out to agents on localhost ports.
+ */
+public class CoordinatorTest {
+
+    private static final String TOKEN = "secret";
+
+    private final List<AgentServer> agents = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (AgentServer agent : agents) {
+            agent.close();
+        }
+    }
+
+    private InetSocketAddress startAgent(String token, CommandServer.CommandHandler handler) throws IOException {
+        AgentServer agent = new AgentServer(handler, "127.0.0.1", 0, token);
+        agent.start();
+        agents.add(agent);
+        return InetSocketAddress.createUnresolved("127.0.0.1", ((InetSocketAddress) agent.getLocalAddress()).getPort());
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testResultsReportEachNodeSeparately() throws IOException {
+        InetSocketAddress healthy = startAgent(TOKEN, (caller, command, out) -> {
+            out.println("Ran " + command);
+            return true;
+        });
+        InetSocketAddress failing = startAgent(TOKEN, (caller, command, out) -> {
+            throw new IOException("Permission change failed");
+        });
+        InetSocketAddress otherToken = startAgent("other", (caller, command, out) -> true);
+        InetSocketAddress slow = startAgent(TOKEN, (caller, command, out) -> {
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        });
+        InetSocketAddress down = InetSocketAddress.createUnresolved("127.0.0.1", unusedPort());
+
+        Coordinator coordinator = new Coordinator(Arrays.asList(healthy, failing, otherToken, slow, down), TOKEN,
+                "alice", 500, 8);
+        long start = System.nanoTime();
+        List<Coordinator.NodeResult> results = coordinator.send("enable");
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(5, results.size());
+        assertEquals(Coordinator.Status.OK, results.get(0).getStatus());
+        assertEquals("Ran enable", results.get(0).getSummary());
+        assertEquals(Coordinator.Status.ERR, results.get(1).getStatus());
+        assertEquals("Error executing command: Permission change failed", results.get(1).getSummary());
+        assertEquals(Coordinator.Status.DENIED, results.get(2).getStatus());
+        assertEquals(Coordinator.Status.TIMEOUT, results.get(3).getStatus());
+        assertEquals(Coordinator.Status.UNREACHABLE, results.get(4).getStatus());
+        assertEquals("127.0.0.1:" + down.getPort(), results.get(4).getNode());
+        assertTrue("Agents should be contacted concurrently, took " + elapsedMillis + " ms", elapsedMillis < 2500);
+    }
+
+    @Test
+    public void testCommandsRunInOrderOnEachAgent() throws IOException {
+        List<String> received = new ArrayList<>();
+        InetSocketAddress agent = startAgent(TOKEN, (caller, command, out) -> {
+            received.add(caller + ":" + command);
+            out.println(command.toUpperCase());
+            return true;
+        });
+        Coordinator coordinator = new Coordinator(Arrays.asList(agent, agent), TOKEN, "alice", 5000, 1);
+
+        List<Coordinator.NodeResult> first = coordinator.send("status");
+        List<Coordinator.NodeResult> second = coordinator.send("disable");
+
+        assertEquals("STATUS", first.get(1).getSummary());
+        assertEquals("DISABLE", second.get(0).getSummary());
+        assertEquals(Arrays.asList("alice:status", "alice:status", "alice:disable", "alice:disable"), received);
+    }
+
+    @Test
+    public void testOversizedTokenIsDeniedBeforeItIsRead() throws IOException {
+        InetSocketAddress agent = startAgent(TOKEN, (caller, command, out) -> true);
+        try (Socket socket = new Socket(agent.getHostString(), agent.getPort())) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(AgentServer.MAGIC);
+            out.writeInt(AgentServer.MAX_REQUEST);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            assertEquals(AgentServer.MAGIC, in.readInt());
+            assertEquals(AgentServer.DENIED, in.readByte());
+        }
+    }
+
+    @Test
+    public void testConnectionsAreBoundedAndIdleOnesClosed() throws IOException, InterruptedException {
+        AgentServer server = new AgentServer((caller, command, out) -> {
+            out.println("Ran " + command);
+            return true;
+        }, "127.0.0.1", 0, TOKEN, 1, 300);
+        server.start();
+        agents.add(server);
+        InetSocketAddress agent = InetSocketAddress.createUnresolved("127.0.0.1",
+                ((InetSocketAddress) server.getLocalAddress()).getPort());
+        Coordinator coordinator = new Coordinator(Arrays.asList(agent), TOKEN, "alice", 5000, 1);
+
+        try (Socket idle = new Socket("127.0.0.1", agent.getPort())) {
+            // Give the agent time to hand the idle connection its only slot
+            Thread.sleep(100);
+            assertNotEquals("A connection beyond the limit should be refused", Coordinator.Status.OK,
+                    coordinator.send("status").get(0).getStatus());
+            idle.setSoTimeout(5000);
+            assertEquals("The idle connection should be closed after the read timeout", -1,
+                    idle.getInputStream().read());
+        }
+        assertEquals("Ran status", coordinator.send("status").get(0).getSummary());
+    }
+
+    @Test
+    public void testAgentsListenOnLoopbackByDefault() {
+        assertEquals("127.0.0.1", new Config().getAgentHost());
+    }
+
+    @Test
+    public void testParseAgents() {
+        List<InetSocketAddress> agents = Coordinator.parseAgents("fs1:9000, fs2 ,[::1]:9001,", 7421);
+
+        assertEquals(3, agents.size());
+        assertEquals("fs1", agents.get(0).getHostString());
+        assertEquals(9000, agents.get(0).getPort());
+        assertEquals(7421, agents.get(1).getPort());
+        assertEquals("::1", agents.get(2).getHostString());
+        assertEquals(9001, agents.get(2).getPort());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAgentRequiresToken() {
+        new AgentServer((caller, command, out) -> true, "127.0.0.1", 0, "");
+    }
+}
@@ -0,0 +1,154 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for sampling-based drift estimates.
+ */
+public class DriftSamplerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final long BUDGET = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Creates a read-only tree of directories with files, loosening every drifted-th file
+     */
+    private Path createTree(String name, int directories, int files, int drifted, ApplyManifest manifest)
+            throws IOException {
+        Path folder = temporaryFolder.newFolder(name).toPath();
+        for (int d = 0; d < directories; d++) {
+            Path directory = Files.createDirectories(folder.resolve("dir" + d).resolve("nested"));
+            for (int f = 0; f < files; f++) {
+                Files.createFile(directory.resolve("file" + f));
+            }
+        }
+        new PermissionWalker(2).apply(folder,
+                new PermissionWalker.Options(PermissionWalker.READ_ONLY_DIRECTORY).manifest(manifest));
+        int index = 0;
+        for (int d = 0; d < directories; d++) {
+            for (int f = 0; f < files; f++) {
+                if (index++ % drifted == 0) {
+                    Files.setPosixFilePermissions(folder.resolve("dir" + d + "/nested/file" + f),
+                            PosixFilePermissions.fromString("rw-r--r--"));
+                }
+            }
+        }
+        return folder;
+    }
+
+    private static Map<String, Set<PosixFilePermission>> readOnly(Path... folders) {
+        Map<String, Set<PosixFilePermission>> modes = new LinkedHashMap<>();
+        for (Path folder : folders) {
+            modes.put(folder.toString(), PermissionWalker.READ_ONLY_DIRECTORY);
+        }
+        return modes;
+    }
+
+    @Test
+    public void testSampleOfWholeTreeIsExact() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path small = createTree("small", 2, 10, 4, null);
+        Path clean = createTree("clean", 1, 5, Integer.MAX_VALUE, null);
+        Files.setPosixFilePermissions(clean.resolve("dir0/nested/file0"), PosixFilePermissions.fromString("r--r--r--"));
+
+        DriftSampler.Result result = new DriftSampler(null, true, 1000, BUDGET, new Random(1))
+                .sample(readOnly(small, clean));
+
+        assertTrue(result.isComplete());
+        DriftSampler.Estimate estimate = result.getFolders().get(small.toString());
+        assertEquals("Root, 2 directories, 2 nested directories and 20 files", 25, estimate.getSeen());
+        assertEquals(25, estimate.getChecked());
+        assertEquals(5, estimate.getDrifted());
+        assertEquals(0.2, estimate.getLower(), 1e-9);
+        assertEquals(0.2, estimate.getUpper(), 1e-9);
+        assertEquals(0, result.getFolders().get(clean.toString()).getDrifted());
+        assertEquals(33, result.getTotal().getSeen());
+        assertEquals(5, result.getTotal().getDrifted());
+    }
+
+    @Test
+    public void testEstimateFromSampleCoversTrueRate() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        ApplyManifest manifest = new ApplyManifest();
+        Path folder = createTree("large", 40, 100, 10, manifest);
+        assertEquals("Every directory should be listed from the manifest", 81, manifest.size());
+
+        for (ApplyManifest source : new ApplyManifest[] {null, manifest}) {
+            DriftSampler.Result result = new DriftSampler(source, true, 500, BUDGET, new Random(7))
+                    .sample(readOnly(folder));
+
+            DriftSampler.Estimate estimate = result.getTotal();
+            assertTrue(result.isComplete());
+            assertEquals(4081, estimate.getSeen());
+            assertEquals(500, estimate.getChecked());
+            double trueRate = 400.0 / 4081;
+            assertTrue("Interval " + estimate.getLower() + "-" + estimate.getUpper() + " should contain " + trueRate,
+                    estimate.getLower() <= trueRate && trueRate <= estimate.getUpper());
+            assertTrue(estimate.getUpper() - estimate.getLower() < 0.06);
+        }
+    }
+
+    @Test
+    public void testWithoutRecursionOnlyFoldersAreChecked() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = createTree("flat", 1, 10, 1, null);
+
+        DriftSampler.Result result = new DriftSampler(null, false, 100, BUDGET, new Random(3))
+                .sample(readOnly(folder));
+
+        assertEquals(1, result.getTotal().getChecked());
+        assertEquals(0, result.getTotal().getDrifted());
+    }
+
+    @Test
+    public void testLargeDirectoryIsCutShortAtTheDeadline() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("wide").toPath();
+        for (int f = 0; f < 20_000; f++) {
+            Files.createFile(folder.resolve("file" + f));
+        }
+
+        DriftSampler.Result result = new DriftSampler(null, true, 100, TimeUnit.MILLISECONDS.toNanos(4),
+                new Random(5)).sample(readOnly(folder));
+
+        assertFalse("Listing should stop at the deadline", result.isComplete());
+        assertTrue("Only part of the directory should be found, found " + result.getTotal().getSeen(),
+                result.getTotal().getSeen() < 20_001);
+    }
+
+    @Test
+    public void testInterval() {
+        double[] none = DriftSampler.interval(0, 100, 1_000_000, false);
+        assertEquals(0, none[0], 1e-9);
+        assertEquals(0.037, none[1], 0.001);
+
+        double[] some = DriftSampler.interval(10, 100, 1_000_000, false);
+        assertEquals(0.055, some[0], 0.001);
+        assertEquals(0.174, some[1], 0.001);
+
+        double[] corrected = DriftSampler.interval(10, 100, 200, true);
+        assertTrue("Sampling half the population should narrow the interval", corrected[1] - corrected[0] < some[1] - some[0]);
+        assertArrayEquals(new double[] {0, 1}, DriftSampler.interval(0, 0, 0, true), 1e-9);
+        assertEquals(Collections.emptyMap(),
+                new DriftSampler(null, true, 10, BUDGET, new Random()).sample(Collections.emptyMap()).getFolders());
+    }
+}
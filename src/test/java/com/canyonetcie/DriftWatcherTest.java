@@ -0,0 +1,129 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for watch-based drift correction.
+ */
+public class DriftWatcherTest {
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private PermissionWalker walker;
+    private DriftWatcher watcher;
+    private Path root;
+    
+    @Before
+    public void setUp() throws IOException {
+        walker = new PermissionWalker(2);
+        root = temporaryFolder.newFolder("watched").toPath();
+        Files.createDirectories(root.resolve("nested"));
+        walker.apply(root, true, true);
+        
+        watcher = new DriftWatcher(walker, Collections.singletonList(root.toString()),
+                folder -> PermissionWalker.READ_ONLY_DIRECTORY);
+        watcher.start();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        watcher.close();
+        walker.apply(root, false, true);
+    }
+    
+    @Test
+    public void testNewEntriesAreMadeReadOnly() throws Exception {
+        // Writing into a read-only directory still works for root, which is what the tests run as
+        Path file = Files.createFile(root.resolve("nested/created.txt"));
+        awaitMode(file, "r--r--r--");
+        
+        Path directory = Files.createDirectories(root.resolve("nested/fresh"));
+        awaitMode(directory, "r-xr-xr-x");
+    }
+    
+    @Test
+    public void testOutOfBandChmodIsReverted() throws Exception {
+        Path nested = root.resolve("nested");
+        Files.setPosixFilePermissions(nested, PosixFilePermissions.fromString("rwxrwxrwx"));
+        awaitMode(nested, "r-xr-xr-x");
+        
+        Files.setPosixFilePermissions(root, PosixFilePermissions.fromString("rwxrwxrwx"));
+        awaitMode(root, "r-xr-xr-x");
+        // The watcher counts a correction just after making it, so the count can trail the mode briefly
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (watcher.getCorrectedEntries() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue("Corrections should be counted", watcher.getCorrectedEntries() >= 2);
+    }
+    
+    @Test
+    public void testEntriesBelongToInnermostFolder() throws IOException {
+        Path inner = Files.createDirectories(root.resolve("nested/inner"));
+        try (DriftWatcher nested = new DriftWatcher(walker, Arrays.asList(root.toString(), inner.toString()),
+                folder -> PermissionWalker.READ_ONLY_DIRECTORY)) {
+            assertEquals(inner.toString(), nested.folderFor(inner.resolve("file.txt")));
+            assertEquals(inner.toString(), nested.folderFor(inner));
+            assertEquals(root.toString(), nested.folderFor(root.resolve("nested/other.txt")));
+            assertNull(nested.folderFor(temporaryFolder.getRoot().toPath().resolve("outside")));
+        }
+    }
+    
+    @Test
+    public void testEnableIsNotUndoneWhileItWalks() throws Exception {
+        Path managed = temporaryFolder.newFolder("managed").toPath();
+        for (int d = 0; d < 100; d++) {
+            Path directory = Files.createDirectory(managed.resolve("dir" + d));
+            for (int f = 0; f < 20; f++) {
+                Files.createFile(directory.resolve("file" + f));
+            }
+        }
+        Config config = new Config();
+        config.setProperty("controlled.folders", managed.toString());
+        config.setProperty("manifest.file", "");
+        PermissionManager manager = new PermissionManager(config);
+        try {
+            manager.setAllFoldersReadOnly();
+            DriftWatcher drift = manager.startWatching();
+            
+            manager.enableWritePermissions();
+            // The watcher sees every change the walk made; give it time to act on them
+            Thread.sleep(1000);
+            
+            assertEquals("The watcher should not revert the enable", 0, drift.getCorrectedEntries());
+            assertEquals("rwxrwxrwx",
+                    PosixFilePermissions.toString(Files.getPosixFilePermissions(managed.resolve("dir99"))));
+            assertEquals("rw-rw-rw-",
+                    PosixFilePermissions.toString(Files.getPosixFilePermissions(managed.resolve("dir99/file19"))));
+        } finally {
+            manager.close();
+        }
+    }
+    
+    private void awaitMode(Path path, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        String actual = null;
+        while (System.currentTimeMillis() < deadline) {
+            actual = PosixFilePermissions.toString(Files.getPosixFilePermissions(path));
+            if (expected.equals(actual)) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+        assertEquals("Drift should be corrected for " + path, expected, actual);
+    }
+}
@@ -0,0 +1,171 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for asynchronous event delivery and overflow handling.
+ */
+public class EventBusTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private EventBus bus;
+
+    @After
+    public void tearDown() {
+        if (bus != null) {
+            bus.close();
+        }
+    }
+
+    @Test
+    public void testEventsAreDeliveredInOrderToEveryListener() throws InterruptedException {
+        bus = new EventBus(16, EventBus.Overflow.BLOCK, 1);
+        List<Long> first = Collections.synchronizedList(new ArrayList<>());
+        List<String> second = Collections.synchronizedList(new ArrayList<>());
+        bus.subscribe(event -> first.add(event.getSequence()));
+        bus.subscribe(event -> {
+            throw new IllegalStateException("listener failure");
+        });
+        bus.subscribe(event -> second.add(event.getSubject()));
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/" + i, 0644, 0444));
+        }
+        assertTrue(bus.drain(10, TimeUnit.SECONDS));
+
+        assertEquals(1000, first.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, (long) first.get(i));
+        }
+        assertEquals("A failing listener should not stop the others", "/srv/data/999", second.get(999));
+        assertEquals(1000, bus.getListenerFailures());
+        assertEquals(0, bus.getDropped());
+    }
+
+    @Test
+    public void testDropPolicyDiscardsWhenFull() throws InterruptedException {
+        bus = new EventBus(4, EventBus.Overflow.DROP, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        bus.subscribe(event -> {
+            started.countDown();
+            release.await();
+        });
+
+        assertTrue(bus.publish(PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // The first event is being handled, so its slot is still taken
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/" + i, 0444, 0666)) {
+                accepted++;
+            }
+        }
+        assertEquals(3, accepted);
+        assertEquals(7, bus.getDropped());
+
+        release.countDown();
+        assertTrue(bus.drain(10, TimeUnit.SECONDS));
+        assertEquals(4, bus.getDelivered());
+    }
+
+    @Test
+    public void testSamplePolicyKeepsSomeEventsWithoutWaiting() throws InterruptedException {
+        bus = new EventBus(8, EventBus.Overflow.SAMPLE, 5);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        bus.subscribe(event -> {
+            started.countDown();
+            release.await();
+            received.add(event.getSubject());
+        });
+
+        assertTrue(bus.publish(PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/" + i, 0444, 0666);
+        }
+        assertTrue("Sampling should never wait for the listener",
+                System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(93, bus.getDropped());
+
+        release.countDown();
+        assertTrue(bus.drain(10, TimeUnit.SECONDS));
+        assertEquals("Every event until half full, then one in five until full",
+                Arrays.asList("/srv/data", "/srv/data/0", "/srv/data/1", "/srv/data/2", "/srv/data/3",
+                        "/srv/data/8", "/srv/data/13", "/srv/data/18"), received);
+    }
+
+    @Test
+    public void testBlockPolicyWaitsBoundedAndHonorsInterrupts() throws InterruptedException {
+        bus = new EventBus(4, EventBus.Overflow.BLOCK, 1, 100);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        bus.subscribe(event -> {
+            started.countDown();
+            release.await();
+        });
+
+        assertTrue(bus.publish(PermissionEvent.Type.ENABLE, "/srv/data", -1, 0777));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/" + i, 0444, 0666));
+        }
+        long start = System.nanoTime();
+        assertFalse("A full buffer should drop the event after the timeout",
+                bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/3", 0444, 0666));
+        long waited = System.nanoTime() - start;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(90) && waited < TimeUnit.SECONDS.toNanos(5));
+
+        Thread.currentThread().interrupt();
+        assertFalse(bus.publish(PermissionEvent.Type.CHMOD, "/srv/data/4", 0444, 0666));
+        assertTrue("The interrupt should be kept for the caller", Thread.interrupted());
+        assertEquals(2, bus.getDropped());
+
+        release.countDown();
+        assertTrue(bus.drain(10, TimeUnit.SECONDS));
+        assertEquals(4, bus.getDelivered());
+    }
+
+    @Test
+    public void testPermissionManagerPublishesChanges() throws IOException, InterruptedException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("events").toPath();
+        Files.createFile(folder.resolve("file.txt"));
+        Config config = new Config();
+        config.setProperty("controlled.folders", folder.toString());
+        config.setProperty("manifest.file", "");
+        PermissionManager manager = new PermissionManager(config);
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        manager.addListener(event -> received.add(event.getType() + " " + event.getSubject()));
+
+        manager.setAllFoldersReadOnly();
+        manager.enableWritePermissions();
+        assertTrue(manager.getEventBus().drain(10, TimeUnit.SECONDS));
+        manager.close();
+
+        assertEquals("INITIALIZE " + folder, received.get(0));
+        assertTrue(received.contains("ENABLE " + folder));
+        assertTrue(received.contains("CHMOD " + folder.resolve("file.txt")));
+    }
+}
@@ -0,0 +1,53 @@
+package com.canyonetcie;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the controlled folder trie.
+ */
+public class FolderIndexTest {
+    
+    @Test
+    public void testLongestPrefixLookup() {
+        FolderIndex index = new FolderIndex();
+        index.add("/srv/data");
+        index.add("/srv/data/private");
+        
+        assertEquals("/srv/data/private", index.findGoverningFolder(Paths.get("/srv/data/private/a/b")));
+        assertEquals("/srv/data", index.findGoverningFolder(Paths.get("/srv/data/public/../other")));
+        assertNull("Sibling with a common string prefix is not covered",
+                index.findGoverningFolder(Paths.get("/srv/database/file")));
+        assertNull(index.findGoverningFolder(Paths.get("/srv")));
+    }
+    
+    @Test
+    public void testEquivalentPathsAreNotAddedTwice() {
+        FolderIndex index = new FolderIndex();
+        assertTrue(index.add("/srv/data"));
+        assertFalse("Same normalized path should be rejected", index.add("/srv/./data/"));
+        assertEquals(1, index.size());
+    }
+    
+    @Test
+    public void testEnabledCountTracksState() {
+        FolderIndex index = new FolderIndex();
+        index.add("/a");
+        index.add("/b");
+        assertFalse(index.allWriteEnabled());
+        
+        assertEquals(Boolean.FALSE, index.setWriteEnabled("/a", true));
+        assertFalse(index.allWriteEnabled());
+        index.setWriteEnabled("/b", true);
+        assertTrue(index.allWriteEnabled());
+        
+        index.remove("/b");
+        assertTrue("Remaining folder is enabled", index.allWriteEnabled());
+        index.add("/c");
+        assertFalse("Reused id must not inherit the old state", index.isWriteEnabled("/c"));
+        assertFalse(index.allWriteEnabled());
+    }
+}
@@ -0,0 +1,139 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for the permissions inventory export.
+ */
+public class InventoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testExistingFilesAreNotOverwritten() throws IOException {
+        Path csvFile = temporaryFolder.getRoot().toPath().resolve("inventory.csv");
+        Path columnarFile = temporaryFolder.newFile("inventory.pcinv").toPath();
+        Files.write(columnarFile, "keep".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            new Inventory(csvFile, columnarFile).close();
+            fail("An existing file should not be replaced");
+        } catch (FileAlreadyExistsException expected) {
+            // Neither file is touched
+        }
+        assertEquals("keep", new String(Files.readAllBytes(columnarFile), StandardCharsets.UTF_8));
+        assertFalse("The CSV file created first should be removed again", Files.exists(csvFile));
+    }
+
+    @Test
+    public void testConcurrentRowsSpanSeveralBlocks() throws IOException, InterruptedException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path csvFile = temporaryFolder.getRoot().toPath().resolve("inventory.csv");
+        Path columnarFile = temporaryFolder.getRoot().toPath().resolve("inventory.pcinv");
+        BasicFileAttributes attributes = Files.readAttributes(temporaryFolder.getRoot().toPath(),
+                PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        int threads = 4;
+        int perThread = Inventory.BLOCK_ROWS / 2 + 17;
+
+        try (Inventory inventory = new Inventory(csvFile, columnarFile)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                writers.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            inventory.add(temporaryFolder.getRoot().toPath().resolve(thread + "," + i),
+                                    attributes, 0755, 0555, i % 10 == 0);
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+            }
+            writers.forEach(Thread::start);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+
+        Set<String> paths = new HashSet<>();
+        long[] violations = new long[1];
+        Inventory.read(columnarFile, row -> {
+            paths.add(row.getPath());
+            assertEquals('d', row.getType());
+            assertEquals(0755, row.getMode());
+            assertEquals(0555, row.getTarget());
+            assertEquals(((PosixFileAttributes) attributes).owner().getName(), row.getOwner());
+            if (row.isViolation()) {
+                violations[0]++;
+            }
+        });
+        assertEquals("Every row should be written once", threads * perThread, paths.size());
+        assertEquals(threads * ((perThread + 9) / 10), violations[0]);
+
+        List<String> lines = Files.readAllLines(csvFile, StandardCharsets.UTF_8);
+        assertEquals(threads * perThread + 1, lines.size());
+        assertTrue("Paths with commas should be quoted", lines.get(1).startsWith("\""));
+    }
+
+    @Test
+    public void testInventoryFlagsEntriesThatDriftedFromPolicy() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("controlled").toPath();
+        Files.createDirectories(folder.resolve("a/b"));
+        for (int i = 0; i < 50; i++) {
+            Files.createFile(folder.resolve("a/b/file" + i));
+        }
+        Config config = new Config();
+        config.setProperty("controlled.folders", folder.toString());
+        config.setProperty("manifest.file", "");
+        PermissionManager manager = new PermissionManager(config);
+        manager.setAllFoldersReadOnly();
+        Path drifted = folder.resolve("a/b/file7");
+        Files.setPosixFilePermissions(drifted, PosixFilePermissions.fromString("rw-r--r--"));
+
+        Path csvFile = temporaryFolder.getRoot().toPath().resolve("report.csv");
+        Path columnarFile = temporaryFolder.getRoot().toPath().resolve("report.pcinv");
+        PermissionWalker.WalkResult result;
+        try (Inventory inventory = new Inventory(csvFile, columnarFile)) {
+            result = manager.inventory(inventory);
+        }
+        manager.enableWritePermissions();
+        manager.close();
+
+        assertEquals(53, result.getEntries());
+        assertEquals(1, result.getApplied());
+        List<Inventory.Row> violations = new ArrayList<>();
+        Inventory.read(columnarFile, row -> {
+            if (row.isViolation()) {
+                violations.add(row);
+            }
+        });
+        assertEquals(1, violations.size());
+        assertEquals(drifted.toString(), violations.get(0).getPath());
+        assertEquals(0644, violations.get(0).getMode());
+        assertEquals(0444, violations.get(0).getTarget());
+        assertTrue(Files.readAllLines(csvFile).contains(drifted + ",f,0644,0444,"
+                + violations.get(0).getOwner() + ",true"));
+    }
+}
@@ -0,0 +1,59 @@
+package com.canyonetcie;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for operation counters and latency histograms.
+ */
+public class MetricsTest {
+    
+    @Test
+    public void testBucketsContainTheirValues() {
+        long[] values = {0, 1, 7, 8, 9, 15, 16, 1000, 123_456_789L, Long.MAX_VALUE / 3};
+        for (long value : values) {
+            int bucket = Metrics.OperationStats.bucketFor(value);
+            assertTrue("Bucket bound should cover " + value, Metrics.OperationStats.upperBound(bucket) >= value);
+            if (bucket > 0) {
+                assertTrue("Previous bucket should not cover " + value,
+                        Metrics.OperationStats.upperBound(bucket - 1) < value);
+            }
+        }
+    }
+    
+    @Test
+    public void testPercentilesAreWithinBucketPrecision() {
+        Metrics.OperationStats stats = new Metrics().operation(Metrics.CHMOD);
+        for (int i = 1; i <= 1000; i++) {
+            stats.record(i * 1000L, i % 100 != 0);
+        }
+        
+        assertEquals(1000, stats.getCount());
+        assertEquals(10, stats.getFailures());
+        assertEquals("p50 should be close to 500us", 500, stats.getP50Micros(), 500 * 0.13);
+        assertEquals("p99 should be close to 990us", 990, stats.getP99Micros(), 990 * 0.13);
+        assertEquals("max should be exact", 1000, stats.getMaxMicros(), 0.001);
+    }
+    
+    @Test
+    public void testPrometheusOutput() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.operation(Metrics.ENABLE).record(2_000_000, true);
+        metrics.operation(Metrics.ENABLE).record(5_000, false);
+        metrics.recordEntries(42);
+        
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        
+        assertTrue(text.contains("# TYPE permissions_checker_operation_seconds histogram"));
+        assertTrue(text.contains("permissions_checker_operation_seconds_bucket{operation=\"enable\",le=\"+Inf\"} 2"));
+        assertTrue(text.contains("permissions_checker_operation_seconds_count{operation=\"enable\"} 2"));
+        assertTrue(text.contains("permissions_checker_operation_failures_total{operation=\"enable\"} 1"));
+        assertTrue(text.contains("permissions_checker_entries_total 42"));
+    }
+}
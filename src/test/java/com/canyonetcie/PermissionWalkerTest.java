@@ -0,0 +1,257 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the tree-walking permission engine.
+ */
+public class PermissionWalkerTest {
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private PermissionWalker walker;
+    private Path root;
+    private Path deepFile;
+    
+    @Before
+    public void setUp() throws IOException {
+        walker = new PermissionWalker(4);
+        root = temporaryFolder.newFolder("controlled").toPath();
+        Path deepDirectory = Files.createDirectories(root.resolve("a/b/c"));
+        deepFile = Files.createFile(deepDirectory.resolve("file.txt"));
+        Files.setPosixFilePermissions(deepFile, PosixFilePermissions.fromString("rwxr-x---"));
+        for (int i = 0; i < 10; i++) {
+            Files.createFile(root.resolve("a/file" + i));
+        }
+    }
+    
+    private static PermissionWalker.Options readOnly() {
+        return new PermissionWalker.Options(PermissionWalker.READ_ONLY_DIRECTORY);
+    }
+    
+    private static PermissionWalker.Options readWrite() {
+        return new PermissionWalker.Options(PermissionWalker.READ_WRITE_DIRECTORY);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        // Make sure the temporary tree can be deleted
+        walker.apply(root, false, true);
+    }
+    
+    @Test
+    public void testRecursiveReadOnlyReachesNestedEntries() throws IOException {
+        PermissionWalker.WalkResult result = walker.apply(root, true, true);
+        
+        assertEquals("Should process every entry", 15, result.getEntries());
+        assertEquals("Should have no failures", 0, result.getFailures());
+        assertEquals("Directories should be read-only", "r-xr-xr-x",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(root.resolve("a/b/c"))));
+        assertEquals("Files should lose only their write bits", "r-xr-x---",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(deepFile)));
+    }
+    
+    @Test
+    public void testReadWriteRestoresWriteBits() throws IOException {
+        walker.apply(root, true, true);
+        walker.apply(root, false, true);
+        
+        assertEquals("Directories should be read-write", "rwxrwxrwx",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(root.resolve("a/b"))));
+        assertEquals("Files should regain write bits", "rwxrwx-w-",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(deepFile)));
+    }
+    
+    @Test
+    public void testDirectorySwappedForLinkDuringWalkIsNotFollowed() throws IOException {
+        Path outside = temporaryFolder.newFolder("outside").toPath();
+        Files.setPosixFilePermissions(outside, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Path outsideFile = Files.createFile(outside.resolve("secret"));
+        Files.setPosixFilePermissions(outsideFile, PosixFilePermissions.fromString("rw-r--r--"));
+        AtomicBoolean swapped = new AtomicBoolean();
+        // Swap a/b for a link while a is being listed, after b may already have been seen as a directory
+        walker.setChangeListener((path, oldMode, newMode, actor) -> {
+            if (path.getParent().equals(root.resolve("a")) && swapped.compareAndSet(false, true)) {
+                Files.move(root.resolve("a/b"), root.resolve("a/moved"));
+                Files.createSymbolicLink(root.resolve("a/b"), outside);
+            }
+        });
+        
+        walker.apply(root, true, true);
+        walker.setChangeListener(null);
+        
+        assertTrue(swapped.get());
+        assertEquals("The link target should keep its mode", "rwxr-xr-x",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(outside)));
+        assertEquals("Files behind the link should keep their mode", "rw-r--r--",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(outsideFile)));
+    }
+    
+    @Test
+    public void testChangesCarryTheActorOfTheirOwnWalk() throws Exception {
+        Map<Path, String> actors = new ConcurrentHashMap<>();
+        AtomicBoolean corrected = new AtomicBoolean();
+        // A correction without an actor, like the drift watcher's, runs under carol's root while her walk is going
+        walker.setChangeListener((path, oldMode, newMode, actor) -> {
+            actors.put(path, String.valueOf(actor));
+            if (corrected.compareAndSet(false, true)) {
+                Thread correction = new Thread(() -> {
+                    try {
+                        walker.apply(root.resolve("a/b/c"), readOnly());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                correction.start();
+                try {
+                    correction.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        
+        walker.apply(root, readOnly().actor("carol"));
+        walker.setChangeListener(null);
+        
+        assertEquals(15, actors.size());
+        assertEquals("carol", actors.get(root));
+        assertEquals("carol", actors.get(root.resolve("a/b")));
+        assertEquals("The correction's changes are not carol's", "null", actors.get(root.resolve("a/b/c")));
+        assertEquals("null", actors.get(deepFile));
+    }
+    
+    @Test
+    public void testPlanReportsChangesWithoutMakingThem() throws IOException {
+        walker.apply(root, true, true);
+        Files.setPosixFilePermissions(root.resolve("a/file3"), PosixFilePermissions.fromString("rw-rw-rw-"));
+        AtomicInteger planned = new AtomicInteger();
+        StringBuffer lines = new StringBuffer();
+        
+        PermissionWalker.WalkResult result = walker.apply(root, readOnly().plan((path, current, target) -> {
+                    planned.incrementAndGet();
+                    lines.append(path).append(' ').append(Integer.toOctalString(current))
+                            .append(' ').append(Integer.toOctalString(target));
+                }));
+        
+        assertEquals("Only the drifted file should be planned", 1, planned.get());
+        assertEquals(root.resolve("a/file3") + " 666 444", lines.toString());
+        assertEquals(15, result.getEntries());
+        assertEquals(1, result.getApplied());
+        assertEquals(4, result.getDirectories());
+        assertEquals(15 + 3 * 4 + 1, result.getEstimatedSyscalls());
+        assertEquals("Planning should not change the file", "rw-rw-rw-",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(root.resolve("a/file3"))));
+    }
+    
+    @Test
+    public void testRepeatedApplySkipsUnchangedEntries() throws IOException {
+        PermissionWalker.WalkResult first = walker.apply(root, true, true);
+        assertEquals("First apply should change every entry", 15, first.getApplied());
+        
+        PermissionWalker.WalkResult second = walker.apply(root, true, true);
+        assertEquals("Second apply should change nothing", 0, second.getApplied());
+        assertEquals("Second apply should skip every entry", 15, second.getSkipped());
+    }
+    
+    @Test
+    public void testIncrementalApplySkipsUnchangedDirectories() throws IOException {
+        ApplyManifest manifest = new ApplyManifest();
+        walker.apply(root, readOnly().manifest(manifest));
+        assertEquals("Every directory should be recorded", 4, manifest.size());
+        
+        Path manifestFile = temporaryFolder.getRoot().toPath().resolve("manifest");
+        manifest.save(manifestFile, Collections.singletonList(root));
+        ApplyManifest reloaded = ApplyManifest.load(manifestFile);
+        assertEquals("Manifest should survive a round trip", 4, reloaded.size());
+        
+        PermissionWalker.WalkResult unchanged = walker.apply(root, readOnly().incremental(reloaded));
+        assertEquals("Every directory should be skipped", 4, unchanged.getUnchangedDirectories());
+        assertEquals("No entry should be examined", 0, unchanged.getEntries());
+        
+        // Adding a file changes the directory's ctime, so only that directory is walked again
+        Files.setPosixFilePermissions(root.resolve("a/b"), PosixFilePermissions.fromString("rwxr-xr-x"));
+        Path newFile = Files.createFile(root.resolve("a/b/new.txt"));
+        PermissionWalker.WalkResult changed = walker.apply(root, readOnly().incremental(reloaded));
+        assertEquals("Other directories should be skipped", 3, changed.getUnchangedDirectories());
+        assertEquals("New file should be read-only", "r--r--r--",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(newFile)));
+    }
+    
+    @Test
+    public void testDirectorySwappedForLinkUnderReusedParentIsNotFollowed() throws IOException {
+        Path outside = temporaryFolder.newFolder("outside-reused").toPath();
+        Files.setPosixFilePermissions(outside, PosixFilePermissions.fromString("rwxr-xr-x"));
+        Path outsideFile = Files.createFile(outside.resolve("secret"));
+        Files.setPosixFilePermissions(outsideFile, PosixFilePermissions.fromString("rw-r--r--"));
+        Files.createDirectories(root.resolve("a/x"));
+        Files.createDirectories(root.resolve("a/y"));
+        ApplyManifest manifest = new ApplyManifest();
+        PermissionWalker single = new PermissionWalker(1);
+        single.apply(root, readOnly().manifest(manifest));
+        // New files make x and y walk again while root and a are reused from the manifest
+        for (String name : new String[] {"x", "y"}) {
+            Path directory = root.resolve("a/" + name);
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxr-xr-x"));
+            Files.createFile(directory.resolve("new.txt"));
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("r-xr-xr-x"));
+        }
+        AtomicBoolean swapped = new AtomicBoolean();
+        // Whichever of x and y is walked first swaps the other for a link after a has already checked it
+        single.setChangeListener((path, oldMode, newMode, actor) -> {
+            String walked = path.getParent().getFileName().toString();
+            if (path.getParent().getParent().equals(root.resolve("a")) && swapped.compareAndSet(false, true)) {
+                String other = walked.equals("x") ? "y" : "x";
+                Files.setPosixFilePermissions(root.resolve("a"), PosixFilePermissions.fromString("rwxr-xr-x"));
+                Files.move(root.resolve("a/" + other), root.resolve("a/moved"));
+                Files.createSymbolicLink(root.resolve("a/" + other), outside);
+            }
+        });
+        
+        PermissionWalker.WalkResult result = single.apply(root, readOnly().incremental(manifest));
+        
+        assertTrue(swapped.get());
+        assertEquals("Root, a, a/b and a/b/c should be reused", 4, result.getUnchangedDirectories());
+        assertEquals("The link target should keep its mode", "rwxr-xr-x",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(outside)));
+        assertEquals("Files behind the link should keep their mode", "rw-r--r--",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(outsideFile)));
+    }
+    
+    @Test
+    public void testIncrementalApplyRewalksWhenModeDiffers() throws IOException {
+        ApplyManifest manifest = new ApplyManifest();
+        walker.apply(root, readOnly().manifest(manifest));
+        
+        PermissionWalker.WalkResult result = walker.apply(root, readWrite().incremental(manifest));
+        assertEquals("No directory should be skipped", 0, result.getUnchangedDirectories());
+        assertEquals("Every entry should change", 15, result.getApplied());
+    }
+    
+    @Test
+    public void testNonRecursiveOnlyTouchesRoot() throws IOException {
+        PermissionWalker.WalkResult result = walker.apply(root, true, false);
+        
+        assertEquals("Should process only the root", 1, result.getEntries());
+        assertEquals("Nested directory should keep its mode", "rwxr-xr-x",
+                PosixFilePermissions.toString(Files.getPosixFilePermissions(root.resolve("a"))));
+    }
+}
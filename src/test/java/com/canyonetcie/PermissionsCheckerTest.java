@@ -1,19 +1,32 @@
 package com.canyonetcie;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.junit.After;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
 
 /**
  * Unit tests for the PermissionsChecker application.
  */
 public class PermissionsCheckerTest {
     
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
     private ByteArrayOutputStream outputStream;
     private PrintStream originalOut;
     private PermissionManager permissionManager;
@@ -114,4 +127,113 @@ public class PermissionsCheckerTest {
         config.setVerboseLogging(false);
         assertFalse("Verbose logging should be disabled", config.isVerboseLogging());
     }
+    
+    @Test
+    public void testBatchCoalescesToggles() {
+        CommandBatch batch = new CommandBatch(Arrays.asList("./a", "./b"));
+        assertTrue("Enable should be absorbed", batch.offer("enable"));
+        assertTrue("Disable should be absorbed", batch.offer("DISABLE"));
+        assertTrue("Enable should be absorbed", batch.offer("enable"));
+        assertFalse("Status should not be absorbed", batch.offer("status"));
+        
+        Map<String, Boolean> plan = batch.drain();
+        assertEquals("One update per folder", 2, plan.size());
+        assertTrue("Net state should be enabled", plan.get("./a") && plan.get("./b"));
+        assertEquals("Redundant updates should be elided", 4, batch.getElidedUpdates());
+        assertFalse("Nothing should be pending after draining", batch.hasPending());
+    }
+    
+    @Test
+    public void testReportFilesStayInReportsDirectory() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("controlled").toPath();
+        Files.createFile(folder.resolve("file.txt"));
+        Path reports = temporaryFolder.getRoot().toPath().resolve("reports");
+        Config config = new Config();
+        config.setProperty("controlled.folders", folder.toString());
+        config.setProperty("manifest.file", "");
+        config.setProperty("audit.dir", "");
+        config.setProperty("reports.dir", reports.toString());
+        PermissionsChecker checker = new PermissionsChecker(config, new Metrics());
+        try {
+            assertTrue(run(checker, "plan enable plan.txt", "mallory").contains("Admin privileges required"));
+            assertTrue(run(checker, "audit report", "mallory").contains("Admin privileges required"));
+            assertFalse(Files.exists(reports));
+            
+            assumeTrue("Writing plans needs an admin", new UserManager(config).hasAdminRole());
+            assertTrue(run(checker, "plan enable ../escape.txt", null).contains("give a name inside it"));
+            String absolute = "plan enable " + folder.resolve("escape.txt");
+            assertTrue(run(checker, absolute, null).contains("give a name inside it"));
+            assertTrue(run(checker, "audit ../escape", null).contains("give a name inside it"));
+            assertFalse(Files.exists(folder.resolve("escape.txt")));
+            assertFalse(Files.exists(temporaryFolder.getRoot().toPath().resolve("escape.csv")));
+            
+            assertTrue(run(checker, "audit report", null).contains("Written to"));
+            assertTrue(Files.exists(reports.resolve("report.pcinv")));
+            assertTrue(run(checker, "audit report", null).contains("already exists"));
+            
+            assertTrue(run(checker, "plan enable plan.txt", null).contains("Written to"));
+            String plan = new String(Files.readAllBytes(reports.resolve("plan.txt")), StandardCharsets.UTF_8);
+            assertTrue(plan.contains("file.txt"));
+            assertTrue("Existing files should not be overwritten",
+                    run(checker, "plan disable plan.txt", null).contains("already exists"));
+            assertEquals(plan, new String(Files.readAllBytes(reports.resolve("plan.txt")), StandardCharsets.UTF_8));
+        } finally {
+            checker.cleanup();
+        }
+    }
+    
+    @Test
+    public void testRemoteBatchMustNameAFile() throws IOException {
+        Config config = new Config();
+        config.setProperty("controlled.folders", temporaryFolder.newFolder("remote").toString());
+        config.setProperty("manifest.file", "");
+        config.setProperty("audit.dir", "");
+        PermissionsChecker checker = new PermissionsChecker(config, new Metrics());
+        try {
+            for (String command : new String[] {"batch", "batch -"}) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                assertFalse(checker.processRemoteCommand(null, command, new PrintStream(output, true, "UTF-8")));
+                assertTrue(output.toString("UTF-8").contains("batch needs a file"));
+            }
+        } finally {
+            checker.cleanup();
+        }
+    }
+    
+    @Test
+    public void testNestedBatchesCannotReadStdinOrRecurse() throws IOException {
+        Config config = new Config();
+        config.setProperty("controlled.folders", temporaryFolder.newFolder("nested").toString());
+        config.setProperty("manifest.file", "");
+        config.setProperty("audit.dir", "");
+        Path outer = temporaryFolder.getRoot().toPath().resolve("outer.txt");
+        Path inner = temporaryFolder.getRoot().toPath().resolve("inner.txt");
+        Files.write(outer, Arrays.asList("batch -", "batch " + inner, "batch " + outer));
+        Files.write(inner, Arrays.asList("help", "batch " + outer));
+        PermissionsChecker checker = new PermissionsChecker(config, new Metrics());
+        try {
+            String output = run(checker, "batch " + outer, "mallory");
+            assertTrue(output.contains("A nested batch needs a file"));
+            assertTrue(output.contains("Batch " + outer + " is already running"));
+            assertTrue("The inner batch should run", output.contains("Permissions Checker Help"));
+            assertEquals("Each batch should complete once", 2, output.split("Batch complete", -1).length - 1);
+        } finally {
+            checker.cleanup();
+        }
+    }
+    
+    /**
+     * Runs a command as the given caller, or as the user running the tests if it is null, and returns its output
+     */
+    private static String run(PermissionsChecker checker, String command, String caller) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output, true, "UTF-8");
+        if (caller != null) {
+            checker.processCommand(command, out, caller);
+        } else {
+            checker.processCommand(command, out);
+        }
+        return output.toString("UTF-8");
+    }
 }
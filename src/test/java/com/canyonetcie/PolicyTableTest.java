@@ -0,0 +1,91 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for the policy table compiled from the configuration.
+ */
+public class PolicyTableTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Config newConfig(String folders) {
+        Config config = new Config();
+        config.setProperty("controlled.folders", folders);
+        config.setProperty("manifest.file", "");
+        return config;
+    }
+
+    @Test
+    public void testRoleGrants() {
+        Config config = newConfig("/srv/data,/srv/uploads");
+        config.setProperty("roles", "admin,editors");
+        config.setProperty("role.editors.users", "alice");
+        config.setProperty("role.editors.groups", "staff");
+        config.setProperty("role.editors.write", "/srv/./data/");
+        PolicyTable policy = PolicyTable.compile(config);
+
+        long alice = policy.rolesOf("Alice", Collections.emptySet());
+        assertTrue("Editors should write to the granted folder", policy.canWrite(alice, "/srv/data"));
+        assertFalse("Editors should not write to other folders", policy.canWrite(alice, "/srv/uploads"));
+        assertFalse("Editors should not manage folders", policy.canManage(alice));
+
+        long staff = policy.rolesOf("bob", Collections.singleton("staff"));
+        assertEquals("Group members should hold the group's roles", alice, staff);
+
+        long root = policy.rolesOf("root", Collections.emptySet());
+        assertTrue("admin.users should hold the admin role", policy.canManage(root));
+        assertTrue("Admins should write everywhere", policy.canWrite(root, "/srv/uploads"));
+        assertEquals(0, policy.rolesOf("mallory", Collections.singleton("users")));
+    }
+
+    @Test
+    public void testFolderModes() {
+        Config config = newConfig("/srv/data,/srv/uploads");
+        config.setProperty("folder.mode.readonly./srv/data", "r-x------");
+        config.setProperty("folder.mode.readwrite./srv/data", "0770");
+        config.setProperty("folder.mode.readonly./srv/uploads", "not-a-mode");
+        PolicyTable policy = PolicyTable.compile(config);
+
+        assertEquals("r-x------", PosixFilePermissions.toString(policy.getMode("/srv/data", true)));
+        assertEquals("rwxrwx---", PosixFilePermissions.toString(policy.getMode("/srv/data", false)));
+        assertEquals("Invalid modes should fall back to the default",
+                "r-xr-xr-x", PosixFilePermissions.toString(policy.getMode("/srv/uploads", true)));
+        assertEquals("Unknown folders should use the default",
+                "rwxrwxrwx", PosixFilePermissions.toString(policy.getMode("/srv/other", false)));
+        assertEquals(0750, PolicyTable.mode(PolicyTable.permissions(0750)));
+    }
+
+    @Test
+    public void testFolderModesAreApplied() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("policy").toPath();
+        Path file = Files.createFile(folder.resolve("file.txt"));
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-r--r--"));
+        Config config = newConfig(folder.toString());
+        config.setProperty("folder.mode.readonly." + folder, "r-x------");
+        config.setProperty("folder.mode.readwrite." + folder, "rwxrwx---");
+        PermissionManager manager = new PermissionManager(config);
+
+        manager.setAllFoldersReadOnly();
+        assertEquals("r-x------", PosixFilePermissions.toString(Files.getPosixFilePermissions(folder)));
+        assertEquals("r--r--r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+        manager.enableWritePermissions();
+        assertEquals("rwxrwx---", PosixFilePermissions.toString(Files.getPosixFilePermissions(folder)));
+        assertEquals("Files should take the write bits of the folder mode",
+                "rw-rw-r--", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+    }
+}
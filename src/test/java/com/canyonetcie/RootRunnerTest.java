@@ -0,0 +1,144 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for concurrent per-root initialization.
+ */
+public class RootRunnerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testRootsRunConcurrently() {
+        RootRunner runner = new RootRunner(4, 10000, "test");
+        long start = System.nanoTime();
+        Map<String, Exception> failures = runner.run(Arrays.asList("/a", "/b", "/c", "/d"),
+                (root, control) -> Thread.sleep(300));
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertTrue(failures.isEmpty());
+        assertTrue("Startup should take about as long as the slowest root, took " + elapsedMillis + " ms",
+                elapsedMillis < 900);
+    }
+
+    @Test
+    public void testHungAndFailingRootsAreIsolated() {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> completed = Collections.synchronizedList(new ArrayList<>());
+        RootRunner runner = new RootRunner(1, 200, "test");
+        try {
+            List<String> roots = Arrays.asList("/hung", "/broken", "/healthy");
+            Map<String, Exception> failures = runner.run(roots, (root, control) -> {
+                if (root.equals("/hung")) {
+                    // Like a stuck NFS call, this ignores interrupts
+                    while (true) {
+                        try {
+                            release.await();
+                            break;
+                        } catch (InterruptedException e) {
+                            // keep waiting
+                        }
+                    }
+                } else if (root.equals("/broken")) {
+                    throw new IOException("Permission denied");
+                }
+                completed.add(root);
+            });
+
+            assertEquals(Arrays.asList("/hung", "/broken"), new ArrayList<>(failures.keySet()));
+            assertTrue(failures.get("/hung") instanceof TimeoutException);
+            assertEquals("Permission denied", failures.get("/broken").getMessage());
+            assertEquals("The hung root should not use up the only slot", Collections.singletonList("/healthy"), completed);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testTimedOutWalkStopsBeforeRunReturns() throws IOException, InterruptedException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("slow").toPath();
+        for (int i = 0; i < 50; i++) {
+            Files.createFile(Files.createDirectory(folder.resolve("dir" + i)).resolve("file"));
+        }
+        PermissionWalker walker = new PermissionWalker(1);
+        AtomicInteger changes = new AtomicInteger();
+        // A slow change inside the walker, which a cancelled future alone cannot interrupt
+        walker.setChangeListener((path, oldMode, newMode, actor) -> {
+            changes.incrementAndGet();
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        });
+        AtomicBoolean walking = new AtomicBoolean();
+        RootRunner runner = new RootRunner(1, 200, "test");
+
+        Map<String, Exception> failures = runner.run(Collections.singletonList(folder.toString()), (root, control) -> {
+            walking.set(true);
+            try {
+                walker.apply(Paths.get(root),
+                        new PermissionWalker.Options(PermissionWalker.READ_ONLY_DIRECTORY).control(control));
+            } finally {
+                walking.set(false);
+            }
+        });
+
+        assertTrue(failures.get(folder.toString()) instanceof TimeoutException);
+        assertFalse("The walk should have stopped by the time the failure is reported", walking.get());
+        int stoppedAt = changes.get();
+        assertTrue("The walk should stop well before the end, made " + stoppedAt + " changes", stoppedAt < 100);
+        Thread.sleep(200);
+        assertEquals("No changes should follow the report", stoppedAt, changes.get());
+        walker.setChangeListener(null);
+        walker.apply(folder, false, true);
+    }
+
+    @Test
+    public void testAllFoldersAreLockedConcurrently() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        List<String> folders = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Path folder = temporaryFolder.getRoot().toPath().resolve("root" + i);
+            folders.add(folder.toString());
+        }
+        Config config = new Config();
+        config.setProperty("controlled.folders", String.join(",", folders));
+        config.setProperty("manifest.file", "");
+        config.setProperty("init.parallelism", "3");
+        PermissionManager manager = new PermissionManager(config);
+        try {
+            manager.enableWritePermissions();
+            manager.setAllFoldersReadOnly();
+
+            assertTrue(manager.getFailedRoots().isEmpty());
+            for (String folder : folders) {
+                assertFalse(manager.isWriteEnabled(folder));
+                assertFalse(Files.getPosixFilePermissions(Paths.get(folder)).contains(PosixFilePermission.OWNER_WRITE));
+            }
+        } finally {
+            manager.close();
+        }
+    }
+}
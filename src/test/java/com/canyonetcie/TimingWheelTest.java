@@ -0,0 +1,184 @@
+package com.canyonetcie;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for the timing wheel and timed write grants.
+ */
+public class TimingWheelTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private TimingWheel<Integer> wheel;
+
+    @After
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.close();
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testTimeoutsDueTogetherExpireInOneBatch() throws InterruptedException {
+        List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+        wheel = new TimingWheel<>(200, 8, expired -> {
+            List<Integer> keys = new ArrayList<>();
+            expired.forEach(timeout -> keys.add(timeout.getKey()));
+            batches.add(keys);
+        });
+
+        List<TimingWheel.Timeout<Integer>> timeouts = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            timeouts.add(wheel.schedule(i, 50));
+        }
+        for (int i = 0; i < 5000; i += 2) {
+            assertTrue(wheel.cancel(timeouts.get(i)));
+        }
+        assertEquals(2500, wheel.size());
+
+        // The handler runs after the timeouts leave the wheel
+        await(() -> {
+            synchronized (batches) {
+                return batches.stream().mapToInt(List::size).sum() == 2500;
+            }
+        });
+        assertEquals(0, wheel.size());
+        Set<Integer> keys = new HashSet<>();
+        synchronized (batches) {
+            batches.forEach(keys::addAll);
+        }
+        assertEquals(2500, keys.size());
+        assertFalse("Cancelled timeouts should not expire", keys.contains(0));
+        assertTrue("Expiries in the same tick should be batched", batches.size() <= 2);
+        assertFalse(wheel.cancel(timeouts.get(1)));
+    }
+
+    @Test
+    public void testTimeoutsBeyondOneTurnWaitForTheirRound() throws InterruptedException {
+        List<Long> lateness = Collections.synchronizedList(new ArrayList<>());
+        wheel = new TimingWheel<>(10, 4, expired -> expired.forEach(
+                timeout -> lateness.add(System.currentTimeMillis() - timeout.getDeadline())));
+
+        long start = System.currentTimeMillis();
+        wheel.schedule(1, 20);
+        wheel.schedule(2, 300);
+        await(() -> lateness.size() == 2);
+
+        assertEquals(2, lateness.size());
+        assertTrue("Timeouts should not expire early", lateness.get(0) >= 0 && lateness.get(1) >= 0);
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void testTimedGrantRevokesItself() throws IOException, InterruptedException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path first = temporaryFolder.newFolder("first").toPath();
+        Path second = temporaryFolder.newFolder("second").toPath();
+        Config config = new Config();
+        config.setProperty("controlled.folders", first + "," + second);
+        config.setProperty("manifest.file", "");
+        config.setProperty("grants.tick.millis", "50");
+        PermissionManager manager = new PermissionManager(config);
+        List<String> expired = Collections.synchronizedList(new ArrayList<>());
+        manager.addListener(event -> {
+            if (event.getType() == PermissionEvent.Type.EXPIRE) {
+                expired.add(event.getSubject());
+            }
+        });
+        try {
+            manager.setAllFoldersReadOnly();
+            String folder = manager.resolveControlledFolder(first.toString() + "/");
+            assertEquals(first.toString(), folder);
+            assertNull(manager.resolveControlledFolder(first.resolve("child").toString()));
+
+            manager.enableWritePermissions(folder, Duration.ofMillis(100));
+            manager.enableWritePermissions(second.toString(), Duration.ofMinutes(5));
+            assertTrue(manager.isWriteEnabled(folder));
+            assertTrue(Files.getPosixFilePermissions(first).contains(PosixFilePermission.OTHERS_WRITE));
+            assertEquals(2, manager.getGrants().size());
+
+            await(() -> !manager.isWriteEnabled(folder));
+            assertFalse(manager.isWriteEnabled(folder));
+            assertFalse(Files.getPosixFilePermissions(first).contains(PosixFilePermission.OWNER_WRITE));
+            assertTrue("Other grants should keep running", manager.isWriteEnabled(second.toString()));
+            assertEquals(Collections.singleton(second.toString()), manager.getGrants().keySet());
+
+            manager.disableWritePermissions();
+            assertTrue("Disabling should cancel pending grants", manager.getGrants().isEmpty());
+            assertTrue(manager.getEventBus().drain(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList(first.toString()), expired);
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testOverlongGrantLeavesFolderLocked() throws IOException {
+        assumeFalse(System.getProperty("os.name").toLowerCase().contains("windows"));
+        Path folder = temporaryFolder.newFolder("locked").toPath();
+        Config config = new Config();
+        config.setProperty("controlled.folders", folder.toString());
+        config.setProperty("manifest.file", "");
+        PermissionManager manager = new PermissionManager(config);
+        try {
+            manager.setAllFoldersReadOnly();
+            try {
+                manager.enableWritePermissions(folder.toString(), Duration.ofDays(1_000_000_000_000L));
+                fail("A grant too long to time should be refused");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains("at most 365 days"));
+            }
+            assertFalse(manager.isWriteEnabled(folder.toString()));
+            assertFalse(Files.getPosixFilePermissions(folder).contains(PosixFilePermission.OWNER_WRITE));
+            assertTrue(manager.getGrants().isEmpty());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void testParseDuration() {
+        assertEquals(Duration.ofSeconds(90), PermissionsChecker.parseDuration("90s"));
+        assertEquals(Duration.ofMinutes(15), PermissionsChecker.parseDuration("15m"));
+        assertEquals(Duration.ofHours(2), PermissionsChecker.parseDuration("2H"));
+        assertEquals(Duration.ofDays(1), PermissionsChecker.parseDuration("1d"));
+        assertEquals(Duration.ofMinutes(30), PermissionsChecker.parseDuration("PT30M"));
+        assertEquals(Duration.ofMinutes(5), PermissionsChecker.parseDuration("5"));
+        assertEquals(Duration.ofDays(365), PermissionsChecker.parseDuration("365d"));
+        for (String invalid : new String[] { "0s", "-5m", "soon", "5w", "366d", "1000000000000d", "PT9000000H" }) {
+            try {
+                PermissionsChecker.parseDuration(invalid);
+                fail("Expected " + invalid + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(invalid));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.canyonetcie;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for in-process group resolution.
+ */
+public class UnixGroupResolverTest {
+    
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    
+    private Path procStatus;
+    private Path passwd;
+    private Path group;
+    
+    @Before
+    public void setUp() throws IOException {
+        procStatus = temporaryFolder.getRoot().toPath().resolve("status");
+        passwd = temporaryFolder.getRoot().toPath().resolve("passwd");
+        group = temporaryFolder.getRoot().toPath().resolve("group");
+        Files.writeString(passwd, "alice:x:1000:1000::/home/alice:/bin/sh\n");
+        Files.writeString(group, "alice:x:1000:\nwheel:x:10:\nstaff:x:50:\n");
+    }
+    
+    @Test
+    public void testGroupsFromProcStatus() throws IOException {
+        Files.writeString(procStatus, "Name:\tjava\nUid:\t1000\t1000\t1000\t1000\nGid:\t1000\t1000\t1000\t1000\nGroups:\t10 50\n");
+        UnixGroupResolver resolver = new UnixGroupResolver("alice", procStatus, passwd, group, 60);
+        
+        assertTrue("Member of wheel should be admin", resolver.isAdmin());
+        assertTrue("Should resolve supplementary groups", resolver.getGroupNames().contains("staff"));
+    }
+    
+    @Test
+    public void testSubstringOfGroupNameIsNotAdmin() throws IOException {
+        Files.writeString(group, "alice:x:1000:\nsudoers-audit:x:10:\n");
+        Files.writeString(procStatus, "Uid:\t1000\t1000\t1000\t1000\nGid:\t1000\t1000\t1000\t1000\nGroups:\t10\n");
+        UnixGroupResolver resolver = new UnixGroupResolver("alice", procStatus, passwd, group, 60);
+        
+        assertFalse("Only exact admin group names should count", resolver.isAdmin());
+    }
+    
+    @Test
+    public void testFallsBackToPasswdAndGroupMembers() throws IOException {
+        Files.writeString(group, "alice:x:1000:\nsudo:x:27:bob,alice\n");
+        UnixGroupResolver resolver = new UnixGroupResolver("alice", procStatus, passwd, group, 60);
+        
+        assertTrue("Listed member of sudo should be admin", resolver.isAdmin());
+        assertTrue("Primary group should be resolved", resolver.getGroupNames().contains("alice"));
+    }
+    
+    @Test
+    public void testGroupFileChangeRefreshesAfterTtl() throws IOException {
+        Files.writeString(procStatus, "Uid:\t1000\t1000\t1000\t1000\nGid:\t1000\t1000\t1000\t1000\nGroups:\t50\n");
+        UnixGroupResolver resolver = new UnixGroupResolver("alice", procStatus, passwd, group, 0);
+        assertFalse("Should not be admin before the change", resolver.isAdmin());
+        
+        Files.writeString(group, "alice:x:1000:\nadmin:x:50:\n");
+        Files.setLastModifiedTime(group, FileTime.fromMillis(System.currentTimeMillis() + 5_000));
+        assertTrue("Should pick up the edited group file", resolver.isAdmin());
+    }
+    
+    @Test
+    public void testInvalidateForcesResolution() throws IOException {
+        Files.writeString(procStatus, "Uid:\t1000\t1000\t1000\t1000\nGid:\t1000\t1000\t1000\t1000\nGroups:\t50\n");
+        UnixGroupResolver resolver = new UnixGroupResolver("alice", procStatus, passwd, group, 3600);
+        assertFalse("Should not be admin initially", resolver.isAdmin());
+        
+        Files.writeString(procStatus, "Uid:\t0\t0\t0\t0\nGid:\t0\t0\t0\t0\nGroups:\n");
+        assertFalse("Cached result should be used within the TTL", resolver.isAdmin());
+        resolver.invalidate();
+        assertTrue("uid 0 should be admin after invalidation", resolver.isAdmin());
+    }
+}
@@ -0,0 +1,157 @@
+package com.canyonetcie;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the indexed user directory.
+ */
+public class UserDirectoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final String LDIF = "version: 1\n"
+            + "\n"
+            + "# people\n"
+            + "dn: uid=alice,ou=people,dc=example,dc=com\n"
+            + "objectClass: posixAccount\n"
+            + "uid: alice\n"
+            + "uidNumber: 1000\n"
+            + "gidNumber: 100\n"
+            + "\n"
+            + "dn: uid=bob,ou=people,dc=example,dc=com\n"
+            + "objectClass: posixAccount\n"
+            + "uid: bob\n"
+            + "uidNumber: 1001\n"
+            + "gidNumber: 100\n"
+            + "\n"
+            + "dn: uid=carol,ou=people,dc=example,dc=com\n"
+            + "objectClass: posixAccount\n"
+            + "uid:: Y2Fyb2w=\n"
+            + "uidNumber: 1002\n"
+            + "gidNumber: 10\n"
+            + "\n"
+            + "dn: cn=users,ou=groups,dc=example,dc=com\n"
+            + "objectClass: posixGroup\n"
+            + "cn: users\n"
+            + "gidNumber: 100\n"
+            + "\n"
+            + "dn: cn=wheel,ou=groups,dc=example,dc=com\n"
+            + "objectClass: posixGroup\n"
+            + "cn: wheel\n"
+            + "gidNumber: 10\n"
+            + "\n"
+            + "dn: cn=staff,ou=groups,dc=example,dc=com\n"
+            + "objectClass: groupOfNames\n"
+            + "cn: staff\n"
+            + "member: uid=alice,ou=people,dc=example,dc=com\n"
+            + "member: uid=bob,ou=peo\n"
+            + " ple,dc=example,dc=com\n";
+
+    private Config policyConfig() {
+        Config config = new Config();
+        config.setProperty("roles", "admin,editors");
+        config.setProperty("role.admin.groups", "wheel");
+        config.setProperty("role.admin.manage", "true");
+        config.setProperty("role.editors.groups", "staff");
+        config.setProperty("role.editors.write", "./data");
+        return config;
+    }
+
+    @Test
+    public void testUnixFilesIndexMembershipAndPrimaryGroups() throws IOException {
+        Path passwd = temporaryFolder.newFile("passwd").toPath();
+        Path group = temporaryFolder.newFile("group").toPath();
+        Files.writeString(passwd, "root:x:0:0::/root:/bin/sh\nalice:x:1000:100::/home/alice:/bin/sh\n"
+                + "bob:x:1001:100::/home/bob:/bin/sh\n");
+        Files.writeString(group, "root:x:0:\nusers:x:100:\nwheel:x:10:bob\nstaff:x:50:alice,bob\n");
+
+        UserDirectory directory = UserDirectory.load(UserDirectory.unixFiles(passwd, group), null);
+
+        assertEquals(3, directory.getUserCount());
+        assertEquals(4, directory.getGroupCount());
+        int alice = directory.userId("alice");
+        assertEquals(1000, directory.uid(alice));
+        assertTrue("Primary group should count as membership", directory.isMember(alice, directory.groupId("users")));
+        assertEquals(Set.of("users", "staff"), directory.groupsOf("alice"));
+        assertEquals(UserDirectory.NO_ID, directory.userId("mallory"));
+
+        UserDirectory.Roles roles = directory.roles(PolicyTable.compile(policyConfig()));
+        assertTrue("uid 0 should be admin", roles.isAdmin(directory.userId("root")));
+        assertTrue("Member of a managing group should be admin", roles.isAdmin(directory.userId("bob")));
+        assertFalse(roles.isAdmin(alice));
+        assertEquals(2, roles.getAdminCount());
+    }
+
+    @Test
+    public void testReloadKeepsIdsAndReportsOnlyChangedUsers() {
+        List<UserDirectory.UserRecord> users = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            users.add(new UserDirectory.UserRecord("user" + i, 1000 + i, 100));
+        }
+        List<UserDirectory.GroupRecord> groups = new ArrayList<>(Arrays.asList(
+                new UserDirectory.GroupRecord("users", 100, Collections.emptyList()),
+                new UserDirectory.GroupRecord("wheel", 10, Arrays.asList("user1", "user2"))));
+        UserDirectory first = UserDirectory.build(users, groups, null);
+
+        // user3 joins wheel, user1 leaves it, user999 is removed and newcomer is added
+        groups.set(1, new UserDirectory.GroupRecord("wheel", 10, Arrays.asList("user2", "user3")));
+        users.remove(999);
+        users.add(new UserDirectory.UserRecord("newcomer", 5000, 100));
+        UserDirectory second = UserDirectory.build(users, groups, first);
+
+        assertEquals(first.userId("user500"), second.userId("user500"));
+        assertEquals(first.groupId("wheel"), second.groupId("wheel"));
+        assertNull("Removed ids should stay unused", second.userName(first.userId("user999")));
+        assertEquals(Set.of("user1", "user3", "user999", "newcomer"), second.changedUsers(first));
+        assertTrue(second.changedUsers(second).isEmpty());
+
+        // Most users gone: ids are compacted and changes are found by name
+        UserDirectory third = UserDirectory.build(users.subList(0, 10), groups, second);
+        assertTrue(third.userId("user9") < 10);
+        Set<String> changed = third.changedUsers(second);
+        assertTrue(changed.contains("user500"));
+        assertFalse("Unchanged users should not be reported after compaction", changed.contains("user5"));
+    }
+
+    @Test
+    public void testUserManagerAnswersBulkQueriesFromLdif() throws IOException, InterruptedException {
+        Path ldif = temporaryFolder.getRoot().toPath().resolve("people.ldif");
+        Files.writeString(ldif, LDIF);
+        Config config = policyConfig();
+        config.setProperty("users.directory", ldif.toString());
+        config.setProperty("role.cache.ttl.seconds", "1");
+        UserManager userManager = new UserManager(config);
+
+        assertEquals(3, userManager.getUserDirectory().getUserCount());
+        BitSet admins = userManager.areAdmins(Arrays.asList("alice", "bob", "carol", "Carol", "mallory"));
+        assertEquals("Primary group wheel should make carol admin", BitSet.valueOf(new long[] {0b01100}), admins);
+        assertTrue("Folded LDIF lines should be joined", userManager.canWrite("bob", "./data"));
+        assertFalse(userManager.canWrite("alice", "./elsewhere"));
+
+        long alice = userManager.getRoleGeneration("alice");
+        long bob = userManager.getRoleGeneration("bob");
+        Files.writeString(ldif, LDIF.replace("member: uid=alice,ou=people,dc=example,dc=com\n", "")
+                + "\ndn: uid=dave,ou=people\nobjectClass: posixAccount\nuid: dave\nuidNumber: 1003\n");
+        Thread.sleep(1100);
+
+        assertNotEquals("Alice left staff", alice, userManager.getRoleGeneration("alice"));
+        assertEquals("Bob's cached decisions should survive", bob, userManager.getRoleGeneration("bob"));
+        assertFalse(userManager.canWrite("alice", "./data"));
+        assertEquals(4, userManager.getUserDirectory().getUserCount());
+    }
+}